@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 import simpledb.Aggregator.Op;
@@ -8,6 +9,12 @@ import simpledb.Aggregator.Op;
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * With a memory budget (see {@link #setMemoryBudget}), at most as many groups
+ * as fit in the budget are aggregated in memory. Once the group table is
+ * full, input tuples of other groups are hash-partitioned into
+ * {@link SpillFile}s, and each partition is aggregated on its own, with the
+ * same budget, after the in-memory groups have been returned.
  */
 public class Aggregate extends Operator {
 
@@ -20,6 +27,60 @@ public class Aggregate extends Operator {
     private Aggregator aggregator;
     private DbIterator itr;
     private TupleDesc td;
+
+    /**
+     * Estimated bytes of memory per group, besides the group-by value
+     */
+    public static final int GROUP_OVERHEAD = 64;
+
+    /**
+     * Number of partitions the input is spilled to
+     */
+    public static final int SPILL_PARTITIONS = 16;
+
+    /**
+     * Deepest level of repartitioning; partitions at this level are
+     * aggregated in memory whatever the budget
+     */
+    private static final int MAX_SPILL_LEVEL = 8;
+
+    /**
+     * Memory budget of new Aggregates in bytes, or 0 for no budget
+     */
+    private static long defaultMemoryBudget = 0;
+
+    /**
+     * Memory budget for the group table in bytes, or 0 for no budget
+     */
+    private long memoryBudget;
+
+    /**
+     * Number of times the input of this Aggregate has been spilled, 0 for
+     * an Aggregate over the original input
+     */
+    private int spillLevel;
+
+    /**
+     * Input tuples of groups that did not fit in memory, by partition; null
+     * if nothing was spilled
+     */
+    private transient SpillFile[] partitions;
+
+    /**
+     * Index of the next partition to aggregate
+     */
+    private transient int nextPartition;
+
+    /**
+     * Aggregate over the partition currently being returned, or null
+     */
+    private transient Aggregate partitionAggregate;
+
+    /**
+     * Statistics of the last run, including finished partitions
+     */
+    private transient long peakMemory;
+    private transient long spilledBytes;
     
     /**
      * Constructor.
@@ -45,6 +106,58 @@ public class Aggregate extends Operator {
     	this.gfield = gfield;
     	this.aop = aop;
     	this.td = computeTupleDesc();
+    	this.memoryBudget = defaultMemoryBudget;
+    	this.spillLevel = 0;
+    }
+
+    /**
+     * Sets the memory budget of Aggregates created afterwards.
+     *
+     * @param bytes
+     *            the budget in bytes, or 0 for no budget
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+    	defaultMemoryBudget = bytes;
+    }
+
+    /**
+     * Limits the memory used for groups. Groups that do not fit are spilled
+     * to disk. Takes effect the next time the operator is opened.
+     *
+     * @param bytes
+     *            the budget in bytes, or 0 for no budget
+     */
+    public void setMemoryBudget(long bytes) {
+    	this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes, or 0 if there is none
+     */
+    public long getMemoryBudget() {
+    	return this.memoryBudget;
+    }
+
+    /**
+     * @return the estimated size in bytes of the largest group table built
+     *         by the last run
+     */
+    public long getPeakMemory() {
+    	if (this.partitionAggregate != null) {
+    		return Math.max(this.peakMemory, this.partitionAggregate.getPeakMemory());
+    	}
+    	return this.peakMemory;
+    }
+
+    /**
+     * @return the number of bytes of input written to spill files by the
+     *         last run, including repartitioning
+     */
+    public long getSpilledBytes() {
+    	if (this.partitionAggregate != null) {
+    		return this.spilledBytes + this.partitionAggregate.getSpilledBytes();
+    	}
+    	return this.spilledBytes;
     }
     
     private TupleDesc computeTupleDesc() {
@@ -150,6 +263,13 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
         this.child.open();
+        aggregateChild();
+        super.open();
+    }
+
+    // Helper method that aggregates the input, spilling the groups that do
+    // not fit in the memory budget
+    private void aggregateChild() throws DbException, TransactionAbortedException {
         Type groupbyType = null;
         if (this.gfield != -1) {
         	groupbyType = this.child.getTupleDesc().getFieldType(this.gfield);
@@ -159,12 +279,95 @@ public class Aggregate extends Operator {
     	} else {
     		this.aggregator = (new StringAggregator(gfield, groupbyType, afield, aop));
     	}
+    	long maxGroups = Long.MAX_VALUE;
+    	if (this.gfield != -1 && this.memoryBudget > 0 && this.spillLevel < MAX_SPILL_LEVEL) {
+    		maxGroups = Math.max(1, this.memoryBudget / bytesPerGroup());
+    	}
+    	this.peakMemory = 0;
+    	this.spilledBytes = 0;
     	while (this.child.hasNext()) {
-    		this.aggregator.mergeTupleIntoGroup(this.child.next());
+    		Tuple t = this.child.next();
+    		if (this.aggregator.numGroups() < maxGroups
+    				|| this.aggregator.hasGroup(t.getField(this.gfield))) {
+    			this.aggregator.mergeTupleIntoGroup(t);
+    		} else {
+    			spill(t);
+    		}
     	}
+    	if (this.gfield != -1) {
+    		this.peakMemory = this.aggregator.numGroups() * bytesPerGroup();
+    	}
+    	if (this.partitions != null) {
+    		for (SpillFile partition : this.partitions) {
+    			if (partition != null) {
+    				this.spilledBytes += partition.numBytes();
+    			}
+    		}
+    	}
+    	this.nextPartition = 0;
     	this.itr = this.aggregator.iterator();
     	this.itr.open();
-        super.open();
+    }
+
+    // Helper method that returns the estimated memory used by one group
+    private long bytesPerGroup() {
+    	return this.child.getTupleDesc().getFieldType(this.gfield).getLen() + GROUP_OVERHEAD;
+    }
+
+    // Helper method that writes a tuple to the partition of its group
+    private void spill(Tuple t) throws DbException {
+    	if (this.partitions == null) {
+    		this.partitions = new SpillFile[SPILL_PARTITIONS];
+    	}
+    	int p = SpillFile.partitionOf(t.getField(this.gfield), this.spillLevel, SPILL_PARTITIONS);
+    	try {
+    		if (this.partitions[p] == null) {
+    			this.partitions[p] = new SpillFile(this.child.getTupleDesc());
+    		}
+    		this.partitions[p].add(t);
+    	} catch (IOException e) {
+    		throw new DbException("could not spill aggregate input: " + e.getMessage());
+    	}
+    }
+
+    // Helper method that starts aggregating the next spilled partition, if
+    // any, after finishing the current one
+    private boolean openNextPartition() throws DbException, TransactionAbortedException {
+    	if (this.partitionAggregate != null) {
+    		this.peakMemory = Math.max(this.peakMemory, this.partitionAggregate.getPeakMemory());
+    		this.spilledBytes += this.partitionAggregate.getSpilledBytes();
+    		this.partitionAggregate.close();
+    		this.partitionAggregate = null;
+    		this.partitions[this.nextPartition - 1].delete();
+    		this.partitions[this.nextPartition - 1] = null;
+    	}
+    	while (this.partitions != null && this.nextPartition < this.partitions.length) {
+    		SpillFile partition = this.partitions[this.nextPartition++];
+    		if (partition != null) {
+    			this.partitionAggregate = new Aggregate(partition.iterator(), this.afield, this.gfield, this.aop);
+    			this.partitionAggregate.memoryBudget = this.memoryBudget;
+    			this.partitionAggregate.spillLevel = this.spillLevel + 1;
+    			this.partitionAggregate.open();
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    // Helper method that deletes all spill files
+    private void closeSpill() {
+    	if (this.partitionAggregate != null) {
+    		this.partitionAggregate.close();
+    		this.partitionAggregate = null;
+    	}
+    	if (this.partitions != null) {
+    		for (SpillFile partition : this.partitions) {
+    			if (partition != null) {
+    				partition.delete();
+    			}
+    		}
+    		this.partitions = null;
+    	}
     }
 
     /**
@@ -178,12 +381,24 @@ public class Aggregate extends Operator {
     	if (this.itr.hasNext()) {
     		return this.itr.next();
     	}
+    	do {
+    		if (this.partitionAggregate != null && this.partitionAggregate.hasNext()) {
+    			return this.partitionAggregate.next();
+    		}
+    	} while (openNextPartition());
     	return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
     	this.child.rewind();
-    	this.itr.rewind();
+    	if (this.partitions == null) {
+    		this.itr.rewind();
+    	} else {
+    		// the spilled groups are gone, so aggregate the input again
+    		closeSpill();
+    		this.itr.close();
+    		aggregateChild();
+    	}
     }
 
     /**
@@ -204,6 +419,11 @@ public class Aggregate extends Operator {
     public void close() {
         super.close();
         this.child.close();
+        if (this.spillLevel == 0 && this.partitions != null) {
+        	Debug.log("Aggregate spilled %d bytes, peak group memory %d bytes",
+        			getSpilledBytes(), getPeakMemory());
+        }
+        closeSpill();
     }
 
     @Override
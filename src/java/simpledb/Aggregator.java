@@ -81,5 +81,16 @@ public interface Aggregator extends Serializable {
      * @see simpledb.TupleIterator for a possible helper
      */
     public DbIterator iterator();
-    
+
+    /**
+     * @return the number of groups merged so far
+     */
+    public int numGroups();
+
+    /**
+     * @return true if a tuple with the specified group-by value has been
+     *         merged; always false if there is no grouping
+     */
+    public boolean hasGroup(Field group);
+
 }
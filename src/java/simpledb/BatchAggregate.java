@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BatchAggregate is the batch mode version of {@link Aggregate}. It folds
+ * whole column vectors into per-group running values held in int arrays,
+ * and supports MIN, MAX, SUM, AVG and COUNT with or without grouping.
+ * COUNT is the only operation allowed on a string column.
+ */
+public class BatchAggregate implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final TupleDesc td;
+
+    /**
+     * Group keys (Integer or String) to their index in the value arrays
+     */
+    private transient Map<Object, Integer> groupIndex;
+    private transient Object[] groupKeys;
+
+    /**
+     * Running value of each group: the min, max, sum or count
+     */
+    private transient int[] values;
+
+    /**
+     * Number of rows of each group, for AVG
+     */
+    private transient int[] counts;
+    private transient int numGroups;
+
+    /**
+     * The next group to return
+     */
+    private transient int nextGroup;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The BatchIterator that is feeding us rows.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use; SUM_COUNT and SC_AVG are
+     *            not supported
+     */
+    public BatchAggregate(BatchIterator child, int afield, int gfield, Aggregator.Op aop) {
+        if (aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG) {
+            throw new IllegalArgumentException(aop + " is not supported in batch mode");
+        }
+        if (child.getTupleDesc().getFieldType(afield) != Type.INT_TYPE && aop != Aggregator.Op.COUNT) {
+            throw new IllegalArgumentException("only COUNT is supported on string columns");
+        }
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        TupleDesc childtd = child.getTupleDesc();
+        if (gfield == Aggregator.NO_GROUPING) {
+            this.td = new TupleDesc(new Type[] { Type.INT_TYPE },
+                    new String[] { childtd.getFieldName(afield) });
+        } else {
+            this.td = new TupleDesc(new Type[] { childtd.getFieldType(gfield), Type.INT_TYPE },
+                    new String[] { childtd.getFieldName(gfield), childtd.getFieldName(afield) });
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.child.open();
+        this.groupIndex = new HashMap<Object, Integer>();
+        this.groupKeys = new Object[16];
+        this.values = new int[16];
+        this.counts = new int[16];
+        this.numGroups = 0;
+        TupleBatch batch;
+        while ((batch = this.child.nextBatch()) != null) {
+            mergeBatch(batch);
+        }
+        this.nextGroup = 0;
+    }
+
+    // Helper method that folds the selected rows of a batch into the groups
+    private void mergeBatch(TupleBatch batch) {
+        int[] column = batch.getIntColumn(this.afield);
+        for (int i = 0; i < batch.size(); i++) {
+            int row = batch.row(i);
+            int group = groupFor(this.gfield == Aggregator.NO_GROUPING
+                    ? Boolean.TRUE : batch.getKey(this.gfield, row));
+            int value = column == null ? 0 : column[row];
+            boolean first = this.counts[group] == 0;
+            switch (this.aop) {
+            case MIN:
+                this.values[group] = first ? value : Math.min(this.values[group], value);
+                break;
+            case MAX:
+                this.values[group] = first ? value : Math.max(this.values[group], value);
+                break;
+            case SUM:
+            case AVG:
+                this.values[group] += value;
+                break;
+            case COUNT:
+                this.values[group]++;
+                break;
+            default:
+                break;
+            }
+            this.counts[group]++;
+        }
+    }
+
+    // Helper method that returns the index of a group, adding it if needed
+    private int groupFor(Object key) {
+        Integer index = this.groupIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        if (this.numGroups == this.values.length) {
+            int newLength = this.values.length * 2;
+            this.groupKeys = Arrays.copyOf(this.groupKeys, newLength);
+            this.values = Arrays.copyOf(this.values, newLength);
+            this.counts = Arrays.copyOf(this.counts, newLength);
+        }
+        int group = this.numGroups++;
+        this.groupKeys[group] = key;
+        this.groupIndex.put(key, group);
+        return group;
+    }
+
+    /**
+     * Returns the results of the aggregate, one row per group.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (this.nextGroup >= this.numGroups) {
+            return null;
+        }
+        TupleBatch batch = new TupleBatch(this.td);
+        int aggColumn = this.gfield == Aggregator.NO_GROUPING ? 0 : 1;
+        while (!batch.isFull() && this.nextGroup < this.numGroups) {
+            int group = this.nextGroup++;
+            int row = batch.addRow();
+            if (aggColumn == 1) {
+                Object key = this.groupKeys[group];
+                if (key instanceof Integer) {
+                    batch.getIntColumn(0)[row] = (Integer) key;
+                } else {
+                    batch.getStringColumn(0)[row] = (String) key;
+                }
+            }
+            int value = this.values[group];
+            if (this.aop == Aggregator.Op.AVG) {
+                value = value / this.counts[group];
+            }
+            batch.getIntColumn(aggColumn)[row] = value;
+        }
+        return batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.nextGroup = 0;
+    }
+
+    public void close() {
+        this.child.close();
+        this.groupIndex = null;
+        this.groupKeys = null;
+        this.values = null;
+        this.counts = null;
+        this.numGroups = 0;
+    }
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+/**
+ * BatchFilter is the batch mode version of {@link Filter}. It evaluates the
+ * predicate over a whole column at a time and narrows the selection vector
+ * of each batch instead of copying the rows that pass.
+ */
+public class BatchFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate p;
+    private BatchIterator child;
+
+    /**
+     * Constructor accepts a predicate to apply and a child operator to read
+     * batches to filter from.
+     */
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return this.p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.child.open();
+    }
+
+    public void close() {
+        this.child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child.rewind();
+    }
+
+    /**
+     * Returns the next batch of the child with only the rows that pass the
+     * predicate selected. Batches where no row passes are skipped.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        while ((batch = this.child.nextBatch()) != null) {
+            int[] selection = new int[batch.size()];
+            int numSelected;
+            int field = this.p.getField();
+            if (batch.getIntColumn(field) != null && this.p.getOperand() instanceof IntField) {
+                numSelected = filterInts(batch, batch.getIntColumn(field),
+                        ((IntField) this.p.getOperand()).getValue(), selection);
+            } else {
+                numSelected = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    int row = batch.row(i);
+                    if (batch.getField(field, row).compare(this.p.getOp(), this.p.getOperand())) {
+                        selection[numSelected++] = row;
+                    }
+                }
+            }
+            if (numSelected > 0) {
+                batch.setSelection(selection, numSelected);
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    // Helper method that compares an int column to a constant, with the
+    // switch on the operator outside the loop over the rows
+    private int filterInts(TupleBatch batch, int[] column, int operand, int[] selection) {
+        int n = 0;
+        int size = batch.size();
+        switch (this.p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            for (int i = 0; i < size; i++) {
+                int row = batch.row(i);
+                if (column[row] == operand) selection[n++] = row;
+            }
+            break;
+        case NOT_EQUALS:
+            for (int i = 0; i < size; i++) {
+                int row = batch.row(i);
+                if (column[row] != operand) selection[n++] = row;
+            }
+            break;
+        case GREATER_THAN:
+            for (int i = 0; i < size; i++) {
+                int row = batch.row(i);
+                if (column[row] > operand) selection[n++] = row;
+            }
+            break;
+        case GREATER_THAN_OR_EQ:
+            for (int i = 0; i < size; i++) {
+                int row = batch.row(i);
+                if (column[row] >= operand) selection[n++] = row;
+            }
+            break;
+        case LESS_THAN:
+            for (int i = 0; i < size; i++) {
+                int row = batch.row(i);
+                if (column[row] < operand) selection[n++] = row;
+            }
+            break;
+        case LESS_THAN_OR_EQ:
+            for (int i = 0; i < size; i++) {
+                int row = batch.row(i);
+                if (column[row] <= operand) selection[n++] = row;
+            }
+            break;
+        }
+        return n;
+    }
+}
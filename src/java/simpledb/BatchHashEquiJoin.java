@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BatchHashEquiJoin is the batch mode version of {@link HashEquiJoin}. It
+ * keeps the batches of the left child and hashes their rows on the join
+ * column, then probes with the batches of the right child and copies
+ * matching rows column by column into output batches. As in HashEquiJoin,
+ * each output row is the left row followed by the right row.
+ */
+public class BatchHashEquiJoin implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Rows of the left child with the same join key, each stored as the
+     * batch number in the high and the physical row in the low 32 bits
+     */
+    private static class Matches {
+        long[] refs = new long[2];
+        int size = 0;
+
+        void add(long ref) {
+            if (this.size == this.refs.length) {
+                this.refs = Arrays.copyOf(this.refs, this.size * 2);
+            }
+            this.refs[this.size++] = ref;
+        }
+    }
+
+    private final JoinPredicate pred;
+    private BatchIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int numFields1;
+
+    private transient ArrayList<TupleBatch> buildBatches;
+    private transient Map<Object, Matches> map;
+
+    /**
+     * The right batch being probed, the selected row reached in it, and the
+     * matches of that row still to be returned
+     */
+    private transient TupleBatch probe;
+    private transient int probeIndex;
+    private transient Matches matches;
+    private transient int matchIndex;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, which must be an equality.
+     */
+    public BatchHashEquiJoin(JoinPredicate p, BatchIterator child1, BatchIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("hash joins need an equality predicate");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.numFields1 = child1.getTupleDesc().numFields();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.comboTD;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.child1.open();
+        this.child2.open();
+        this.buildBatches = new ArrayList<TupleBatch>();
+        this.map = new HashMap<Object, Matches>();
+        TupleBatch batch;
+        while ((batch = this.child1.nextBatch()) != null) {
+            long batchNo = this.buildBatches.size();
+            this.buildBatches.add(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                int row = batch.row(i);
+                Object key = batch.getKey(this.pred.getField1(), row);
+                Matches m = this.map.get(key);
+                if (m == null) {
+                    m = new Matches();
+                    this.map.put(key, m);
+                }
+                m.add((batchNo << 32) | row);
+            }
+        }
+        this.probe = null;
+        this.matches = null;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch out = new TupleBatch(this.comboTD);
+        while (!out.isFull()) {
+            if (this.matches != null && this.matchIndex < this.matches.size) {
+                long ref = this.matches.refs[this.matchIndex++];
+                TupleBatch left = this.buildBatches.get((int) (ref >>> 32));
+                int row = out.addRow();
+                out.copyColumns(left, (int) ref, row, 0);
+                out.copyColumns(this.probe, this.probe.row(this.probeIndex - 1), row, this.numFields1);
+                continue;
+            }
+            if (this.probe == null || this.probeIndex >= this.probe.size()) {
+                this.probe = this.child2.nextBatch();
+                this.probeIndex = 0;
+                this.matches = null;
+                if (this.probe == null) {
+                    break;
+                }
+                continue;
+            }
+            int row = this.probe.row(this.probeIndex++);
+            this.matches = this.map.get(this.probe.getKey(this.pred.getField2(), row));
+            this.matchIndex = 0;
+        }
+        return out.getNumRows() == 0 ? null : out;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child2.rewind();
+        this.probe = null;
+        this.matches = null;
+    }
+
+    public void close() {
+        this.child2.close();
+        this.child1.close();
+        this.buildBatches = null;
+        this.map = null;
+        this.probe = null;
+        this.matches = null;
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb;
+import java.io.Serializable;
+
+/**
+ * BatchIterator is the iterator interface of operators that run in batch
+ * mode: instead of one Tuple per call they return a {@link TupleBatch} of up
+ * to a thousand or so rows in column order, so the per-row cost of calls
+ * and Field objects is paid once per batch. Like DbIterator, an open method
+ * should open any children and a close method should close them.
+ * <p>
+ * {@link BatchToRow} and {@link RowToBatch} connect batch operators to
+ * ordinary DbIterators; {@link Vectorizer} rewrites a query plan to use
+ * batch operators where it can.
+ */
+public interface BatchIterator extends Serializable {
+  /**
+   * Opens the iterator. This must be called before any of the other methods.
+   * @throws DbException when there are problems opening/accessing the database.
+   */
+  public void open()
+      throws DbException, TransactionAbortedException;
+
+  /**
+   * Returns the next batch of rows. Batches may have no selected rows.
+   *
+   * @return the next batch, or null if there are no more rows.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+  /**
+   * Resets the iterator to the start.
+   * @throws DbException when rewind is unsupported.
+   */
+  public void rewind() throws DbException, TransactionAbortedException;
+
+  /**
+   * Returns the TupleDesc of the batches returned by this iterator.
+   */
+  public TupleDesc getTupleDesc();
+
+  /**
+   * Closes the iterator.
+   */
+  public void close();
+
+}
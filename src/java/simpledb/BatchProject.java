@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * BatchProject is the batch mode version of {@link Project}. Output batches
+ * share the column arrays of the child's batches, so projecting costs the
+ * same no matter how many rows a batch has.
+ */
+public class BatchProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private final TupleDesc td;
+    private final int[] outFieldIds;
+
+    /**
+     * Constructor accepts a child operator to read batches from and a list
+     * of fields in the output rows. The output fields keep the types they
+     * have in the child.
+     *
+     * @param fieldList
+     *            The ids of the fields child's tupleDesc to project out
+     * @param child
+     *            The child operator
+     */
+    public BatchProject(ArrayList<Integer> fieldList, BatchIterator child) {
+        this.child = child;
+        this.outFieldIds = new int[fieldList.size()];
+        Type[] types = new Type[fieldList.size()];
+        String[] fieldAr = new String[fieldList.size()];
+        TupleDesc childtd = child.getTupleDesc();
+        for (int i = 0; i < fieldAr.length; i++) {
+            this.outFieldIds[i] = fieldList.get(i);
+            types[i] = childtd.getFieldType(fieldList.get(i));
+            fieldAr[i] = childtd.getFieldName(fieldList.get(i));
+        }
+        this.td = new TupleDesc(types, fieldAr);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.child.open();
+    }
+
+    public void close() {
+        this.child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child.rewind();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = this.child.nextBatch();
+        if (batch == null) {
+            return null;
+        }
+        return batch.project(this.outFieldIds, this.td);
+    }
+}
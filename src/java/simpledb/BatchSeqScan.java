@@ -0,0 +1,104 @@
+package simpledb;
+
+/**
+ * BatchSeqScan is the batch mode version of {@link SeqScan} for tables stored
+ * in a HeapFile. It copies column values straight from the page bytes into
+ * TupleBatches without creating a Tuple per row.
+ */
+public class BatchSeqScan implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final TupleDesc td;
+    private final int batchSize;
+
+    /**
+     * Number of pages of the table when the scan was opened
+     */
+    private int numPages;
+
+    /**
+     * The page being read, or numPages when the scan is done
+     */
+    private int currentPageNumber;
+
+    /**
+     * The slot of the current page to continue from
+     */
+    private int currentSlot;
+
+    private boolean open;
+
+    /**
+     * Creates a batch scan over the specified table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile.
+     * @param tableAlias
+     *            the alias of this table, used to prefix the field names as
+     *            in SeqScan
+     */
+    public BatchSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    public BatchSeqScan(TransactionId tid, int tableid, String tableAlias, int batchSize) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("batch scans need a HeapFile");
+        }
+        this.tid = tid;
+        this.tableid = tableid;
+        this.td = new SeqScan(tid, tableid, tableAlias).getTupleDesc();
+        this.batchSize = batchSize;
+        this.open = false;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(this.tableid)).numPages();
+        this.currentPageNumber = 0;
+        this.currentSlot = 0;
+        this.open = true;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open) {
+            throw new IllegalStateException("scan not open");
+        }
+        if (this.currentPageNumber >= this.numPages) {
+            return null;
+        }
+        TupleBatch batch = new TupleBatch(this.td, this.batchSize);
+        BufferPool bufferPool = Database.getBufferPool();
+        while (!batch.isFull() && this.currentPageNumber < this.numPages) {
+            HeapPageId pid = new HeapPageId(this.tableid, this.currentPageNumber);
+            // keep the page in the pool only while copying out of it
+            HeapPage page = (HeapPage) bufferPool.pinPage(this.tid, pid, Permissions.READ_ONLY);
+            try {
+                this.currentSlot = page.fillBatch(batch, this.currentSlot);
+                if (this.currentSlot >= page.getNumSlots()) {
+                    this.currentPageNumber++;
+                    this.currentSlot = 0;
+                }
+            } finally {
+                bufferPool.unpinPage(this.tid, pid);
+            }
+        }
+        return batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void close() {
+        this.open = false;
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * BatchToRow turns the batches of a {@link BatchIterator} back into single
+ * tuples, so a batch mode plan can be used wherever a DbIterator is
+ * expected.
+ */
+public class BatchToRow extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private transient TupleBatch batch;
+    private transient int index;
+
+    public BatchToRow(BatchIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return the batch mode plan this operator reads from
+     */
+    public BatchIterator getBatchIterator() {
+        return this.child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.child.open();
+        this.batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        this.child.close();
+        this.batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child.rewind();
+        this.batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (this.batch == null || this.index >= this.batch.size()) {
+            this.batch = this.child.nextBatch();
+            this.index = 0;
+            if (this.batch == null) {
+                return null;
+            }
+        }
+        return this.batch.getTuple(this.index++);
+    }
+
+    /**
+     * The batch mode plan is not made of DbIterators, so this operator has
+     * no children as far as row mode code is concerned.
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+    }
+}
@@ -2,9 +2,16 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,6 +21,18 @@ import java.util.Map;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a concurrent map of frames, so lookups of cached pages
+ * never block. Misses are serialized per lock stripe, so two threads never
+ * load the same page twice while loads of unrelated pages proceed in
+ * parallel. Eviction is serialized on its own lock and only holds the stripe
+ * of the page it removes.
+ * <p>
+ * Read-only transactions started with {@link #beginSnapshot} take no locks.
+ * They read each page as it was committed when they started, from the
+ * before image of the cached page or from the older versions kept in a
+ * {@link VersionStore}, so they never wait for writers nor make writers
+ * wait.
  * 
  * @Threadsafe, all fields are final
  */
@@ -29,19 +48,130 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
     
     /**
-     * Collection of pages cached in BufferPool
+     * Number of locks that misses on different pages are spread over
+     */
+    private static final int NUM_STRIPES = 64;
+    
+    /**
+     * Number of background threads that load pages for read-ahead
      */
-    private Map<PageId, Page> cachedPages;
+    private static final int PREFETCH_THREADS = 2;
+    
+    /**
+     * Threads that load prefetched pages, shared by all buffer pools
+     */
+    private static ExecutorService prefetcher = null;
+    
+    /**
+     * A slot of the buffer pool holding one cached page. Frames with a
+     * positive pin count are never chosen for eviction.
+     */
+    private static class Frame {
+    	private volatile Page page;
+    	private final AtomicInteger pinCount;
+    	private final AtomicBoolean prefetched;
+    	
+    	private Frame(Page page) {
+    		this.page = page;
+    		this.pinCount = new AtomicInteger(0);
+    		this.prefetched = new AtomicBoolean(false);
+    	}
+    }
+    
+    /**
+     * Frames of the pages cached in BufferPool
+     */
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    
+    /**
+     * Locks guarding loads, replacements and removals of frames; a page is
+     * guarded by the stripe its id hashes to
+     */
+    private final Object[] stripes;
+    
+    /**
+     * Serializes eviction so that concurrent misses do not overfill the pool
+     */
+    private final Object evictionLock;
+    
+    /**
+     * Number of frames that are cached or reserved for a page being loaded
+     */
+    private final AtomicInteger usedFrames;
+    
+    /**
+     * Pages pinned by each transaction, one entry per pin
+     */
+    private final ConcurrentHashMap<TransactionId, List<PageId>> pinnedPages;
+    
+    /**
+     * Committing transactions whose pages {@link #commitPages} already
+     * committed
+     */
+    private final ConcurrentHashMap<TransactionId, Boolean> committedPages;
     
     /**
      * Number of pages that BufferPool can hold
      */
-    private int numPages;
+    private final int numPages;
     
     /**
      * The lock manager used to keep track and grant locks
      */
     private LockManager lockManager;
+    
+    /**
+     * The committed page versions read by read-only transactions
+     */
+    private final VersionStore versionStore;
+    
+    /**
+     * The policy that picks which page to evict when the pool is full
+     */
+    private EvictionPolicy evictionPolicy;
+    
+    /**
+     * Decides which cached pages the eviction policy may choose
+     */
+    private EvictionPolicy.Evictable evictable;
+    
+    /**
+     * Number of getPage calls that found the page in the pool
+     */
+    private LongAdder hitCount;
+    
+    /**
+     * Number of getPage calls that had to read the page from disk
+     */
+    private LongAdder missCount;
+    
+    /**
+     * Maximum number of pages a sequential scan may read ahead, 0 if
+     * read-ahead is disabled
+     */
+    private volatile int readAheadPages;
+    
+    /**
+     * Pages that read-ahead was asked to load and that no scan has used yet
+     */
+    private final ConcurrentHashMap<PageId, Boolean> pendingPrefetches;
+    
+    /**
+     * Number of pages read-ahead was asked to load
+     */
+    private LongAdder prefetchIssuedCount;
+    
+    /**
+     * Number of getPage calls served by a page that read-ahead loaded
+     */
+    private LongAdder prefetchHitCount;
+    
+    /**
+     * Number of pages read-ahead was asked to load that did not serve a
+     * getPage call, because getPage needed them before they were loaded or
+     * they were evicted before they were used
+     */
+    private LongAdder prefetchMissCount;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -49,9 +179,44 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-    	this.cachedPages = new LinkedHashMap<PageId, Page>();
+    	this(numPages, new ClockEvictionPolicy());
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts pages
+     * according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the policy used to choose pages to evict
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
+    	this.frames = new ConcurrentHashMap<PageId, Frame>();
+    	this.stripes = new Object[NUM_STRIPES];
+    	for (int i = 0; i < NUM_STRIPES; i++) {
+    		this.stripes[i] = new Object();
+    	}
+    	this.evictionLock = new Object();
+    	this.usedFrames = new AtomicInteger(0);
+    	this.pinnedPages = new ConcurrentHashMap<TransactionId, List<PageId>>();
+    	this.committedPages = new ConcurrentHashMap<TransactionId, Boolean>();
     	this.numPages = numPages;
     	this.lockManager = new LockManager();
+    	this.versionStore = new VersionStore();
+    	this.evictionPolicy = evictionPolicy;
+    	this.evictable = new EvictionPolicy.Evictable() {
+    		public boolean canEvict(PageId pid) {
+    			// NO STEAL: dirty pages stay in the pool until their transaction completes
+    			Frame frame = frames.get(pid);
+    			return frame != null && frame.pinCount.get() == 0 && frame.page.isDirty() == null;
+    		}
+    	};
+    	this.hitCount = new LongAdder();
+    	this.missCount = new LongAdder();
+    	this.readAheadPages = 0;
+    	this.pendingPrefetches = new ConcurrentHashMap<PageId, Boolean>();
+    	this.prefetchIssuedCount = new LongAdder();
+    	this.prefetchHitCount = new LongAdder();
+    	this.prefetchMissCount = new LongAdder();
     }
     
     public static int getPageSize() {
@@ -85,8 +250,142 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-    	
-    	boolean acquiredLock = this.lockManager.acquireLock(tid, pid, perm);
+    	return fetchPage(tid, pid, LockMode.of(perm), false);
+    }
+    
+    /**
+     * Retrieve the specified page like {@link #getPage}, locking it in the
+     * given mode. In the intention modes IS and IX the transaction may only
+     * read or change the records it locks with {@link #lockRecord}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param mode the mode to lock the page in
+     */
+    public Page getPage(TransactionId tid, PageId pid, LockMode mode)
+        throws TransactionAbortedException, DbException {
+    	return fetchPage(tid, pid, mode, false);
+    }
+    
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin its frame, so
+     * the page cannot be evicted until it is unpinned. Pages stay pinned until
+     * {@link #unpinPage} is called once per pin, or until the transaction
+     * completes.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	return pinPage(tid, pid, LockMode.of(perm));
+    }
+    
+    /**
+     * Retrieve and pin the specified page like {@link #pinPage}, locking it
+     * in the given mode; see {@link #getPage(TransactionId, PageId, LockMode)}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param mode the mode to lock the page in
+     */
+    public Page pinPage(TransactionId tid, PageId pid, LockMode mode)
+        throws TransactionAbortedException, DbException {
+    	Page page = fetchPage(tid, pid, mode, true);
+    	List<PageId> pins = this.pinnedPages.get(tid);
+    	if (pins == null) {
+    		this.pinnedPages.putIfAbsent(tid, new ArrayList<PageId>());
+    		pins = this.pinnedPages.get(tid);
+    	}
+    	synchronized (pins) {
+    		pins.add(pid);
+    	}
+    	return page;
+    }
+    
+    /**
+     * Releases one pin that the transaction holds on the specified page.
+     * Does nothing if the transaction does not hold a pin on the page.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+    	List<PageId> pins = this.pinnedPages.get(tid);
+    	if (pins == null) {
+    		return;
+    	}
+    	synchronized (pins) {
+    		if (!pins.remove(pid)) {
+    			return;
+    		}
+    	}
+    	unpinFrame(pid);
+    }
+    
+    /** Return true if any transaction has the specified page pinned */
+    public boolean isPinned(PageId pid) {
+    	Frame frame = this.frames.get(pid);
+    	return frame != null && frame.pinCount.get() > 0;
+    }
+    
+    /**
+     * Acquires a lock on the specified page without reading it into the
+     * pool. Used for pages written straight to disk, e.g. by BulkLoader, so
+     * other transactions cannot read them before the writer completes.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the requested permissions on the page
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+    	lockPage(tid, pid, LockMode.of(perm));
+    }
+    
+    /**
+     * Acquires a lock on the specified page in the given mode, and the
+     * intention lock on its table, without reading the page into the pool.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param mode the mode to lock the page in
+     */
+    public void lockPage(TransactionId tid, PageId pid, LockMode mode)
+        throws TransactionAbortedException {
+    	checkAcquired(tid, this.lockManager.acquireLock(tid, pid, mode));
+    }
+    
+    /**
+     * Acquires a lock on the specified record, and the intention locks on
+     * its page and table. Transactions that change a record lock it
+     * exclusively, so others can change other records on the same page.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the ID of the record to lock
+     * @param perm the requested permissions on the record
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+    	checkAcquired(tid, this.lockManager.acquireLock(tid, rid, perm));
+    }
+    
+    /**
+     * Acquires a lock on a whole table in the given mode.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the ID of the table to lock
+     * @param mode the mode to lock the table in
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+        throws TransactionAbortedException {
+    	checkAcquired(tid, this.lockManager.acquireTableLock(tid, tableId, mode));
+    }
+    
+    // Helper method that aborts the transaction if it was denied a lock
+    private void checkAcquired(TransactionId tid, boolean acquiredLock)
+        throws TransactionAbortedException {
     	if (!acquiredLock) {
     		try {
 				this.transactionComplete(tid, false);
@@ -95,19 +394,406 @@ public class BufferPool {
 			}
     		throw new TransactionAbortedException();
     	}
-		
-    	if (this.cachedPages.containsKey(pid)) {
-    		return this.cachedPages.get(pid);
+    }
+    
+    /**
+     * Makes tid a read-only transaction reading a snapshot of the committed
+     * state of the database as of now. It takes no locks, and getPage returns
+     * the pages as they were committed when the snapshot was taken; asking
+     * for a page with write permissions fails. The snapshot ends when the
+     * transaction completes.
+     *
+     * @param tid the ID of the read-only transaction
+     * @return the commit timestamp of the snapshot
+     */
+    public long beginSnapshot(TransactionId tid) {
+    	return this.versionStore.beginSnapshot(tid);
+    }
+    
+    /**
+     * Records that a transaction is appending a page to the end of its file
+     * without going through the pool, e.g. with HeapFile.appendPages, so
+     * read-only transactions read it as empty until the transaction
+     * commits. Must be called before the page is written.
+     *
+     * @param tid the ID of the appending transaction
+     * @param pid the ID of the appended page
+     */
+    public void registerAppend(TransactionId tid, PageId pid) {
+    	this.versionStore.addAppend(tid, pid);
+    }
+    
+    // Helper method that returns an empty page, which is what snapshots read
+    // for pages appended after they started
+    private Page emptyPage(PageId pid) throws DbException {
+    	try {
+    		return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+    	} catch (IOException e) {
+    		throw new DbException("could not create empty page " + pid + ": " + e.getMessage());
+    	}
+    }
+    
+    /**
+     * @return the store of the page versions read by read-only transactions
+     */
+    public VersionStore getVersionStore() {
+    	return this.versionStore;
+    }
+    
+    // Helper method that implements getPage and pinPage
+    private Page fetchPage(TransactionId tid, PageId pid, LockMode mode, boolean pin)
+        throws TransactionAbortedException, DbException {
+    	long snapshot = this.versionStore.getSnapshot(tid);
+    	if (snapshot < 0) {
+    		lockPage(tid, pid, mode);
+    		return loadPage(pid, pin);
+    	}
+    	if (mode != LockMode.S && mode != LockMode.IS) {
+    		throw new DbException("read-only transaction " + tid.getId() + " cannot change page " + pid);
+    	}
+    	// the appender of a page removes it only after keeping its empty
+    	// version, so checking in this order never misses both
+    	if (this.versionStore.isPendingAppend(pid)) {
+    		loadPage(pid, pin);
+    		return emptyPage(pid);
+    	}
+    	Page page = loadPage(pid, pin);
+    	// commits install the page and keep the image it replaces while
+    	// holding the page's monitor
+    	synchronized (page) {
+    		Page version = this.versionStore.getVersion(pid, snapshot);
+    		return version != null ? version : page.getBeforeImage();
+    	}
+    }
+    
+    // Helper method that returns the cached page, reading it into the pool
+    // if it is not cached, and pins its frame if pin is set
+    private Page loadPage(PageId pid, boolean pin) throws DbException {
+    	Frame frame = this.frames.get(pid);
+    	while (frame != null) {
+    		if (pin) {
+    			frame.pinCount.incrementAndGet();
+    			// eviction checks the pin count before removing a frame, so
+    			// the frame is safe once it is still mapped after pinning
+    			if (this.frames.get(pid) != frame) {
+    				frame.pinCount.decrementAndGet();
+    				frame = this.frames.get(pid);
+    				continue;
+    			}
+    		}
+    		this.hitCount.increment();
+    		recordPrefetchHit(frame, pid);
+    		recordHit(pid);
+    		return frame.page;
     	}
     	
-        while (this.cachedPages.size() >= this.numPages) {
-        	evictPage();
-        }
-        
-        DbFile fileOfPage = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = fileOfPage.readPage(pid);
-        this.cachedPages.put(page.getId(), page);
-        return page;
+    	reserveFrame();
+    	synchronized (stripeFor(pid)) {
+    		frame = this.frames.get(pid);
+    		if (frame != null) {
+    			// another thread loaded the page while we waited for the stripe
+    			this.usedFrames.decrementAndGet();
+    			if (pin) {
+    				frame.pinCount.incrementAndGet();
+    			}
+    			this.hitCount.increment();
+    			recordPrefetchHit(frame, pid);
+    			this.evictionPolicy.recordAccess(pid);
+    			return frame.page;
+    		}
+    		
+    		this.missCount.increment();
+    		if (this.pendingPrefetches.remove(pid) != null) {
+    			this.prefetchMissCount.increment();
+    		}
+    		Page page;
+    		try {
+    			DbFile fileOfPage = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			page = fileOfPage.readPage(pid);
+    		} catch (RuntimeException e) {
+    			this.usedFrames.decrementAndGet();
+    			throw e;
+    		}
+    		if (page == null) {
+    			this.usedFrames.decrementAndGet();
+    			throw new DbException("could not read page " + pid);
+    		}
+    		frame = new Frame(page);
+    		if (pin) {
+    			frame.pinCount.set(1);
+    		}
+    		this.frames.put(pid, frame);
+    		this.evictionPolicy.recordAccess(pid);
+    		return page;
+    	}
+    }
+    
+    // Helper method to tell the eviction policy about a hit. If the frame was
+    // evicted after the lookup, the access must not leave the policy tracking
+    // a page that is no longer cached.
+    private void recordHit(PageId pid) {
+    	this.evictionPolicy.recordAccess(pid);
+    	if (!this.frames.containsKey(pid)) {
+    		synchronized (stripeFor(pid)) {
+    			if (!this.frames.containsKey(pid)) {
+    				this.evictionPolicy.recordRemoval(pid);
+    			}
+    		}
+    	}
+    }
+    
+    // Helper method to count a demand access to a page that read-ahead loaded
+    private void recordPrefetchHit(Frame frame, PageId pid) {
+    	if (frame.prefetched.get() && frame.prefetched.compareAndSet(true, false)) {
+    		this.pendingPrefetches.remove(pid);
+    		this.prefetchHitCount.increment();
+    	}
+    }
+    
+    /**
+     * Asks a background thread to load the specified page into the pool, so
+     * that a later {@link #getPage} finds it cached. No locks are acquired;
+     * the transaction that reads the page still locks it through getPage.
+     * Pages that are already cached, or that cannot be loaded because no page
+     * can be evicted, are skipped.
+     *
+     * @param pid the ID of the page to load
+     */
+    public void prefetchPage(final PageId pid) {
+    	if (this.frames.containsKey(pid) || this.pendingPrefetches.putIfAbsent(pid, Boolean.TRUE) != null) {
+    		return;
+    	}
+    	this.prefetchIssuedCount.increment();
+    	getPrefetcher().execute(new Runnable() {
+    		public void run() {
+    			loadPrefetchedPage(pid);
+    		}
+    	});
+    }
+    
+    // Helper method run by the prefetch threads. The page stays pending only
+    // if it is loaded here; every other exit forgets it, so it can be
+    // prefetched again once it is evicted.
+    private void loadPrefetchedPage(PageId pid) {
+    	if (this.frames.containsKey(pid) || !this.pendingPrefetches.containsKey(pid)) {
+    		this.pendingPrefetches.remove(pid);
+    		return;
+    	}
+    	try {
+    		reserveFrame();
+    	} catch (DbException e) {
+    		// every cached page is pinned or dirty; reading ahead would not help
+    		this.pendingPrefetches.remove(pid);
+    		return;
+    	}
+    	synchronized (stripeFor(pid)) {
+    		// a demand miss may have loaded the page, or given up on the prefetch
+    		if (this.frames.containsKey(pid) || !this.pendingPrefetches.containsKey(pid)) {
+    			this.usedFrames.decrementAndGet();
+    			this.pendingPrefetches.remove(pid);
+    			return;
+    		}
+    		Page page = null;
+    		try {
+    			page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    		} catch (RuntimeException e) {
+    			// the page is past the end of the file or the table is gone
+    		}
+    		if (page == null) {
+    			this.usedFrames.decrementAndGet();
+    			this.pendingPrefetches.remove(pid);
+    			return;
+    		}
+    		Frame frame = new Frame(page);
+    		frame.prefetched.set(true);
+    		this.frames.put(pid, frame);
+    		this.evictionPolicy.recordAccess(pid);
+    	}
+    }
+    
+    private static synchronized ExecutorService getPrefetcher() {
+    	if (prefetcher == null) {
+    		prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread thread = new Thread(r, "simpledb-prefetch");
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    	}
+    	return prefetcher;
+    }
+    
+    // Helper method to drop one pin from the frame of pid
+    private void unpinFrame(PageId pid) {
+    	Frame frame = this.frames.get(pid);
+    	if (frame == null) {
+    		return;
+    	}
+    	int pins = frame.pinCount.get();
+    	while (pins > 0 && !frame.pinCount.compareAndSet(pins, pins - 1)) {
+    		pins = frame.pinCount.get();
+    	}
+    }
+    
+    // Helper method returning the lock that guards the frame of pid
+    private Object stripeFor(PageId pid) {
+    	return this.stripes[(pid.hashCode() & 0x7fffffff) % NUM_STRIPES];
+    }
+    
+    // Helper method to claim a free frame, evicting pages until one is free.
+    // Must not be called while holding a stripe lock.
+    private void reserveFrame() throws DbException {
+    	synchronized (this.evictionLock) {
+    		while (this.usedFrames.get() >= this.numPages) {
+    			evictPage();
+    		}
+    		this.usedFrames.incrementAndGet();
+    	}
+    }
+    
+    // Helper method to put a dirtied page into the pool, replacing any cached
+    // version of the page
+    private void cachePage(Page page) throws DbException {
+    	PageId pid = page.getId();
+    	Frame frame = this.frames.get(pid);
+    	if (frame != null) {
+    		synchronized (stripeFor(pid)) {
+    			frame = this.frames.get(pid);
+    			if (frame != null) {
+    				frame.page = page;
+    				this.evictionPolicy.recordAccess(pid);
+    				return;
+    			}
+    		}
+    	}
+    	
+    	reserveFrame();
+    	synchronized (stripeFor(pid)) {
+    		frame = this.frames.get(pid);
+    		if (frame != null) {
+    			this.usedFrames.decrementAndGet();
+    			frame.page = page;
+    		} else {
+    			this.frames.put(pid, new Frame(page));
+    		}
+    		this.evictionPolicy.recordAccess(pid);
+    	}
+    }
+    
+    /**
+     * @return the policy this buffer pool uses to choose pages to evict
+     */
+    public EvictionPolicy getEvictionPolicy() {
+    	return this.evictionPolicy;
+    }
+    
+    /**
+     * @return the lock manager of this buffer pool, e.g. for its deadlock
+     *         and lock wait statistics
+     */
+    public LockManager getLockManager() {
+    	return this.lockManager;
+    }
+    
+    /**
+     * @return the number of getPage calls that found the page in the pool
+     */
+    public long getHitCount() {
+    	return this.hitCount.sum();
+    }
+    
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+    	return this.missCount.sum();
+    }
+    
+    /**
+     * @return the number of pages this buffer pool can hold
+     */
+    public int getNumPages() {
+    	return this.numPages;
+    }
+    
+    /** Return true if the specified page is cached in the buffer pool */
+    public boolean isCached(PageId pid) {
+    	return this.frames.containsKey(pid);
+    }
+    
+    /**
+     * @return true if read-ahead was asked to load the specified page and
+     *         the page has neither been used nor evicted since
+     */
+    public boolean isPrefetchPending(PageId pid) {
+    	return this.pendingPrefetches.containsKey(pid);
+    }
+    
+    /**
+     * @return the maximum number of pages a sequential scan may read ahead,
+     *         0 if read-ahead is disabled
+     */
+    public int getReadAheadPages() {
+    	return this.readAheadPages;
+    }
+    
+    /**
+     * Enables read-ahead for sequential scans. Scans start with a small
+     * window and grow it up to the given number of pages while they keep
+     * catching up with the prefetched pages.
+     *
+     * @param readAheadPages maximum number of pages to read ahead, 0 to
+     *        disable read-ahead
+     */
+    public void setReadAheadPages(int readAheadPages) {
+    	if (readAheadPages < 0) {
+    		throw new IllegalArgumentException("read-ahead must not be negative: " + readAheadPages);
+    	}
+    	this.readAheadPages = readAheadPages;
+    }
+    
+    /**
+     * @return the number of pages read-ahead was asked to load
+     */
+    public long getPrefetchIssuedCount() {
+    	return this.prefetchIssuedCount.sum();
+    }
+    
+    /**
+     * @return the number of getPage calls served by a page read-ahead loaded
+     */
+    public long getPrefetchHitCount() {
+    	return this.prefetchHitCount.sum();
+    }
+    
+    /**
+     * @return the number of pages read-ahead was asked to load that were
+     *         needed before they were loaded or evicted before they were used
+     */
+    public long getPrefetchMissCount() {
+    	return this.prefetchMissCount.sum();
+    }
+    
+    /**
+     * @return the fraction of getPage calls that were served from the pool,
+     *         or 0 if no pages have been requested yet
+     */
+    public double getHitRate() {
+    	long hits = this.hitCount.sum();
+    	long total = hits + this.missCount.sum();
+    	return total == 0 ? 0.0 : (double) hits / total;
+    }
+    
+    /**
+     * Resets the hit and miss counters, e.g. before measuring a workload.
+     */
+    public void resetStats() {
+    	this.hitCount.reset();
+    	this.missCount.reset();
+    	this.prefetchIssuedCount.reset();
+    	this.prefetchHitCount.reset();
+    	this.prefetchMissCount.reset();
     }
 
     /**
@@ -139,51 +825,113 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. A commit installs the transaction's changes with
+     * {@link #commitPages} unless that was already done, but does not force
+     * the log; {@link Transaction#commit} forces it with the COMMIT record.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
+    	this.versionStore.endSnapshot(tid);
     	if (commit) {
-            for (PageId currPageId : this.cachedPages.keySet()) {
-            	Page currPage = this.cachedPages.get(currPageId);
-            	if (currPage != null) {
-    	        	TransactionId currPageTid = currPage.isDirty();
-    	        	if (currPageTid != null && currPageTid.equals(tid)) {
-						Database.getLogFile().logWrite(tid, currPage.getBeforeImage(), currPage);
-						Database.getLogFile().force();
-						currPage.setBeforeImage();
-    	        	}
-            	}
-            }
-    	} else {
-    		List<PageId> toRevert = new ArrayList<PageId>();
-    		for (PageId currPageId : this.cachedPages.keySet()) {
-            	Page currPage = this.cachedPages.get(currPageId);
-            	TransactionId currPageTid = currPage.isDirty();
-            	if (currPageTid != null && currPageTid.equals(tid)) {
-            		toRevert.add(currPageId);
-            	}
+    		// pages stay dirty after they are committed, so they must not
+    		// be committed and logged again
+    		if (this.committedPages.remove(tid) == null) {
+    			commitPages(tid);
     		}
-    		
-    		for (PageId currToRevert : toRevert) {
-        		DbFile fileOfPage = Database.getCatalog().getDatabaseFile(currToRevert.getTableId());
-                Page diskPage = fileOfPage.readPage(currToRevert);
-                diskPage.markDirty(false, null);
-                this.cachedPages.remove(currToRevert);
-                this.cachedPages.put(diskPage.getId(), diskPage);
+    	} else {
+    		this.committedPages.remove(tid);
+    		// other transactions may have changed other records of the same
+    		// pages, so only tid's changes are undone
+    		restorePages(tid);
+    		this.versionStore.removeAppends(tid, this.versionStore.getAppends(tid));
+    	}
+    	List<PageId> pins = this.pinnedPages.remove(tid);
+    	if (pins != null) {
+    		synchronized (pins) {
+    			for (PageId pinned : pins) {
+    				unpinFrame(pinned);
+    			}
     		}
     	}
     	this.lockManager.releaseAllLocks(tid);
     }
 
+    /**
+     * Makes the changes of a committing transaction the committed images of
+     * its pages, and writes an UPDATE record for each page to the log
+     * without forcing it. Changes other transactions made to the same pages
+     * are not committed. Called by Transaction.commit before the COMMIT
+     * record is written, so the force of that record covers the UPDATE
+     * records too; {@link #transactionComplete} then does not commit them
+     * again.
+     *
+     * @param tid the ID of the committing transaction
+     */
+    public void commitPages(TransactionId tid) throws IOException {
+    	this.committedPages.put(tid, Boolean.TRUE);
+    	List<PageId> appended = this.versionStore.getAppends(tid);
+    	long commitTime = -1;
+    	try {
+    		if (!appended.isEmpty()) {
+    			commitTime = this.versionStore.beginCommit();
+    			if (this.versionStore.hasSnapshots()) {
+    				for (PageId pid : appended) {
+    					try {
+    						this.versionStore.addVersion(pid, commitTime, emptyPage(pid));
+    					} catch (DbException e) {
+    						throw new IOException(e);
+    					}
+    				}
+    			}
+    			this.versionStore.removeAppends(tid, appended);
+    		}
+    		for (Frame currFrame : this.frames.values()) {
+    			Page currPage = currFrame.page;
+    			if (currPage != null && currPage.isDirtiedBy(tid)) {
+    				if (commitTime < 0) {
+    					commitTime = this.versionStore.beginCommit();
+    				}
+    				synchronized (currPage) {
+    					Page before = currPage.getBeforeImage();
+    					currPage.setBeforeImage(tid);
+    					this.versionStore.addVersion(currPage.getId(), commitTime, before);
+    					Database.getLogFile().logWrite(tid, before, currPage.getBeforeImage());
+    				}
+    			}
+    		}
+    	} finally {
+    		if (commitTime >= 0) {
+    			this.versionStore.endCommit(commitTime);
+    		}
+    	}
+    }
+
+    /**
+     * Undoes the changes of an aborting transaction on the cached pages,
+     * copying the slots it changed back from their before images. Changes
+     * other transactions made to the same pages are kept. Called by
+     * LogFile.logAbort, so the undone changes are not flushed again, and
+     * by transactionComplete.
+     *
+     * @param tid the ID of the aborting transaction
+     */
+    public void restorePages(TransactionId tid) {
+    	for (Frame currFrame : this.frames.values()) {
+        	Page currPage = currFrame.page;
+        	if (currPage != null && currPage.isDirtiedBy(tid)) {
+        		currPage.restoreBeforeImage(tid);
+        	}
+    	}
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to and any other 
-     * pages that are updated (Lock acquisition is not needed for lab2). 
-     * May block if the lock(s) cannot be acquired.
+     * acquire an exclusive lock on the record the tuple is added as, under
+     * intention locks on its page and table, and a write lock on any page
+     * that is appended. May block if the lock(s) cannot be acquired.
      * 
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
@@ -200,19 +948,15 @@ public class BufferPool {
     	ArrayList<Page> dirtiedPages = dbFile.insertTuple(tid, t);
     	for (Page currPage : dirtiedPages) {
     		currPage.markDirty(true, tid);
-    		if (!this.cachedPages.containsKey(currPage.getId())) {
-        		while (this.cachedPages.size() >= this.numPages) {
-        			evictPage();
-        		}
-    		}
-    		this.cachedPages.put(currPage.getId(), currPage);
+    		cachePage(currPage);
     	}
     }
 
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from and any
-     * other pages that are updated. May block if the lock(s) cannot be acquired.
+     * Will acquire an exclusive lock on the record of the tuple, under
+     * intention locks on its page and table. May block if the lock(s) cannot
+     * be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
@@ -229,12 +973,7 @@ public class BufferPool {
     	ArrayList<Page> dirtiedPages = dbFile.deleteTuple(tid, t);
     	for (Page currPage : dirtiedPages) {
     		currPage.markDirty(true, tid);
-    		if (!this.cachedPages.containsKey(currPage.getId())) {
-        		while (this.cachedPages.size() >= this.numPages) {
-        			evictPage();
-        		}
-    		}
-    		this.cachedPages.put(currPage.getId(), currPage);
+    		cachePage(currPage);
     	}
     }
 
@@ -244,7 +983,7 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for (PageId pid : this.cachedPages.keySet()) {
+        for (PageId pid : this.frames.keySet()) {
         	flushPage(pid);
         }
     }
@@ -257,8 +996,14 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-    	this.cachedPages.remove(pid);
+    public void discardPage(PageId pid) {
+    	synchronized (stripeFor(pid)) {
+	    	if (this.frames.remove(pid) != null) {
+	    		this.usedFrames.decrementAndGet();
+	    		this.evictionPolicy.recordRemoval(pid);
+	    	}
+	    	this.pendingPrefetches.remove(pid);
+    	}
     }
 
     /**
@@ -266,10 +1011,24 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
-    	Page page = this.cachedPages.get(pid);
+    	Frame frame = this.frames.get(pid);
+    	if (frame == null) {
+    		return;
+    	}
+    	Page page = frame.page;
     	TransactionId dirtier = page.isDirty();
     	if (dirtier != null) {
-    		Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+    		// several transactions may have changed the page; log the changes
+    		// of each on their own, so one can be undone without the others
+    		Set<TransactionId> writers = page.getDirtiers();
+    		if (writers.isEmpty()) {
+    			Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+    		} else {
+    			Page before = page.getBeforeImage();
+    			for (TransactionId writer : writers) {
+    				Database.getLogFile().logWrite(writer, before, page.getChangesOf(writer));
+    			}
+    		}
     		Database.getLogFile().force();
     		DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
     		file.writePage(page);
@@ -279,13 +1038,11 @@ public class BufferPool {
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        for (PageId currPageId : this.cachedPages.keySet()) {
-        	Page currPage = this.cachedPages.get(currPageId);
-        	if (currPage != null) {
-	        	TransactionId currPageTid = currPage.isDirty();
-	        	if (currPageTid != null && currPageTid.equals(tid)) {
-	        		flushPage(currPageId);
-	        	}
+        for (Map.Entry<PageId, Frame> currEntry : this.frames.entrySet()) {
+        	PageId currPageId = currEntry.getKey();
+        	Page currPage = currEntry.getValue().page;
+        	if (currPage != null && currPage.isDirtiedBy(tid)) {
+        		flushPage(currPageId);
         	}
         }
     }
@@ -293,22 +1050,28 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Must be called holding the eviction lock.
      */
-    private synchronized  void evictPage() throws DbException {
-    	boolean evictedPage = false;
-    	PageId toRemove = null;
-		for (PageId currPageId : this.cachedPages.keySet()) {
-			Page currOldest = this.cachedPages.get(currPageId);
-			if (currOldest.isDirty() == null) {
-				toRemove = currPageId;
-				evictedPage = true;
-				break;
+    private void evictPage() throws DbException {
+    	while (true) {
+	    	PageId toRemove = this.evictionPolicy.chooseVictim(this.evictable);
+			if (toRemove == null) {
+				throw new DbException("Buffer Pool could not evict any pages");
+			}
+			synchronized (stripeFor(toRemove)) {
+				// the page may have been pinned or dirtied since it was chosen
+				if (this.evictable.canEvict(toRemove)) {
+					Frame removed = this.frames.remove(toRemove);
+					if (removed.prefetched.get()) {
+						// read-ahead loaded this page, but nobody used it
+						this.pendingPrefetches.remove(toRemove);
+						this.prefetchMissCount.increment();
+					}
+					this.usedFrames.decrementAndGet();
+					this.evictionPolicy.recordRemoval(toRemove);
+					return;
+				}
 			}
-		}
-		if (!evictedPage) {
-			throw new DbException("Buffer Pool could not evict any pages");
-		} else {
-			this.cachedPages.remove(toRemove);
-		}
-    }
-}
\ No newline at end of file
+    	}
+    }
+}
@@ -0,0 +1,267 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * BulkLoader appends large numbers of tuples to a HeapFile without inserting
+ * them one at a time. Tuples are packed into pages in memory, and each batch
+ * of pages is appended to the file with one sequential write and logged with
+ * one BULK_LOAD record instead of a before and after image per page. The
+ * pages never pass through the BufferPool.
+ * <p>
+ * Loaded pages are forced to disk by {@link #finish}, which must be called
+ * before the transaction commits. If the transaction aborts, LogFile
+ * rollback overwrites the loaded pages with empty ones. Rollback needs the
+ * transaction's BEGIN record, so loads should run inside a started
+ * {@link Transaction}.
+ * <p>
+ * Tuples are always appended to new pages; free slots on existing pages
+ * are left for ordinary inserts. Use this instead of HeapFileEncoder to
+ * load data into a table that is already in the Catalog.
+ *
+ * @see HeapFile#appendPages
+ * @see LogFile#logBulkLoad
+ */
+public class BulkLoader {
+
+	/**
+	 * Default number of pages written with each sequential write
+	 */
+	public static final int DEFAULT_BATCH_PAGES = 256;
+
+	/**
+	 * The file being loaded
+	 */
+	private final HeapFile file;
+
+	/**
+	 * The transaction doing the load
+	 */
+	private final TransactionId tid;
+
+	/**
+	 * Size in bytes of one tuple of the file
+	 */
+	private final int tupleSize;
+
+	/**
+	 * Number of tuples that fit on one page
+	 */
+	private final int numSlots;
+
+	/**
+	 * Size in bytes of a page header
+	 */
+	private final int headerSize;
+
+	/**
+	 * Page images of the current batch, back to back
+	 */
+	private final byte[] batch;
+
+	/**
+	 * Number of full pages in the current batch
+	 */
+	private int pagesInBatch;
+
+	/**
+	 * Number of tuples on the page currently being filled
+	 */
+	private int tuplesOnPage;
+
+	/**
+	 * Number of tuples added since the loader was created
+	 */
+	private int loadedCount;
+
+	/**
+	 * Reused buffer that tuples are serialized into
+	 */
+	private final ByteArrayOutputStream tupleBytes;
+	private final DataOutputStream tupleStream;
+
+	/**
+	 * Creates a loader that writes {@link #DEFAULT_BATCH_PAGES} pages at a
+	 * time.
+	 *
+	 * @param file
+	 *            the file to append tuples to
+	 * @param tid
+	 *            the transaction doing the load
+	 */
+	public BulkLoader(HeapFile file, TransactionId tid) {
+		this(file, tid, DEFAULT_BATCH_PAGES);
+	}
+
+	/**
+	 * Creates a loader.
+	 *
+	 * @param file
+	 *            the file to append tuples to
+	 * @param tid
+	 *            the transaction doing the load
+	 * @param batchPages
+	 *            the number of pages written with each sequential write
+	 */
+	public BulkLoader(HeapFile file, TransactionId tid, int batchPages) {
+		if (batchPages < 1) {
+			throw new IllegalArgumentException("batchPages must be positive");
+		}
+		this.file = file;
+		this.tid = tid;
+		this.tupleSize = file.getTupleDesc().getSize();
+		this.numSlots = (BufferPool.getPageSize() * 8) / (this.tupleSize * 8 + 1);
+		this.headerSize = (this.numSlots + 7) / 8;
+		this.batch = new byte[batchPages * BufferPool.getPageSize()];
+		this.pagesInBatch = 0;
+		this.tuplesOnPage = 0;
+		this.loadedCount = 0;
+		this.tupleBytes = new ByteArrayOutputStream(this.tupleSize);
+		this.tupleStream = new DataOutputStream(this.tupleBytes);
+	}
+
+	/**
+	 * Adds one tuple to the load. The tuple is written to disk when its
+	 * batch is full or when {@link #finish} is called.
+	 *
+	 * @throws DbException
+	 *             if the tuple does not match the schema of the file
+	 */
+	public void add(Tuple t) throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(this.file.getTupleDesc())) {
+			throw new DbException("tuple desc do not match for loaded tuple");
+		}
+		this.tupleBytes.reset();
+		for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			t.getField(i).serialize(this.tupleStream);
+		}
+		this.tupleStream.flush();
+
+		int pageStart = this.pagesInBatch * BufferPool.getPageSize();
+		int slot = this.tuplesOnPage;
+		this.batch[pageStart + slot / 8] |= (byte) (1 << (slot % 8));
+		System.arraycopy(this.tupleBytes.toByteArray(), 0, this.batch,
+				pageStart + this.headerSize + slot * this.tupleSize, this.tupleSize);
+		this.tuplesOnPage++;
+		this.loadedCount++;
+
+		if (this.tuplesOnPage == this.numSlots) {
+			this.pagesInBatch++;
+			this.tuplesOnPage = 0;
+			if (this.pagesInBatch * BufferPool.getPageSize() == this.batch.length) {
+				writeBatch(false);
+			}
+		}
+	}
+
+	/**
+	 * Loads every tuple of the iterator. The iterator is opened and closed
+	 * by this method. {@link #finish} is called before returning.
+	 *
+	 * @return the number of tuples loaded
+	 */
+	public int load(DbIterator child) throws DbException, IOException, TransactionAbortedException {
+		int count = 0;
+		child.open();
+		try {
+			while (child.hasNext()) {
+				add(child.next());
+				count++;
+			}
+		} finally {
+			child.close();
+		}
+		finish();
+		return count;
+	}
+
+	/**
+	 * Loads every line of a delimited text stream, in the format read by
+	 * HeapFileEncoder: one tuple per line, fields in schema order separated
+	 * by fieldSeparator. Blank lines are skipped. {@link #finish} is called
+	 * before returning.
+	 *
+	 * @return the number of tuples loaded
+	 * @throws DbException
+	 *             if a line has the wrong number of fields or a field that
+	 *             cannot be parsed
+	 */
+	public int load(Reader in, char fieldSeparator)
+			throws DbException, IOException, TransactionAbortedException {
+		TupleDesc td = this.file.getTupleDesc();
+		BufferedReader br = new BufferedReader(in);
+		int count = 0;
+		int lineNo = 0;
+		String line;
+		while ((line = br.readLine()) != null) {
+			lineNo++;
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			add(parseLine(td, line, fieldSeparator, lineNo));
+			count++;
+		}
+		finish();
+		return count;
+	}
+
+	// Helper method that parses one line of delimited text into a tuple
+	private static Tuple parseLine(TupleDesc td, String line, char fieldSeparator, int lineNo)
+			throws DbException {
+		Tuple t = new Tuple(td);
+		int fieldNo = 0;
+		int start = 0;
+		while (start <= line.length()) {
+			int end = line.indexOf(fieldSeparator, start);
+			if (end < 0) {
+				end = line.length();
+			}
+			if (fieldNo >= td.numFields()) {
+				throw new DbException("too many fields on line " + lineNo + ": " + line);
+			}
+			String s = line.substring(start, end).trim();
+			if (td.getFieldType(fieldNo) == Type.INT_TYPE) {
+				try {
+					t.setField(fieldNo, new IntField(Integer.parseInt(s)));
+				} catch (NumberFormatException e) {
+					throw new DbException("bad integer on line " + lineNo + ": " + s);
+				}
+			} else {
+				t.setField(fieldNo, new StringField(s, Type.STRING_LEN));
+			}
+			fieldNo++;
+			start = end + 1;
+		}
+		if (fieldNo != td.numFields()) {
+			throw new DbException("too few fields on line " + lineNo + ": " + line);
+		}
+		return t;
+	}
+
+	/**
+	 * Writes any tuples still buffered and forces the file to disk. Must be
+	 * called before the loading transaction commits. Tuples added afterwards
+	 * start a new page.
+	 *
+	 * @return the number of tuples added since the loader was created
+	 */
+	public int finish() throws IOException, TransactionAbortedException {
+		if (this.tuplesOnPage > 0) {
+			this.pagesInBatch++;
+			this.tuplesOnPage = 0;
+			writeBatch(true);
+		} else if (this.pagesInBatch > 0) {
+			writeBatch(false);
+		}
+		this.file.force();
+		return this.loadedCount;
+	}
+
+	// Helper method that appends the pages of the current batch to the file
+	private void writeBatch(boolean lastHasSpace) throws IOException, TransactionAbortedException {
+		this.file.appendPages(this.tid, this.batch, this.pagesInBatch, lastHasSpace);
+		Arrays.fill(this.batch, 0, this.pagesInBatch * BufferPool.getPageSize(), (byte) 0);
+		this.pagesInBatch = 0;
+	}
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -183,12 +184,31 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+    	closeFiles();
     	nameMap.clear();
     	idMap.clear();
     }
     
+    /**
+     * Closes the open files of all tables in the catalog. Tables stay in the
+     * catalog and reopen their files when they are used again.
+     */
+    public void closeFiles() {
+    	for (Table table : idMap.values()) {
+    		if (table.dbFile instanceof Closeable) {
+    			try {
+    				((Closeable) table.dbFile).close();
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}
+    }
+    
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the format <code>name (field type [pk], ...) [mapped]</code>;
+     * tables marked <code>mapped</code> are opened as read-only {@link MappedHeapFile}s.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -202,6 +222,14 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String annotation = line.substring(line.indexOf(")") + 1).trim();
+                boolean mapped = false;
+                if (annotation.toLowerCase().equals("mapped")) {
+                    mapped = true;
+                } else if (!annotation.equals("")) {
+                    System.out.println("Unknown table annotation " + annotation);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -229,7 +257,8 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf = mapped ? new MappedHeapFile(tabFile, t) : new HeapFile(tabFile, t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CLOCK (second chance) eviction. Cached pages sit in a ring of frames, each
+ * with a reference bit that is set on every access. The clock hand sweeps
+ * the ring, clearing set bits, and evicts the first evictable page whose bit
+ * is already clear.
+ * <p>
+ * Accesses to pages that are already in the ring only set their reference
+ * bit and do not take the policy's lock, so hits on different pages never
+ * contend.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+	/**
+	 * The ring of frames; a null entry is a free frame
+	 */
+	private List<PageId> frames;
+	
+	/**
+	 * Reference bit of each page in the ring
+	 */
+	private ConcurrentHashMap<PageId, AtomicBoolean> referenced;
+	
+	/**
+	 * Mapping between a page in the ring and its frame
+	 */
+	private Map<PageId, Integer> frameOf;
+	
+	/**
+	 * Frames that were freed by a removal and can be reused
+	 */
+	private Deque<Integer> freeFrames;
+	
+	/**
+	 * Position of the clock hand in the ring
+	 */
+	private int hand;
+
+	public ClockEvictionPolicy() {
+		this.frames = new ArrayList<PageId>();
+		this.referenced = new ConcurrentHashMap<PageId, AtomicBoolean>();
+		this.frameOf = new HashMap<PageId, Integer>();
+		this.freeFrames = new ArrayDeque<Integer>();
+		this.hand = 0;
+	}
+
+	public void recordAccess(PageId pid) {
+		AtomicBoolean bit = this.referenced.get(pid);
+		if (bit != null) {
+			bit.set(true);
+			return;
+		}
+		
+		synchronized (this) {
+			bit = this.referenced.get(pid);
+			if (bit != null) {
+				bit.set(true);
+				return;
+			}
+			
+			if (this.freeFrames.isEmpty()) {
+				this.frames.add(pid);
+				this.frameOf.put(pid, this.frames.size() - 1);
+			} else {
+				int freeFrame = this.freeFrames.poll();
+				this.frames.set(freeFrame, pid);
+				this.frameOf.put(pid, freeFrame);
+			}
+			this.referenced.put(pid, new AtomicBoolean(true));
+		}
+	}
+
+	public synchronized void recordRemoval(PageId pid) {
+		Integer frame = this.frameOf.remove(pid);
+		if (frame != null) {
+			this.frames.set(frame, null);
+			this.referenced.remove(pid);
+			this.freeFrames.add(frame);
+		}
+	}
+
+	public synchronized PageId chooseVictim(Evictable evictable) {
+		int numFrames = this.frames.size();
+		// two full sweeps: the first may only clear reference bits
+		for (int i = 0; i < 2 * numFrames; i++) {
+			if (this.hand >= numFrames) {
+				this.hand = 0;
+			}
+			PageId currPageId = this.frames.get(this.hand);
+			this.hand++;
+			if (currPageId != null && evictable.canEvict(currPageId)
+					&& !this.referenced.get(currPageId).getAndSet(false)) {
+				return currPageId;
+			}
+		}
+		return null;
+	}
+}
@@ -35,6 +35,16 @@ public class DbHeapFileIterator extends AbstractDbFileIterator implements Serial
 	 */
 	private int highestPageNumber;
 	
+	/**
+	 * The page this iterator currently has pinned in the buffer pool, or null
+	 */
+	private HeapPageId pinnedPageId;
+	
+	/**
+	 * Prefetches the pages ahead of this scan
+	 */
+	private SequentialReadAhead readAhead;
+	
 	/**
 	 * Constructs a new DbHeapFileIterator
 	 */
@@ -43,11 +53,14 @@ public class DbHeapFileIterator extends AbstractDbFileIterator implements Serial
 		this.currentIterator = null;
 		this.highestPageNumber = highestPageNumber;
 		this.tid = tid;
+		this.pinnedPageId = null;
+		this.readAhead = new SequentialReadAhead(tableid, highestPageNumber);
 	}
 	
 	@Override
 	public void open() throws DbException, TransactionAbortedException {
 		this.currentPageNumber = 0;
+		this.readAhead.reset();
 		updateIterator();
 	}
 
@@ -83,16 +96,29 @@ public class DbHeapFileIterator extends AbstractDbFileIterator implements Serial
 		}
 	}
 	
+	// Pins the current page so it stays in the buffer pool while its tuples
+	// are handed out, and unpins the page the iterator was on before
 	private void updateIterator() throws TransactionAbortedException, DbException {
 		HeapPageId pid = new HeapPageId(this.tableid, this.currentPageNumber);
-		HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.tid, 
+		unpinCurrentPage();
+		this.readAhead.beforeRead(this.currentPageNumber);
+		HeapPage page = (HeapPage) Database.getBufferPool().pinPage(this.tid, 
 				pid, Permissions.READ_ONLY);
+		this.pinnedPageId = pid;
 		this.currentIterator = page.iterator();
 	}
+	
+	private void unpinCurrentPage() {
+		if (this.pinnedPageId != null) {
+			Database.getBufferPool().unpinPage(this.tid, this.pinnedPageId);
+			this.pinnedPageId = null;
+		}
+	}
 		
 	@Override
     public void close() {
         super.close();
         this.currentIterator = null;
+        unpinCurrentPage();
     }
 }
\ No newline at end of file
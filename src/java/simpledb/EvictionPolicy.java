@@ -0,0 +1,48 @@
+package simpledb;
+
+/**
+ * An EvictionPolicy decides which page BufferPool should evict when it needs
+ * room for a new page. BufferPool reports every access to a cached page and
+ * every removal of a page from the pool, and asks the policy for a victim
+ * when the pool is full.
+ * <p>
+ * Policies only rank pages; BufferPool decides which pages are allowed to
+ * leave the pool (for example, dirty pages may not be evicted under NO STEAL)
+ * and passes that decision in through {@link Evictable}.
+ * 
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * Tells the policy whether a cached page may be evicted right now.
+	 */
+	public interface Evictable {
+		public boolean canEvict(PageId pid);
+	}
+
+	/**
+	 * Records that the page with pid was read or written through the buffer
+	 * pool. Called both for hits and for pages that were just loaded.
+	 * 
+	 * @param pid the page that was accessed
+	 */
+	public void recordAccess(PageId pid);
+
+	/**
+	 * Records that the page with pid is no longer cached, either because it
+	 * was chosen as a victim or because BufferPool discarded it.
+	 * 
+	 * @param pid the page that left the buffer pool
+	 */
+	public void recordRemoval(PageId pid);
+
+	/**
+	 * Picks the page that should be evicted next. The page is not forgotten
+	 * until {@link #recordRemoval} is called for it.
+	 * 
+	 * @param evictable decides which cached pages may be chosen
+	 * @return the page to evict, or null if no cached page can be evicted
+	 */
+	public PageId chooseVictim(Evictable evictable);
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one empty
+ * slot, so inserts can go straight to such a page instead of reading every
+ * page of the file. It is only a hint: the page is always checked under its
+ * write lock before a tuple is placed on it, and pages found to be full are
+ * cleared from the map.
+ * <p>
+ * The map can be saved next to the table's file and loaded again, so large
+ * tables do not need to be rescanned when they are opened.
+ * 
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+	/**
+	 * Pages that have, or may have, an empty slot
+	 */
+	private final BitSet freePages;
+	
+	/**
+	 * Number of pages of the file the map knows about
+	 */
+	private int numPages;
+
+	/**
+	 * Creates a map of a file with no pages.
+	 */
+	public FreeSpaceMap() {
+		this.freePages = new BitSet();
+		this.numPages = 0;
+	}
+
+	/**
+	 * Returns a page with an empty slot, searching from start and wrapping
+	 * around to the first page. Inserters that start from different pages
+	 * spread out over the pages with free space instead of all waiting for
+	 * the lock on the same page.
+	 * 
+	 * @param start the page to start searching from
+	 * @return the number of a page with free space, or -1 if there is none
+	 */
+	public synchronized int findPage(int start) {
+		if (this.numPages == 0) {
+			return -1;
+		}
+		int from = Math.floorMod(start, this.numPages);
+		int pageNo = this.freePages.nextSetBit(from);
+		if (pageNo < 0 || pageNo >= this.numPages) {
+			pageNo = this.freePages.nextSetBit(0);
+		}
+		return (pageNo >= 0 && pageNo < this.numPages) ? pageNo : -1;
+	}
+
+	/** Records that the page has no empty slots. */
+	public synchronized void markFull(int pageNo) {
+		this.freePages.clear(pageNo);
+	}
+
+	/** Records that the page has at least one empty slot. */
+	public synchronized void markFree(int pageNo) {
+		this.freePages.set(pageNo);
+		this.numPages = Math.max(this.numPages, pageNo + 1);
+	}
+
+	/**
+	 * Makes the map cover numPages pages. Pages the map did not know about
+	 * are taken to be full until they are marked free, so inserts never read
+	 * pages that only might have space.
+	 */
+	public synchronized void ensurePages(int numPages) {
+		this.numPages = Math.max(this.numPages, numPages);
+	}
+
+	/**
+	 * @return the number of pages the map knows about
+	 */
+	public synchronized int numPages() {
+		return this.numPages;
+	}
+
+	/**
+	 * Writes the map to the specified file.
+	 */
+	public synchronized void save(File f) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			byte[] bits = this.freePages.toByteArray();
+			dos.writeInt(this.numPages);
+			dos.writeInt(bits.length);
+			dos.write(bits);
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Reads a map written by {@link #save}.
+	 */
+	public static FreeSpaceMap load(File f) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			FreeSpaceMap map = new FreeSpaceMap();
+			map.numPages = dis.readInt();
+			byte[] bits = new byte[dis.readInt()];
+			dis.readFully(bits);
+			map.freePages.or(BitSet.valueOf(bits));
+			return map;
+		} finally {
+			dis.close();
+		}
+	}
+}
@@ -1,10 +1,21 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. It builds a hash table on the smaller
+ * input, as far as it can be estimated, and streams the other input past it.
+ * Build tuples are split into {@link #NUM_PARTITIONS} hash partitions. While
+ * the table fits in the memory budget every partition stays in memory; once
+ * it does not, the largest partitions are written to {@link SpillFile}s, and
+ * probe tuples of those partitions are spilled too instead of being joined
+ * right away. After the probe input is exhausted, each pair of spilled
+ * partitions is joined by a nested HashEquiJoin, which again builds on the
+ * smaller side and may partition again.
  */
 public class HashEquiJoin extends Operator {
 
@@ -13,14 +24,96 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
     // </silentstrip>
 
+    /**
+     * Default memory budget for the hash table in bytes
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    /**
+     * Number of hash partitions of each input
+     */
+    public static final int NUM_PARTITIONS = 16;
+
+    /**
+     * Estimated bytes of memory per build tuple, besides its fields
+     */
+    public static final int TUPLE_OVERHEAD = 64;
+
+    /**
+     * Deepest level of repartitioning; partitions at this level are built in
+     * memory whatever the budget
+     */
+    private static final int MAX_SPILL_LEVEL = 8;
+
+    /**
+     * Memory budget of new HashEquiJoins in bytes, or 0 for no budget
+     */
+    private static long defaultMemoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * Memory budget for the hash table in bytes, or 0 for no budget
+     */
+    private long memoryBudget;
+
+    /**
+     * Number of times the inputs of this join have been partitioned, 0 for
+     * a join of the original inputs
+     */
+    private int spillLevel;
+
+    /**
+     * Whether to build on child1, or null to choose when opened
+     */
+    private Boolean buildOnChild1;
+
+    /**
+     * The input the hash table is built on and the input streamed past it
+     */
+    private transient DbIterator build, probe;
+    private transient boolean buildIsChild1;
+    private transient int buildField, probeField;
+
+    /**
+     * In-memory hash table of each partition, or null if it was spilled
+     */
+    private transient List<HashMap<Field, ArrayList<Tuple>>> tables;
+
+    /**
+     * Estimated memory used by each in-memory partition
+     */
+    private transient long[] partitionMemory;
+
+    /**
+     * Spilled tuples of each input by partition, or null
+     */
+    private transient SpillFile[] buildSpills, probeSpills;
+
+    /**
+     * Probe tuple being joined and the build tuples it matches
+     */
+    private transient Tuple probeTuple;
+    transient Iterator<Tuple> listIt = null;
+
+    /**
+     * Index of the next spilled partition to join and the join of the
+     * current one, or null
+     */
+    private transient int nextPartition;
+    private transient HashEquiJoin partitionJoin;
+
+    /**
+     * Statistics of the current run, including finished partitions
+     */
+    private transient long memoryUsed;
+    private transient long peakMemory;
+    private transient long spilledBytes;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -35,6 +128,9 @@ public class HashEquiJoin extends Operator {
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
         // </strip>
+        this.memoryBudget = defaultMemoryBudget;
+        this.spillLevel = 0;
+        this.buildOnChild1 = null;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -54,7 +150,7 @@ public class HashEquiJoin extends Operator {
         // return null;
         // </insert>
     }
-    
+
     public String getJoinField1Name()
     {
         // <strip lab1|lab2>
@@ -74,62 +170,239 @@ public class HashEquiJoin extends Operator {
         // return null;
         // </insert>
     }
-    
-    // <silentstrip lab1|lab2>
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
-
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
-            }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+
+    /**
+     * Sets the memory budget of HashEquiJoins created afterwards.
+     *
+     * @param bytes
+     *            the budget in bytes, or 0 for no budget
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = bytes;
+    }
+
+    /**
+     * Limits the memory used for the hash table. Partitions that do not fit
+     * are spilled to disk. Takes effect the next time the join is opened.
+     *
+     * @param bytes
+     *            the budget in bytes, or 0 for no budget
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes, or 0 if there is none
+     */
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * @return the estimated size in bytes of the largest hash table built
+     *         since the join was opened
+     */
+    public long getPeakMemory() {
+        if (this.partitionJoin != null) {
+            return Math.max(this.peakMemory, this.partitionJoin.getPeakMemory());
+        }
+        return this.peakMemory;
+    }
+
+    /**
+     * @return the number of bytes of input written to spill files since the
+     *         join was opened, including repartitioning
+     */
+    public long getSpilledBytes() {
+        if (this.partitionJoin != null) {
+            return this.spilledBytes + this.partitionJoin.getSpilledBytes();
         }
-        return cnt > 0;
+        return this.spilledBytes;
+    }
 
+    /**
+     * @return true if the hash table was built on child1 when the join was
+     *         last opened
+     */
+    public boolean buildsOnChild1() {
+        return this.buildIsChild1;
     }
 
-    // </silentstrip>
+    /**
+     * @return the estimated size in bytes of an input, or -1 if it is
+     *         unknown
+     */
+    static long estimateBytes(DbIterator it) {
+        if (it instanceof SeqScan || it instanceof ParallelSeqScan) {
+            int tableid = it instanceof SeqScan
+                    ? ((SeqScan) it).getTableId() : ((ParallelSeqScan) it).getTableId();
+            DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+            if (file instanceof HeapFile) {
+                return (long) ((HeapFile) file).numPages() * BufferPool.getPageSize();
+            }
+        } else if (it instanceof Operator && ((Operator) it).getEstimatedCardinality() > 0) {
+            return (long) ((Operator) it).getEstimatedCardinality() * it.getTupleDesc().getSize();
+        }
+        return -1;
+    }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // <strip lab1|lab2>
-        child1.open();
-        child2.open();
-        loadMap();
+        if (this.buildOnChild1 != null) {
+            this.buildIsChild1 = this.buildOnChild1;
+        } else {
+            long size1 = estimateBytes(this.child1);
+            long size2 = estimateBytes(this.child2);
+            this.buildIsChild1 = size1 < 0 || size2 < 0 || size1 <= size2;
+        }
+        this.build = this.buildIsChild1 ? this.child1 : this.child2;
+        this.probe = this.buildIsChild1 ? this.child2 : this.child1;
+        this.buildField = this.buildIsChild1 ? this.pred.getField1() : this.pred.getField2();
+        this.probeField = this.buildIsChild1 ? this.pred.getField2() : this.pred.getField1();
+
+        this.tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(NUM_PARTITIONS);
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            this.tables.add(new HashMap<Field, ArrayList<Tuple>>());
+        }
+        this.partitionMemory = new long[NUM_PARTITIONS];
+        this.buildSpills = new SpillFile[NUM_PARTITIONS];
+        this.probeSpills = new SpillFile[NUM_PARTITIONS];
+        this.memoryUsed = 0;
+        this.peakMemory = 0;
+        this.spilledBytes = 0;
+
+        this.build.open();
+        this.probe.open();
+        buildTable();
+        startProbe();
         super.open();
         // </strip>
     }
 
+    // Helper method that reads the build input into the hash table,
+    // spilling the largest partitions whenever it outgrows the budget
+    private void buildTable() throws DbException, TransactionAbortedException {
+        long tupleMemory = this.build.getTupleDesc().getSize() + TUPLE_OVERHEAD;
+        boolean bounded = this.memoryBudget > 0 && this.spillLevel < MAX_SPILL_LEVEL;
+        while (this.build.hasNext()) {
+            Tuple t = this.build.next();
+            Field key = t.getField(this.buildField);
+            int p = SpillFile.partitionOf(key, this.spillLevel, NUM_PARTITIONS);
+            if (this.tables.get(p) == null) {
+                spillTuple(this.buildSpills, p, t, this.build.getTupleDesc());
+                continue;
+            }
+            ArrayList<Tuple> list = this.tables.get(p).get(key);
+            if (list == null) {
+                list = new ArrayList<Tuple>();
+                this.tables.get(p).put(key, list);
+            }
+            list.add(t);
+            this.partitionMemory[p] += tupleMemory;
+            this.memoryUsed += tupleMemory;
+            this.peakMemory = Math.max(this.peakMemory, this.memoryUsed);
+            while (bounded && this.memoryUsed > this.memoryBudget) {
+                spillLargestPartition();
+            }
+        }
+    }
+
+    // Helper method that moves the largest in-memory partition to disk
+    private void spillLargestPartition() throws DbException {
+        int largest = -1;
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            if (this.tables.get(i) != null
+                    && (largest < 0 || this.partitionMemory[i] > this.partitionMemory[largest])) {
+                largest = i;
+            }
+        }
+        if (largest < 0) {
+            return;
+        }
+        for (ArrayList<Tuple> list : this.tables.get(largest).values()) {
+            for (Tuple t : list) {
+                spillTuple(this.buildSpills, largest, t, this.build.getTupleDesc());
+            }
+        }
+        this.tables.set(largest, null);
+        this.memoryUsed -= this.partitionMemory[largest];
+        this.partitionMemory[largest] = 0;
+    }
+
+    // Helper method that appends a tuple to the spill file of its partition
+    private void spillTuple(SpillFile[] spills, int p, Tuple t, TupleDesc td) throws DbException {
+        try {
+            if (spills[p] == null) {
+                spills[p] = new SpillFile(td);
+            }
+            spills[p].add(t);
+        } catch (IOException e) {
+            throw new DbException("could not spill join input: " + e.getMessage());
+        }
+        this.spilledBytes += td.getSize();
+    }
+
+    // Helper method that resets the probe phase
+    private void startProbe() {
+        this.probeTuple = null;
+        this.listIt = null;
+        this.nextPartition = 0;
+        this.partitionJoin = null;
+    }
+
     public void close() {
         // <strip lab1|lab2>
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        closePartitions();
+        if (this.buildSpills != null) {
+            deleteSpills(this.buildSpills);
+        }
+        this.probeTuple = null;
+        this.listIt = null;
+        this.tables = null;
+        this.buildSpills = null;
+        this.probeSpills = null;
         // </strip>
     }
 
+    // Helper method that closes the join of the current spilled partition
+    // and deletes the spilled probe tuples
+    private void closePartitions() {
+        if (this.partitionJoin != null) {
+            this.partitionJoin.close();
+            this.partitionJoin = null;
+        }
+        if (this.probeSpills != null) {
+            deleteSpills(this.probeSpills);
+        }
+    }
+
+    // Helper method that deletes spill files
+    private static void deleteSpills(SpillFile[] spills) {
+        for (int i = 0; i < spills.length; i++) {
+            if (spills[i] != null) {
+                spills[i].delete();
+                spills[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Runs the probe again. The hash table and the spilled build tuples are
+     * kept, so only the probe input is read again.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
         // <strip lab1|lab2>
-        child1.rewind();
-        child2.rewind();
+        closePartitions();
+        this.probe.rewind();
+        startProbe();
         // </strip>
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -144,13 +417,15 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     // <silentstrip lab1|lab2>
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+    private Tuple processList() {
+        Tuple buildTuple = listIt.next();
+        Tuple t1 = this.buildIsChild1 ? buildTuple : this.probeTuple;
+        Tuple t2 = this.buildIsChild1 ? this.probeTuple : buildTuple;
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -173,27 +448,31 @@ public class HashEquiJoin extends Operator {
             return processList();
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+        // stream the probe input past the in-memory partitions
+        while (this.probe.hasNext()) {
+            Tuple t = this.probe.next();
+            Field key = t.getField(this.probeField);
+            int p = SpillFile.partitionOf(key, this.spillLevel, NUM_PARTITIONS);
+            if (this.tables.get(p) == null) {
+                if (this.buildSpills[p] != null) {
+                    spillTuple(this.probeSpills, p, t, this.probe.getTupleDesc());
+                }
+                continue;
+            }
+            ArrayList<Tuple> l = this.tables.get(p).get(key);
             if (l == null)
                 continue;
+            this.probeTuple = t;
             listIt = l.iterator();
-
             return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
         }
 
+        // then join the spilled partitions one at a time
+        do {
+            if (this.partitionJoin != null && this.partitionJoin.hasNext()) {
+                return this.partitionJoin.next();
+            }
+        } while (openNextPartition());
         return null;
         // </strip>
         // <insert lab1|lab2>
@@ -201,6 +480,38 @@ public class HashEquiJoin extends Operator {
         // </insert>
     }
 
+    // Helper method that starts joining the next pair of spilled partitions,
+    // if any, after finishing the current one
+    private boolean openNextPartition() throws DbException, TransactionAbortedException {
+        if (this.partitionJoin != null) {
+            this.peakMemory = Math.max(this.peakMemory, this.partitionJoin.getPeakMemory());
+            this.spilledBytes += this.partitionJoin.getSpilledBytes();
+            this.partitionJoin.close();
+            this.partitionJoin = null;
+        }
+        while (this.nextPartition < NUM_PARTITIONS) {
+            int p = this.nextPartition++;
+            SpillFile buildSpill = this.buildSpills[p];
+            SpillFile probeSpill = this.probeSpills[p];
+            if (buildSpill == null || probeSpill == null) {
+                continue;
+            }
+            DbIterator left = this.buildIsChild1 ? buildSpill.iterator() : probeSpill.iterator();
+            DbIterator right = this.buildIsChild1 ? probeSpill.iterator() : buildSpill.iterator();
+            HashEquiJoin join = new HashEquiJoin(this.pred, left, right);
+            join.memoryBudget = this.memoryBudget;
+            join.spillLevel = this.spillLevel + 1;
+            // the sizes of both partitions are known, so build on the smaller
+            join.buildOnChild1 = this.buildIsChild1
+                    ? buildSpill.numBytes() <= probeSpill.numBytes()
+                    : probeSpill.numBytes() < buildSpill.numBytes();
+            this.partitionJoin = join;
+            join.open();
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // <strip lab1|lab2>
@@ -218,6 +529,6 @@ public class HashEquiJoin extends Operator {
         this.child2 = children[1];
         // </strip>
     }
-    
+
 
 }
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,11 +11,19 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read and written with positional I/O on one FileChannel that
+ * stays open for the life of the HeapFile. The channel is opened on first
+ * use and closed by {@link #close}, which the Catalog calls when tables are
+ * removed; a closed HeapFile reopens its channel if it is used again.
+ * <p>
+ * Inserts use a {@link FreeSpaceMap} to find a page with an empty slot
+ * instead of reading every page of the file.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, Closeable {
 	
 	/**
 	 * The file that stores the on-disk backing store for this heap file
@@ -25,6 +35,26 @@ public class HeapFile implements DbFile {
 	 */
 	private TupleDesc schema;
 	
+	/**
+	 * The open channel to the backing file, or null if it is not open
+	 */
+	private transient FileChannel channel;
+	
+	/**
+	 * Pages of this file with empty slots, built on first insert
+	 */
+	private transient FreeSpaceMap freeSpaceMap;
+	
+	/**
+	 * Whether the free space map is saved when the file is closed
+	 */
+	private boolean persistFreeSpaceMap = false;
+	
+	/**
+	 * Serializes appending new pages to the end of the file
+	 */
+	private final Object appendLock = new Object();
+	
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -72,22 +102,55 @@ public class HeapFile implements DbFile {
         return this.schema;
     }
 
+    /**
+     * Returns the channel to the backing file, opening it if needed.
+     */
+    private synchronized FileChannel getChannel() throws IOException {
+    	if (this.channel == null || !this.channel.isOpen()) {
+    		RandomAccessFile randomAccessFile;
+    		if (this.file.exists() && !this.file.canWrite()) {
+    			randomAccessFile = new RandomAccessFile(this.file, "r");
+    		} else {
+    			randomAccessFile = new RandomAccessFile(this.file, "rw");
+    		}
+    		this.channel = randomAccessFile.getChannel();
+    	}
+    	return this.channel;
+    }
+
+    /**
+     * Closes the channel to the backing file. The HeapFile can still be used
+     * afterwards; the channel is reopened on the next page access.
+     */
+    public synchronized void close() throws IOException {
+    	if (this.persistFreeSpaceMap && this.freeSpaceMap != null) {
+    		this.freeSpaceMap.save(getFreeSpaceMapFile());
+    	}
+    	if (this.channel != null) {
+    		this.channel.close();
+    		this.channel = null;
+    	}
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        int byteOffSet = pid.pageNumber() * BufferPool.getPageSize();
-        if (byteOffSet + BufferPool.getPageSize() > this.file.length()) {
-        	throw new IllegalArgumentException();
-        }
-        byte[] data = new byte[BufferPool.getPageSize()];
+        long byteOffSet = (long) pid.pageNumber() * BufferPool.getPageSize();
         try {
-        	RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
-        	randomAccessFile.seek(byteOffSet);
-        	randomAccessFile.read(data);
-        	randomAccessFile.close();
+        	FileChannel fileChannel = getChannel();
+        	if (byteOffSet + BufferPool.getPageSize() > fileChannel.size()) {
+        		throw new IllegalArgumentException();
+        	}
+        	byte[] data = new byte[BufferPool.getPageSize()];
+        	ByteBuffer buffer = ByteBuffer.wrap(data);
+        	while (buffer.hasRemaining()) {
+        		if (fileChannel.read(buffer, byteOffSet + buffer.position()) < 0) {
+        			throw new EOFException("unexpected end of " + this.file + " reading " + pid);
+        		}
+        	}
             HeapPageId heapPageId = (HeapPageId) pid;
             return new HeapPage(heapPageId, data);
-        } catch (Exception e) {
+        } catch (IOException e) {
         	e.printStackTrace();
         	return null;
         }
@@ -101,15 +164,11 @@ public class HeapFile implements DbFile {
     		throw new IllegalArgumentException("attempted to write page at "
     				+ "invalid position: " + pageNumber);
     	}
-        int byteOffSet = pageNumber * BufferPool.getPageSize();
-        byte[] pageData = page.getPageData();
-        try {
-        	RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
-        	randomAccessFile.seek(byteOffSet);
-        	randomAccessFile.write(pageData);
-        	randomAccessFile.close();
-        } catch (Exception e) {
-        	e.printStackTrace();
+        long byteOffSet = (long) pageNumber * BufferPool.getPageSize();
+        ByteBuffer buffer = ByteBuffer.wrap(page.getPageData());
+        FileChannel fileChannel = getChannel();
+        while (buffer.hasRemaining()) {
+        	fileChannel.write(buffer, byteOffSet + buffer.position());
         }
     }
 
@@ -118,7 +177,11 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) (this.file.length() / BufferPool.getPageSize());
+        try {
+        	return (int) (getChannel().size() / BufferPool.getPageSize());
+        } catch (IOException e) {
+        	return (int) (this.file.length() / BufferPool.getPageSize());
+        }
     }
 
     // see DbFile.java for javadocs
@@ -127,42 +190,215 @@ public class HeapFile implements DbFile {
     	if (!t.getTupleDesc().equals(schema)) {
     		throw new DbException("tuple desc do not match for inserted tuple");
     	}
-    	int numberOfPages = this.numPages();
     	int tableid = getId();
     	ArrayList<Page> pagesEffected = new ArrayList<Page>();
-    	for (int i = 0; i < numberOfPages; i++) {
-    		PageId currPageId = new HeapPageId(tableid, i);
-    		Page currPage = Database.getBufferPool().getPage(tid, currPageId, Permissions.READ_WRITE);
-    		int emptySlotCount = ((HeapPage) currPage).getNumEmptySlots();
-    		if (emptySlotCount > 0) {
-    			((HeapPage) currPage).insertTuple(t);
-    			pagesEffected.add(currPage);
-    			return pagesEffected;
+    	BufferPool bufferPool = Database.getBufferPool();
+    	FreeSpaceMap freeSpaceMap = getFreeSpaceMap();
+    	freeSpaceMap.ensurePages(this.numPages());
+    	// transactions start looking at different pages so that concurrent
+    	// inserters do not all queue up for the lock on the same page
+    	int start = (int) (tid.getId() % Math.max(1, freeSpaceMap.numPages()));
+    	BitSet tried = new BitSet();
+    	int pageNo;
+    	while ((pageNo = freeSpaceMap.findPage(start)) >= 0 && !tried.get(pageNo)) {
+    		tried.set(pageNo);
+    		PageId currPageId = new HeapPageId(tableid, pageNo);
+    		// keep the page in the pool while we look at and modify it; the
+    		// intention lock lets other transactions insert into it as well,
+    		// each locking only the record it adds
+    		Page currPage = bufferPool.pinPage(tid, currPageId, LockMode.IX);
+    		try {
+	    		HeapPage heapPage = (HeapPage) currPage;
+	    		if (heapPage.insertTuple(tid, t)) {
+	    			bufferPool.lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+	    			if (heapPage.getNumEmptySlots() == 0) {
+	    				freeSpaceMap.markFull(pageNo);
+	    			}
+	    			pagesEffected.add(currPage);
+	    			return pagesEffected;
+	    		}
+	    		// slots emptied by transactions that have not committed yet
+	    		// become free later, so only a full page leaves the map
+	    		if (heapPage.getNumEmptySlots() == 0) {
+	    			freeSpaceMap.markFull(pageNo);
+	    		}
+    		} finally {
+    			bufferPool.unpinPage(tid, currPageId);
     		}
+    		start = pageNo + 1;
     	}
     	
     	// if we got here it means there are no pages with space in this file
-    	// so we need to create a new page and append it to the file
-    	byte[] emptyPageData = HeapPage.createEmptyPageData();
-    	HeapPageId emptyHeapPageId = new HeapPageId(tableid, numberOfPages);
-    	Page emptyPage = new HeapPage(emptyHeapPageId, emptyPageData);
-		((HeapPage) emptyPage).insertTuple(t);
-    	this.writePage(emptyPage);
-		pagesEffected.add(emptyPage);
-		return pagesEffected;
+    	// so we need to create a new page and append it to the file. The
+    	// table lock is taken first so no lock is waited for while holding
+    	// appendLock.
+    	bufferPool.lockTable(tid, tableid, LockMode.IX);
+    	synchronized (this.appendLock) {
+	    	int numberOfPages = this.numPages();
+	    	byte[] emptyPageData = HeapPage.createEmptyPageData();
+	    	HeapPageId emptyHeapPageId = new HeapPageId(tableid, numberOfPages);
+	    	// other inserters can find the page once it is in the free space
+	    	// map, but have to wait until it is in the pool
+	    	bufferPool.lockPage(tid, emptyHeapPageId, Permissions.READ_WRITE);
+	    	HeapPage emptyPage = new HeapPage(emptyHeapPageId, emptyPageData);
+	    	emptyPage.insertTuple(tid, t);
+	    	this.writePage(emptyPage);
+	    	if (emptyPage.getNumEmptySlots() > 0) {
+	    		freeSpaceMap.markFree(numberOfPages);
+	    	} else {
+	    		freeSpaceMap.ensurePages(numberOfPages + 1);
+	    		freeSpaceMap.markFull(numberOfPages);
+	    	}
+			pagesEffected.add(emptyPage);
+			return pagesEffected;
+    	}
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-    	Page containingHeapPage = Database.getBufferPool().getPage(tid, 
-    			t.getRecordId().getPageId(), Permissions.READ_WRITE);
-    	((HeapPage) containingHeapPage).deleteTuple(t);
+    	// lock only the record, so others can change the rest of the page
+    	BufferPool bufferPool = Database.getBufferPool();
+    	bufferPool.lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+    	Page containingHeapPage = bufferPool.getPage(tid, t.getRecordId().getPageId(), LockMode.IX);
+    	((HeapPage) containingHeapPage).deleteTuple(tid, t);
+    	if (this.freeSpaceMap != null) {
+    		this.freeSpaceMap.markFree(containingHeapPage.getId().pageNumber());
+    	}
     	ArrayList<Page> pagesEffected = new ArrayList<Page>();
     	pagesEffected.add(containingHeapPage);
     	return pagesEffected;
     }
 
+    /**
+     * Appends whole pages to the end of the file with one sequential write,
+     * logging a single BULK_LOAD record for them first. Used by BulkLoader;
+     * the pages do not go through the BufferPool, but the transaction takes
+     * write locks on them so they stay invisible until it completes.
+     * 
+     * @param tid the transaction doing the load
+     * @param data the page images, back to back
+     * @param count the number of pages in data
+     * @param lastHasSpace whether the last page has empty slots; all the
+     *            others are assumed full
+     * @return the page number of the first appended page
+     */
+    int appendPages(TransactionId tid, byte[] data, int count, boolean lastHasSpace)
+    		throws IOException, TransactionAbortedException {
+    	FreeSpaceMap freeSpaceMap = getFreeSpaceMap();
+    	Database.getBufferPool().lockTable(tid, getId(), LockMode.IX);
+    	synchronized (this.appendLock) {
+    		int firstPage = this.numPages();
+    		// nobody else can hold locks on pages past the end of the file
+    		for (int i = firstPage; i < firstPage + count; i++) {
+    			Database.getBufferPool().lockPage(tid, new HeapPageId(getId(), i),
+    					Permissions.READ_WRITE);
+    		}
+    		for (int i = firstPage; i < firstPage + count; i++) {
+    			Database.getBufferPool().registerAppend(tid, new HeapPageId(getId(), i));
+    		}
+    		Database.getLogFile().logBulkLoad(tid, getId(), firstPage, count);
+    		ByteBuffer buffer = ByteBuffer.wrap(data, 0, count * BufferPool.getPageSize());
+    		long byteOffSet = (long) firstPage * BufferPool.getPageSize();
+    		FileChannel fileChannel = getChannel();
+    		while (buffer.hasRemaining()) {
+    			fileChannel.write(buffer, byteOffSet + buffer.position());
+    		}
+    		freeSpaceMap.ensurePages(firstPage + count);
+    		for (int i = firstPage; i < firstPage + count; i++) {
+    			freeSpaceMap.markFull(i);
+    		}
+    		if (lastHasSpace) {
+    			freeSpaceMap.markFree(firstPage + count - 1);
+    		}
+    		return firstPage;
+    	}
+    }
+
+    /**
+     * Forces everything written to the file out to disk.
+     */
+    void force() throws IOException {
+    	getChannel().force(true);
+    }
+
+    /**
+     * Returns the free space map of this file, loading it from the saved
+     * copy or building it from the page headers the first time it is needed.
+     */
+    synchronized FreeSpaceMap getFreeSpaceMap() {
+    	if (this.freeSpaceMap == null) {
+    		File saved = getFreeSpaceMapFile();
+    		if (saved.exists() && saved.lastModified() >= this.file.lastModified()) {
+    			try {
+    				FreeSpaceMap loaded = FreeSpaceMap.load(saved);
+    				// a map of more pages than the file has is from another file
+    				if (loaded.numPages() <= this.numPages()) {
+    					this.freeSpaceMap = loaded;
+    				}
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    		if (this.freeSpaceMap == null) {
+    			this.freeSpaceMap = buildFreeSpaceMap();
+    		}
+    	}
+    	return this.freeSpaceMap;
+    }
+
+    // Helper method that builds the free space map by reading only the
+    // header of every page instead of the whole page
+    private FreeSpaceMap buildFreeSpaceMap() {
+    	FreeSpaceMap map = new FreeSpaceMap();
+    	int numSlots = (BufferPool.getPageSize() * 8) / (this.schema.getSize() * 8 + 1);
+    	byte[] header = new byte[(numSlots + 7) / 8];
+    	int numberOfPages = this.numPages();
+    	int i = 0;
+    	try {
+    		FileChannel fileChannel = getChannel();
+	    	for (; i < numberOfPages; i++) {
+	    		ByteBuffer buffer = ByteBuffer.wrap(header);
+	    		long byteOffSet = (long) i * BufferPool.getPageSize();
+	    		while (buffer.hasRemaining()) {
+	    			if (fileChannel.read(buffer, byteOffSet + buffer.position()) < 0) {
+	    				throw new EOFException("unexpected end of " + this.file);
+	    			}
+	    		}
+	    		for (int slot = 0; slot < numSlots; slot++) {
+	    			if ((header[slot / 8] & (1 << (slot % 8))) == 0) {
+	    				map.markFree(i);
+	    				break;
+	    			}
+	    		}
+	    	}
+    	} catch (IOException e) {
+    		// fall back to treating the pages not read as candidates
+    		e.printStackTrace();
+    		for (; i < numberOfPages; i++) {
+    			map.markFree(i);
+    		}
+    	}
+    	map.ensurePages(numberOfPages);
+    	return map;
+    }
+
+    /**
+     * Returns the file the free space map is saved to, next to the data file.
+     */
+    public File getFreeSpaceMapFile() {
+    	return new File(this.file.getPath() + ".fsm");
+    }
+
+    /**
+     * Sets whether the free space map is saved when this file is closed, so
+     * that it does not need to be rebuilt the next time the table is opened.
+     * Off by default.
+     */
+    public void setPersistFreeSpaceMap(boolean persist) {
+    	this.persistFreeSpaceMap = persist;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new DbHeapFileIterator(this.getId(), this.numPages() - 1, tid);
@@ -9,6 +9,9 @@ import java.util.ArrayList;
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
  * data file.
+ * <p>
+ * To append to a table that is already in the Catalog, use BulkLoader,
+ * which writes pages straight into the open HeapFile and logs the load.
  */
 
 public class HeapFileEncoder {
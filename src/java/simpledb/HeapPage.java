@@ -2,10 +2,23 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page keeps the bytes it was read from and does not decode its tuples
+ * up front. Tuples are created as views over those bytes the first time
+ * they are asked for, and their fields are decoded on demand; see
+ * {@link Tuple}. Tuples added by insertTuple are stored as given.
+ * <p>
+ * Several transactions may change different slots of a page at once, each
+ * holding its own record locks. The page remembers which slots each of
+ * them changed, so a commit copies only the committing transaction's slots
+ * to the before image, and an abort copies only the aborting transaction's
+ * slots back from it. Slots that a transaction emptied are not reused by
+ * other transactions until it commits.
  *
  * @see HeapFile
  * @see BufferPool
@@ -18,12 +31,41 @@ public class HeapPage implements Page {
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    
+    /**
+     * The bytes the page was read from, or the before image it was last
+     * restored to, starting at position 0. Never modified; slots changed
+     * since then are held in tuples.
+     */
+    ByteBuffer data;
 
+    /**
+     * The before image, or null while it is still the bytes in data, so a
+     * page that is only read never copies its bytes
+     */
     byte[] oldData;
-    private final Byte oldDataLock = new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     
     private TransactionId lastDirter;
 
+    /**
+     * The slots each transaction that has not completed yet changed
+     */
+    private final Map<TransactionId, BitSet> changedSlots = new HashMap<TransactionId, BitSet>();
+
+    /**
+     * Slots changed by insertTuple(Tuple) and deleteTuple(Tuple), which do
+     * not name a transaction; they belong to the next transaction that
+     * marks the page dirty
+     */
+    private final BitSet unclaimedSlots = new BitSet();
+
+    /**
+     * The last transaction whose changes were copied to the before image
+     * since the page was read or marked clean, or null if there was none
+     */
+    private TransactionId lastCommitter;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -41,29 +83,32 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        // the array is kept, not copied; callers pass in freshly read data
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page, in the format
+     * described in {@link #HeapPage(HeapPageId, byte[])}. The page is read
+     * from the buffer's current position; the buffer itself is not modified,
+     * so it can be a read-only view of a memory-mapped file. The page keeps
+     * a reference to the buffer, so its contents must not change while the
+     * page is in use.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
     	this.lastDirter = null;
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data.slice();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++) {
-            header[i] = dis.readByte();
-        }
+        this.data.duplicate().get(header);
         
+        // tuples are created lazily by tupleAt; the before image is data
+        // until a commit changes it
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -87,12 +132,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid, beforeImageBuffer());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -101,13 +141,171 @@ public class HeapPage implements Page {
         return null;
     }
     
-    public void setBeforeImage() {
+    public synchronized void setBeforeImage() {
+        // getPageData returns a new array, which nothing else refers to
+        byte[] image = getPageData();
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = image;
         }
     }
 
+    // Helper method that returns the before image as a buffer starting at
+    // position 0, without copying it
+    private ByteBuffer beforeImageBuffer() {
+        synchronized(oldDataLock) {
+            if (oldData != null) {
+                return ByteBuffer.wrap(oldData);
+            }
+            ByteBuffer image = this.data.duplicate();
+            image.position(0);
+            return image;
+        }
+    }
+
+    // Helper method that returns a copy of the before image that can be
+    // modified
+    private byte[] copyBeforeImage() {
+        ByteBuffer buf = beforeImageBuffer();
+        byte[] image = new byte[BufferPool.getPageSize()];
+        buf.get(image, 0, Math.min(image.length, buf.remaining()));
+        return image;
+    }
+
+    /**
+     * Copies the slots the committed transaction changed to the before
+     * image. If no other transaction has changes on the page, the whole page
+     * is copied.
+     */
+    public synchronized void setBeforeImage(TransactionId tid) {
+        BitSet slots = this.changedSlots.remove(tid);
+        if (this.changedSlots.isEmpty() && this.unclaimedSlots.isEmpty()) {
+            setBeforeImage();
+        } else if (slots != null) {
+            byte[] image = copyBeforeImage();
+            copySlots(getPageData(), image, slots);
+            synchronized(oldDataLock) {
+                oldData = image;
+            }
+        }
+        this.lastCommitter = tid;
+    }
+
+    /**
+     * Undoes the changes of the aborted transaction by copying the slots it
+     * changed back from the before image. If no other transaction has
+     * changes on the page, the whole page is restored, and the page is clean
+     * again unless committed changes were copied to the before image since
+     * it was read.
+     */
+    public synchronized void restoreBeforeImage(TransactionId tid) {
+        BitSet slots = this.changedSlots.remove(tid);
+        ByteBuffer image = beforeImageBuffer();
+        if (this.changedSlots.isEmpty() && this.unclaimedSlots.isEmpty()) {
+            // the before image is never modified, so the page can read it
+            synchronized(oldDataLock) {
+                this.data = image;
+            }
+            image.duplicate().get(header);
+            Arrays.fill(this.tuples, null);
+            this.lastDirter = this.lastCommitter;
+            return;
+        }
+        if (slots != null) {
+            for (int i = slots.nextSetBit(0); i >= 0; i = slots.nextSetBit(i + 1)) {
+                boolean used = isSlotUsed(image, i);
+                markSlotUsed(i, used);
+                this.tuples[i] = null;
+                if (used) {
+                    Tuple t = new Tuple(td, image, header.length + i * td.getSize());
+                    t.setRecordId(new RecordId(pid, i));
+                    this.tuples[i] = t;
+                }
+            }
+        }
+        if (tid.equals(this.lastDirter)) {
+            this.lastDirter = this.changedSlots.isEmpty() ? this.lastCommitter
+                    : this.changedSlots.keySet().iterator().next();
+        }
+    }
+
+    public synchronized Set<TransactionId> getDirtiers() {
+        return new HashSet<TransactionId>(this.changedSlots.keySet());
+    }
+
+    public synchronized HeapPage getChangesOf(TransactionId tid) throws IOException {
+        byte[] image = copyBeforeImage();
+        BitSet slots = this.changedSlots.get(tid);
+        if (slots != null) {
+            copySlots(getPageData(), image, slots);
+        }
+        return new HeapPage(pid, image);
+    }
+
+    public synchronized HeapPage undoUpdate(Page before, Page after) throws IOException {
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        BitSet slots = new BitSet();
+        for (int i = 0; i < numSlots; i++) {
+            if (slotDiffers(beforeData, afterData, i)) {
+                slots.set(i);
+            }
+        }
+        byte[] image = getPageData();
+        copySlots(beforeData, image, slots);
+        return new HeapPage(pid, image);
+    }
+
+    // Helper method that returns true if a slot is used in only one of two
+    // page images, or holds different bytes in them
+    private boolean slotDiffers(byte[] a, byte[] b, int i) {
+        if (isSlotUsed(a, i) != isSlotUsed(b, i)) {
+            return true;
+        }
+        int tupleSize = td.getSize();
+        int offset = header.length + i * tupleSize;
+        for (int j = offset; j < offset + tupleSize; j++) {
+            if (a[j] != b[j]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Helper method that copies the header bits and bytes of slots from one
+    // page image to another
+    private void copySlots(byte[] from, byte[] to, BitSet slots) {
+        int tupleSize = td.getSize();
+        for (int i = slots.nextSetBit(0); i >= 0; i = slots.nextSetBit(i + 1)) {
+            int mask = 1 << (i % 8);
+            to[i / 8] = (byte) ((to[i / 8] & ~mask) | (from[i / 8] & mask));
+            int offset = header.length + i * tupleSize;
+            System.arraycopy(from, offset, to, offset, tupleSize);
+        }
+    }
+
+    // Helper method that returns true if the slot is used in a page image
+    private static boolean isSlotUsed(byte[] image, int i) {
+        return (image[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    // Helper method that returns true if the slot is used in a page image
+    // starting at position 0 of the buffer
+    private static boolean isSlotUsed(ByteBuffer image, int i) {
+        return (image.get(i / 8) & (1 << (i % 8))) != 0;
+    }
+
+    // Helper method that returns the slots tid changed, adding an empty set
+    // if there are none
+    private BitSet slotsOf(TransactionId tid) {
+        BitSet slots = this.changedSlots.get(tid);
+        if (slots == null) {
+            slots = new BitSet();
+            this.changedSlots.put(tid, slots);
+        }
+        return slots;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -117,37 +315,75 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in the specified slot, creating a view over the
+     * page bytes if it has not been created yet.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private synchronized Tuple tupleAt(int slotId) {
+        Tuple t = this.tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, this.data, header.length + slotId * td.getSize());
+            t.setRecordId(new RecordId(pid, slotId));
+            this.tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Appends the tuples of this page to a batch, starting at the specified
+     * slot, until the batch is full. Slots that were not changed since the
+     * page was read are copied straight from the page bytes.
+     *
+     * @param batch the batch to add rows to
+     * @param fromSlot the first slot to look at
+     * @return the slot to continue from, or getNumSlots() if every slot was
+     *         looked at
+     */
+    int fillBatch(TupleBatch batch, int fromSlot) {
+        int tupleSize = td.getSize();
+        int numFields = td.numFields();
+        int[] fieldOffsets = new int[numFields];
+        int[][] intColumns = new int[numFields][];
+        String[][] stringColumns = new String[numFields][];
+        for (int j = 0, offset = 0; j < numFields; j++) {
+            fieldOffsets[j] = offset;
+            offset += td.getFieldType(j).getLen();
+            intColumns[j] = batch.getIntColumn(j);
+            stringColumns[j] = batch.getStringColumn(j);
+        }
+        int slot = fromSlot;
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if ((header[slot >> 3] & (1 << (slot & 7))) == 0) {
+                continue;
+            }
+            Tuple t = this.tuples[slot];
+            if (t != null) {
+                batch.addTuple(t);
+                continue;
+            }
+            int row = batch.addRow();
+            int tupleOffset = header.length + slot * tupleSize;
+            for (int j = 0; j < numFields; j++) {
+                int offset = tupleOffset + fieldOffsets[j];
+                if (intColumns[j] != null) {
+                    intColumns[j][row] = this.data.getInt(offset);
+                } else {
+                    int strLen = this.data.getInt(offset);
+                    byte[] bytes = new byte[strLen];
+                    for (int k = 0; k < strLen; k++) {
+                        bytes[k] = this.data.get(offset + 4 + k);
+                    }
+                    stringColumns[j][row] = new String(bytes);
+                }
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
+        return slot;
+    }
 
-        return t;
+    /**
+     * @return the number of tuple slots on this page
+     */
+    int getNumSlots() {
+        return this.numSlots;
     }
 
     /**
@@ -161,65 +397,50 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        int tupleSize = td.getSize();
+        byte[] pageData = new byte[len];
+
+        // start from the bytes the page was read from; slots that were not
+        // touched since are already correct
+        ByteBuffer buf = this.data.duplicate();
+        buf.position(0);
+        buf.get(pageData, 0, Math.min(len, buf.remaining()));
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, pageData, 0, header.length);
 
         // create the tuples
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
         for (int i=0; i<tuples.length; i++) {
+            int offset = header.length + i * tupleSize;
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                Arrays.fill(pageData, offset, offset + tupleSize, (byte) 0);
                 continue;
             }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+            // non-empty slot that may have changed; tuples still reading
+            // their slot of data are already correct
+            if (tuples[i] != null && !tuples[i].isUnchangedView(this.data, offset)) {
+                baos.reset();
                 try {
-                    f.serialize(dos);
-                
+                    tuples[i].serialize(dos);
+                    dos.flush();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                System.arraycopy(baos.toByteArray(), 0, pageData, offset, tupleSize);
             }
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        Arrays.fill(pageData, header.length + tupleSize * tuples.length, len, (byte) 0);
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return pageData;
     }
 
     /**
@@ -243,7 +464,23 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+    	this.unclaimedSlots.set(deleteSlot(t));
+    }
+
+    /**
+     * Deletes the specified tuple from the page on behalf of a transaction,
+     * which must hold an exclusive lock on the tuple. The slot is not reused
+     * by other transactions until tid commits.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(TransactionId tid, Tuple t) throws DbException {
+    	slotsOf(tid).set(deleteSlot(t));
+    }
+
+    // Helper method that empties the slot of a tuple and returns the slot
+    private int deleteSlot(Tuple t) throws DbException {
     	if (t.getRecordId().getPageId() == null || !t.getRecordId().getPageId().equals(this.pid)) {
     		throw new DbException("tuple " + t + " does not belong to this page");
     	}
@@ -257,6 +494,7 @@ public class HeapPage implements Page {
 		RecordId updatedRecordId = new RecordId(this.pid, -1);
 		t.setRecordId(updatedRecordId);
     	markSlotUsed(headerIndex, false);
+    	return headerIndex;
     }
 
     /**
@@ -266,7 +504,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
     	if (getNumEmptySlots() == 0) {
     		throw new DbException("there are no empty slots on page " + this.pid);
     	}
@@ -277,38 +515,82 @@ public class HeapPage implements Page {
     	
     	for (int i = 0; i < this.numSlots; i++) {
     		if (!isSlotUsed(i)) {
-    			RecordId updatedRecordId = new RecordId(this.pid, i);
-    			t.setRecordId(updatedRecordId);
-    			this.tuples[i] = t;
-    			markSlotUsed(i, true);
+    			insertSlot(i, t);
+    			this.unclaimedSlots.set(i);
     			break;
     		}
     	}
     }
 
+    /**
+     * Adds the specified tuple to the page on behalf of a transaction,
+     * skipping slots emptied by other transactions that have not committed.
+     * The caller should lock the tuple's new RecordId exclusively.
+     * @throws DbException if the tupledesc is mismatch.
+     * @return true if the tuple was added, false if no slot was free for tid
+     */
+    public synchronized boolean insertTuple(TransactionId tid, Tuple t) throws DbException {
+    	if (!this.td.equals(t.getTupleDesc())) {
+    		throw new DbException("tuple desc do not match for inserted tuple");
+    	}
+    	ByteBuffer image = beforeImageBuffer();
+    	BitSet own = this.changedSlots.get(tid);
+    	for (int i = 0; i < this.numSlots; i++) {
+    		if (!isSlotUsed(i) && (!isSlotUsed(image, i) || (own != null && own.get(i)))) {
+    			insertSlot(i, t);
+    			slotsOf(tid).set(i);
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    // Helper method that stores a tuple in an empty slot
+    private void insertSlot(int i, Tuple t) {
+    	RecordId updatedRecordId = new RecordId(this.pid, i);
+    	t.setRecordId(updatedRecordId);
+    	this.tuples[i] = t;
+    	markSlotUsed(i, true);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
     	if (dirty) {
     		this.lastDirter = tid;
+    		if (!this.unclaimedSlots.isEmpty()) {
+    			slotsOf(tid).or(this.unclaimedSlots);
+    			this.unclaimedSlots.clear();
+    		}
     	} else {
     		this.lastDirter = null;
+    		this.lastCommitter = null;
+    		this.changedSlots.clear();
+    		this.unclaimedSlots.clear();
     	}
     }
 
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         return this.lastDirter;     
     }
 
+    /**
+     * Returns true if the transaction has changes on this page, or last
+     * dirtied it
+     */
+    public synchronized boolean isDirtiedBy(TransactionId tid) {
+        return this.changedSlots.containsKey(tid) || tid.equals(this.lastDirter);
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
     	if (this.header == null) {
     		return this.numSlots;
@@ -352,14 +634,14 @@ public class HeapPage implements Page {
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator() {
         // some code goes here
         int numSlotsUsed = this.numSlots - this.getNumEmptySlots();
         Tuple[] usedTuples = new Tuple[numSlotsUsed];
         int usedTuplesIndex = 0;
         for (int i = 0; i < this.numSlots; i++) {
         	if (isSlotUsed(i)) {
-        		usedTuples[usedTuplesIndex] = this.tuples[i];
+        		usedTuples[usedTuplesIndex] = tupleAt(i);
         		usedTuplesIndex++;
         	}
         }
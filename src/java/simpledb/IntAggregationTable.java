@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * IntAggregationTable maps int group-by values to running aggregate values
+ * without creating an object per group or per row. Keys live in an
+ * open-addressing hash table with linear probing; each group gets a dense
+ * index, and the accumulators of group g are first(g) and second(g) in two
+ * parallel long arrays. What the accumulators mean is up to the caller,
+ * e.g. the sum and the count for AVG.
+ *
+ * @see IntegerAggregator
+ */
+public class IntAggregationTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Marks an unused hash slot
+	 */
+	private static final int EMPTY = -1;
+
+	/**
+	 * Group index stored in each hash slot, or EMPTY
+	 */
+	private int[] slots;
+
+	/**
+	 * The key of each group, by group index
+	 */
+	private int[] keys;
+
+	/**
+	 * The accumulators of each group, by group index
+	 */
+	private long[] first;
+	private long[] second;
+
+	/**
+	 * Number of groups
+	 */
+	private int size;
+
+	/**
+	 * Creates an empty table.
+	 */
+	public IntAggregationTable() {
+		this(16);
+	}
+
+	/**
+	 * Creates an empty table sized for the specified number of groups.
+	 */
+	public IntAggregationTable(int expectedGroups) {
+		int capacity = Integer.highestOneBit(Math.max(expectedGroups, 8) * 2 - 1) * 2;
+		this.slots = new int[capacity];
+		Arrays.fill(this.slots, EMPTY);
+		this.keys = new int[capacity / 2];
+		this.first = new long[capacity / 2];
+		this.second = new long[capacity / 2];
+		this.size = 0;
+	}
+
+	// Helper method that spreads the bits of a key over the slot index
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the index of the group with the specified key, or -1 if there
+	 *         is none
+	 */
+	public int find(int key) {
+		int mask = this.slots.length - 1;
+		for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			int group = this.slots[slot];
+			if (group == EMPTY) {
+				return -1;
+			}
+			if (this.keys[group] == key) {
+				return group;
+			}
+		}
+	}
+
+	/**
+	 * Adds a group with the specified key, which must not be in the table
+	 * yet. Its accumulators start at 0.
+	 *
+	 * @return the index of the new group
+	 */
+	public int add(int key) {
+		if (this.size == this.keys.length) {
+			grow();
+		}
+		int group = this.size++;
+		this.keys[group] = key;
+		this.first[group] = 0;
+		this.second[group] = 0;
+		insertSlot(key, group);
+		return group;
+	}
+
+	// Helper method that puts a group in the first free slot for its key
+	private void insertSlot(int key, int group) {
+		int mask = this.slots.length - 1;
+		int slot = hash(key) & mask;
+		while (this.slots[slot] != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		this.slots[slot] = group;
+	}
+
+	// Helper method that doubles the table, keeping it at most half full
+	private void grow() {
+		int capacity = this.slots.length * 2;
+		this.slots = new int[capacity];
+		Arrays.fill(this.slots, EMPTY);
+		this.keys = Arrays.copyOf(this.keys, capacity / 2);
+		this.first = Arrays.copyOf(this.first, capacity / 2);
+		this.second = Arrays.copyOf(this.second, capacity / 2);
+		for (int group = 0; group < this.size; group++) {
+			insertSlot(this.keys[group], group);
+		}
+	}
+
+	/**
+	 * @return the number of groups
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the key of group g
+	 */
+	public int keyAt(int g) {
+		return this.keys[g];
+	}
+
+	public long first(int g) {
+		return this.first[g];
+	}
+
+	public void setFirst(int g, long value) {
+		this.first[g] = value;
+	}
+
+	public long second(int g) {
+		return this.second[g];
+	}
+
+	public void setSecond(int g, long value) {
+		this.second[g] = value;
+	}
+}
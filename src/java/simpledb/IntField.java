@@ -48,31 +48,32 @@ public class IntField implements Field {
      * @see Field#compare
      */
     public boolean compare(Predicate.Op op, Field val) {
-
         IntField iVal = (IntField) val;
+        return compare(value, op, iVal.value);
+    }
 
+    /**
+     * Compare two int values with the specified operation, with the same
+     * semantics as {@link #compare(Predicate.Op, Field)}. Used to compare
+     * values that have not been wrapped in an IntField.
+     */
+    static boolean compare(int value, Predicate.Op op, int operand) {
         switch (op) {
         case EQUALS:
-            return value == iVal.value;
+            return value == operand;
         case NOT_EQUALS:
-            return value != iVal.value;
-
+            return value != operand;
         case GREATER_THAN:
-            return value > iVal.value;
-
+            return value > operand;
         case GREATER_THAN_OR_EQ:
-            return value >= iVal.value;
-
+            return value >= operand;
         case LESS_THAN:
-            return value < iVal.value;
-
+            return value < operand;
         case LESS_THAN_OR_EQ:
-            return value <= iVal.value;
-
+            return value <= operand;
     case LIKE:
-        return value == iVal.value;
+        return value == operand;
         }
-
         return false;
     }
 
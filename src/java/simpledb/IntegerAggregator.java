@@ -11,10 +11,10 @@ import java.util.Set;
 public class IntegerAggregator implements Aggregator {
 	
 	private class IntPair {
-		public int first;
-		public int second;
+		public long first;
+		public long second;
 		
-		public IntPair(int first, int second) {
+		public IntPair(long first, long second) {
 			this.first = first;
 			this.second = second;
 		}
@@ -27,6 +27,7 @@ public class IntegerAggregator implements Aggregator {
     private int afield;
     private Op what;
     private Map<Field, IntPair> aggregatorGroups;
+    private IntAggregationTable intGroups;
     private IntPair aggregatorNoGroups;
     private String gbColName;
     private String aggColName;
@@ -52,6 +53,9 @@ public class IntegerAggregator implements Aggregator {
         this.afield = afield;
         this.what = what;
         this.aggregatorGroups = new HashMap<Field, IntPair>();
+        // int group-by values are aggregated without allocating per tuple
+        this.intGroups = gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE
+        		? new IntAggregationTable() : null;
         this.aggregatorNoGroups = null;
         this.gbColName = null;
         this.aggColName = null;
@@ -70,21 +74,34 @@ public class IntegerAggregator implements Aggregator {
         		setAggColName(tup);
         	}
         	if (this.aggregatorNoGroups == null) {
-        		this.aggregatorNoGroups = createIntPairFromTuple(tup);
+        		this.aggregatorNoGroups = new IntPair(initialFirst(tup), initialSecond(tup));
         	} else {
-            	this.aggregatorNoGroups = mergeTupleIntoIntPair(this.aggregatorNoGroups, tup);
+        		mergeTupleIntoIntPair(this.aggregatorNoGroups, tup);
         	}
         } else {
         	if (this.aggColName == null || this.gbColName == null) {
         		setAggColName(tup);
         		setgbColName(tup);
         	}
+        	if (this.intGroups != null) {
+        		int key = tup.getInt(this.gbfield);
+        		int group = this.intGroups.find(key);
+        		if (group < 0) {
+        			group = this.intGroups.add(key);
+        			this.intGroups.setFirst(group, initialFirst(tup));
+        			this.intGroups.setSecond(group, initialSecond(tup));
+        		} else {
+        			this.intGroups.setFirst(group, mergedFirst(this.intGroups.first(group), tup));
+        			this.intGroups.setSecond(group, mergedSecond(this.intGroups.second(group), tup));
+        		}
+        		return;
+        	}
         	Field tupGroupByField = tup.getField(this.gbfield);
-        	if (!this.aggregatorGroups.containsKey(tupGroupByField)) {
-        		this.aggregatorGroups.put(tupGroupByField, createIntPairFromTuple(tup));
+        	IntPair currIntPair = this.aggregatorGroups.get(tupGroupByField);
+        	if (currIntPair == null) {
+        		this.aggregatorGroups.put(tupGroupByField, new IntPair(initialFirst(tup), initialSecond(tup)));
         	} else {
-        		IntPair currIntPair = this.aggregatorGroups.get(tupGroupByField);
-        		this.aggregatorGroups.put(tupGroupByField, mergeTupleIntoIntPair(currIntPair, tup));
+        		mergeTupleIntoIntPair(currIntPair, tup);
         	}
         }
     }
@@ -97,67 +114,82 @@ public class IntegerAggregator implements Aggregator {
     	this.gbColName = tup.getTupleDesc().getFieldName(this.gbfield);
     }
     
-    private IntPair mergeTupleIntoIntPair(IntPair currIntPair, Tuple tup) {
-    	int currTupleAggValue = ((IntField) tup.getField(this.afield)).getValue();
+    private void mergeTupleIntoIntPair(IntPair currIntPair, Tuple tup) {
+    	currIntPair.first = mergedFirst(currIntPair.first, tup);
+    	currIntPair.second = mergedSecond(currIntPair.second, tup);
+    }
+
+    // Helper method that returns the first accumulator of a group whose
+    // first tuple is tup
+    private long initialFirst(Tuple tup) {
     	switch(this.what) {
-		case AVG:
-			int newIntPairSum = currIntPair.first + currTupleAggValue;
-			return new IntPair(newIntPairSum, currIntPair.second + 1);
 		case COUNT:
-			return new IntPair(currIntPair.first + 1, 0);
-		case MAX:
-			int max = currTupleAggValue > currIntPair.first ? currTupleAggValue : currIntPair.first;
-			return new IntPair(max, 0);
-		case MIN:
-			int min = currTupleAggValue < currIntPair.first ? currTupleAggValue : currIntPair.first;
-			return new IntPair(min, 0);
-		case SUM:
-			return new IntPair(currIntPair.first + currTupleAggValue, 0);
-		case SUM_COUNT:
-			return new IntPair(currIntPair.first + currTupleAggValue, currIntPair.second + 1);
+			return 1;
 		case SC_AVG:
-			if (this.gbfield == NO_GROUPING) {
-				int sum = ((IntField) tup.getField(0)).getValue();
-				int count = ((IntField) tup.getField(1)).getValue();
-				return new IntPair(sum + currIntPair.first, count + currIntPair.second);
-			} else {
-				int sum = ((IntField) tup.getField(1)).getValue();
-				int count = ((IntField) tup.getField(2)).getValue();
-				return new IntPair(sum + currIntPair.first, count + currIntPair.second);
-			}
+			return tup.getInt(this.gbfield == NO_GROUPING ? 0 : 1);
 		default:
-			return null;
+			return tup.getInt(this.afield);
     	}
     }
-    
-    private IntPair createIntPairFromTuple(Tuple tup) {
-    	int currTupleAggValue = ((IntField) tup.getField(this.afield)).getValue();
+
+    // Helper method that returns the second accumulator of a group whose
+    // first tuple is tup
+    private long initialSecond(Tuple tup) {
     	switch(this.what) {
 		case AVG:
-			return new IntPair(currTupleAggValue, 1);
+		case SUM_COUNT:
+			return 1;
+		case SC_AVG:
+			return tup.getInt(this.gbfield == NO_GROUPING ? 1 : 2);
+		default:
+			return 0;
+    	}
+    }
+
+    // Helper method that merges tup into the first accumulator of a group
+    private long mergedFirst(long first, Tuple tup) {
+    	switch(this.what) {
 		case COUNT:
-			return new IntPair(1, 0);
+			return first + 1;
 		case MAX:
-			return new IntPair(currTupleAggValue, 0);
+			return Math.max(first, tup.getInt(this.afield));
 		case MIN:
-			return new IntPair(currTupleAggValue, 0);
-		case SUM:
-			return new IntPair(currTupleAggValue, 0);
+			return Math.min(first, tup.getInt(this.afield));
+		case SC_AVG:
+			return first + tup.getInt(this.gbfield == NO_GROUPING ? 0 : 1);
+		default:
+			return first + tup.getInt(this.afield);
+    	}
+    }
+
+    // Helper method that merges tup into the second accumulator of a group
+    private long mergedSecond(long second, Tuple tup) {
+    	switch(this.what) {
+		case AVG:
 		case SUM_COUNT:
-			return new IntPair(currTupleAggValue, 1);
+			return second + 1;
 		case SC_AVG:
-			if (this.gbfield == NO_GROUPING) {
-				int sum = ((IntField) tup.getField(0)).getValue();
-				int count = ((IntField) tup.getField(1)).getValue();
-				return new IntPair(sum, count);
-			} else {
-				int sum = ((IntField) tup.getField(1)).getValue();
-				int count = ((IntField) tup.getField(2)).getValue();
-				return new IntPair(sum, count);
-			}
+			return second + tup.getInt(this.gbfield == NO_GROUPING ? 1 : 2);
 		default:
-			return null;
+			return 0;
+    	}
+    }
+
+    public int numGroups() {
+    	if (this.gbfield == NO_GROUPING) {
+    		return this.aggregatorNoGroups == null ? 0 : 1;
+    	}
+    	return this.intGroups != null ? this.intGroups.size() : this.aggregatorGroups.size();
+    }
+
+    public boolean hasGroup(Field group) {
+    	if (this.gbfield == NO_GROUPING) {
+    		return false;
+    	}
+    	if (this.intGroups != null) {
+    		return this.intGroups.find(((IntField) group).getValue()) >= 0;
     	}
+    	return this.aggregatorGroups.containsKey(group);
     }
 
     /**
@@ -192,69 +224,69 @@ public class IntegerAggregator implements Aggregator {
         		return new TupleIterator(td, iterableTuples);
     		}
     	} else {
-    		if (this.aggregatorGroups.isEmpty()) {
+    		if (this.aggregatorGroups.isEmpty() && (this.intGroups == null || this.intGroups.size() == 0)) {
     			return new TupleIterator(null, new HashSet<Tuple>());
     		}
+    		TupleDesc td;
     		if (this.what == Op.SUM_COUNT) {
         		Type[] tdTypes = { this.gbfieldtype, Type.INT_TYPE, Type.INT_TYPE };
         		String[] names = { this.gbColName, "sum", "count" };
-        		TupleDesc td = new TupleDesc(tdTypes, names);
-        		Set<Tuple> iterableTuples = new HashSet<Tuple>();
-        		for (Field group : this.aggregatorGroups.keySet()) {
-        			IntPair groupIntPair = this.aggregatorGroups.get(group);
-        			Tuple aggTuple = getGroupsTuple(groupIntPair, td, group);
-        			iterableTuples.add(aggTuple);
-        		}
-        		return new TupleIterator(td, iterableTuples);
+        		td = new TupleDesc(tdTypes, names);
     		} else {
         		Type[] tdTypes = { this.gbfieldtype, Type.INT_TYPE };
         		String[] names = { this.gbColName, this.aggColName };
-        		TupleDesc td = new TupleDesc(tdTypes, names);
-        		Set<Tuple> iterableTuples = new HashSet<Tuple>();
-        		for (Field group : this.aggregatorGroups.keySet()) {
-        			IntPair groupIntPair = this.aggregatorGroups.get(group);
-        			Tuple aggTuple = getGroupsTuple(groupIntPair, td, group);
-        			iterableTuples.add(aggTuple);
-        		}
-        		return new TupleIterator(td, iterableTuples);
+        		td = new TupleDesc(tdTypes, names);
+    		}
+    		Set<Tuple> iterableTuples = new HashSet<Tuple>();
+    		if (this.intGroups != null) {
+    			for (int g = 0; g < this.intGroups.size(); g++) {
+    				Field group = new IntField(this.intGroups.keyAt(g));
+    				iterableTuples.add(getGroupsTuple(this.intGroups.first(g), this.intGroups.second(g), td, group));
+    			}
+    		} else {
+    			for (Field group : this.aggregatorGroups.keySet()) {
+    				IntPair groupIntPair = this.aggregatorGroups.get(group);
+    				iterableTuples.add(getGroupsTuple(groupIntPair.first, groupIntPair.second, td, group));
+    			}
     		}
+    		return new TupleIterator(td, iterableTuples);
     	}
     }
     
     private Tuple getNoGroupTuple(IntPair ip, TupleDesc td) {
 		Tuple aggTuple = new Tuple(td);
 		if (this.what != Op.SUM_COUNT) {
-			IntField aggField = new IntField(getAggValue(ip));
+			IntField aggField = new IntField(getAggValue(ip.first, ip.second));
 			aggTuple.setField(0, aggField);
 		} else {
-			aggTuple.setField(0, new IntField(ip.first));
-			aggTuple.setField(1, new IntField(ip.second));
+			aggTuple.setField(0, new IntField((int) ip.first));
+			aggTuple.setField(1, new IntField((int) ip.second));
 		}
 
 		return aggTuple;
     }
     
-    private Tuple getGroupsTuple(IntPair ip, TupleDesc td, Field group) {
+    private Tuple getGroupsTuple(long first, long second, TupleDesc td, Field group) {
 		Tuple aggTuple = new Tuple(td);
 		aggTuple.setField(0, group);
 		if (this.what != Op.SUM_COUNT) {
-			IntField aggField = new IntField(getAggValue(ip));
+			IntField aggField = new IntField(getAggValue(first, second));
 			aggTuple.setField(1, aggField);
 		} else {
-			aggTuple.setField(1, new IntField(ip.first));
-			aggTuple.setField(2, new IntField(ip.second));
+			aggTuple.setField(1, new IntField((int) first));
+			aggTuple.setField(2, new IntField((int) second));
 		}
 		return aggTuple;
     }
     
-    private int getAggValue(IntPair ip) {
+    private int getAggValue(long first, long second) {
     	switch(this.what) {
 		case AVG:
-			return (ip.first / ip.second);
+			return (int) (first / second);
 		case SC_AVG:
-			return (ip.first / ip.second); 
+			return (int) (first / second); 
 		default:
-			return ip.first;
+			return (int) first;
     	}
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,11 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Equality joins hash child1 and probe the table with child2. Other joins
+ * are block nested-loop joins: child1 is read a block of tuples at a time,
+ * and child2 is scanned once per block rather than once per child1 tuple.
+ * A block holds about {@link #getBlockPages} pages' worth of tuples.
  */
 public class Join extends Operator {
 
@@ -12,8 +17,44 @@ public class Join extends Operator {
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
-    private List<Tuple> joinedTuples;
-    private Iterator<Tuple> itr;
+
+    /**
+     * Tuples of child1 by join field value, for equality joins
+     */
+    private transient Map<Field, List<Tuple>> ht;
+
+    /**
+     * Number of pages of child1 tuples per block, or 0 for the default
+     */
+    private int blockPages;
+
+    /**
+     * The child2 tuple being joined with the child1 tuples of the hash table
+     * entry or the block
+     */
+    private transient Tuple outer;
+
+    /**
+     * child1 tuples that match the current child2 tuple, for equality joins
+     */
+    private transient Iterator<Tuple> matches;
+
+    /**
+     * The current block of child1 tuples, for other joins, and the index of
+     * the next one to compare with the current child2 tuple
+     */
+    private transient List<Tuple> block;
+    private transient int blockIndex;
+
+    /**
+     * Maximum number of tuples in a block
+     */
+    private transient int blockSize;
+
+    /**
+     * Schema of the output tuples, computed when the join is opened
+     */
+    private transient TupleDesc td;
     
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -32,6 +73,42 @@ public class Join extends Operator {
         this.child2 = child2;
     }
 
+    /**
+     * @return the default block size in pages: half of the BufferPool, the
+     *         rest being left for the pages of child2 and the rest of the plan
+     */
+    public static int defaultBlockPages() {
+    	return Math.max(1, Database.getBufferPool().getNumPages() / 2);
+    }
+
+    /**
+     * @return the number of tuples of the specified schema that fill a
+     *         block of the specified number of pages
+     */
+    public static int blockTuples(int blockPages, TupleDesc td) {
+    	return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+    			(long) blockPages * BufferPool.getPageSize() / td.getSize()));
+    }
+
+    /**
+     * Sets the number of pages of child1 tuples buffered per scan of child2
+     * by nested-loop joins. Takes effect the next time the join is opened.
+     *
+     * @param pages
+     *            the block size in pages, or 0 for the default
+     */
+    public void setBlockPages(int pages) {
+    	this.blockPages = pages;
+    }
+
+    /**
+     * @return the number of pages of child1 tuples buffered per scan of
+     *         child2 by nested-loop joins
+     */
+    public int getBlockPages() {
+    	return this.blockPages > 0 ? this.blockPages : defaultBlockPages();
+    }
+
     public JoinPredicate getJoinPredicate() {
     	return this.p;
     }
@@ -64,44 +141,27 @@ public class Join extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        this.joinedTuples = new ArrayList<Tuple>();
+        this.td = getTupleDesc();
         this.child1.open();
         this.child2.open();
         if (this.p.getOperator() == Predicate.Op.EQUALS) {
-        	Map<Field, List<Tuple>> ht = new HashMap<Field, List<Tuple>>();
+        	this.ht = new HashMap<Field, List<Tuple>>();
         	while (this.child1.hasNext()) {
         		Tuple currChild1Tuple = this.child1.next();
         		Field currChild1Field = currChild1Tuple.getField(this.p.getField1());
-        		if (!ht.containsKey(currChild1Field)) {
-        			ht.put(currChild1Field, new ArrayList<Tuple>());
-        		}
-        		ht.get(currChild1Field).add(currChild1Tuple);
-        	}
-        	while (this.child2.hasNext()) {
-        		Tuple currChild2Tuple = this.child2.next();
-        		Field currChild2Field = currChild2Tuple.getField(this.p.getField2());
-        		if (ht.containsKey(currChild2Field)) {
-        			List<Tuple> matchingTuples = ht.get(currChild2Field);
-        			for (Tuple currMatch : matchingTuples) {
-        				Tuple currJoinedTuple = getMergedTuples(currMatch, currChild2Tuple);
-        				this.joinedTuples.add(currJoinedTuple);
-        			}
+        		List<Tuple> list = this.ht.get(currChild1Field);
+        		if (list == null) {
+        			list = new ArrayList<Tuple>();
+        			this.ht.put(currChild1Field, list);
         		}
+        		list.add(currChild1Tuple);
         	}
         } else {
-        	while (this.child1.hasNext()) {
-        		Tuple currChild1Tuple = this.child1.next();
-        		while (this.child2.hasNext()) {
-        			Tuple currChild2Tuple = this.child2.next();
-        			if (p.filter(currChild1Tuple, currChild2Tuple)) {
-        				Tuple currJoinedTuple = getMergedTuples(currChild1Tuple, currChild2Tuple);
-        				this.joinedTuples.add(currJoinedTuple);
-        			}
-        		}
-        		this.child2.rewind();
-        	}
+        	this.block = new ArrayList<Tuple>();
+        	this.blockSize = blockTuples(getBlockPages(), this.child1.getTupleDesc());
         }
-        this.itr = this.joinedTuples.iterator();
+        this.outer = null;
+        this.matches = null;
         super.open();
     }
 
@@ -109,12 +169,24 @@ public class Join extends Operator {
         super.close();
         this.child1.close();
         this.child2.close();
-        this.joinedTuples = null;
-        this.itr = null;
+        this.ht = null;
+        this.block = null;
+        this.outer = null;
+        this.matches = null;
     }
 
+    /**
+     * Runs the join again. For equality joins the hash table of child1 is
+     * kept and only child2 is read again.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
-    	this.itr = this.joinedTuples.iterator();
+    	if (this.ht == null) {
+    		this.child1.rewind();
+    		this.block.clear();
+    	}
+    	this.child2.rewind();
+    	this.outer = null;
+    	this.matches = null;
     }
 
     /**
@@ -136,10 +208,55 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-    	if (this.itr == null || !(this.itr.hasNext())) {
-    		return null;
-    	} else {
-    		return this.itr.next();
+    	if (this.ht != null) {
+    		return fetchNextHash();
+    	}
+    	return fetchNextNestedLoop();
+    }
+
+    // Helper method that probes the hash table of child1 with the tuples of
+    // child2
+    private Tuple fetchNextHash() throws TransactionAbortedException, DbException {
+    	while (this.matches == null || !this.matches.hasNext()) {
+    		if (!this.child2.hasNext()) {
+    			return null;
+    		}
+    		this.outer = this.child2.next();
+    		List<Tuple> matchingTuples = this.ht.get(this.outer.getField(this.p.getField2()));
+    		this.matches = matchingTuples == null ? null : matchingTuples.iterator();
+    	}
+    	return getMergedTuples(this.matches.next(), this.outer);
+    }
+
+    // Helper method that loops over child2 for each block of child1 tuples
+    private Tuple fetchNextNestedLoop() throws TransactionAbortedException, DbException {
+    	while (true) {
+    		if (this.block.isEmpty()) {
+    			while (this.block.size() < this.blockSize && this.child1.hasNext()) {
+    				this.block.add(this.child1.next());
+    			}
+    			if (this.block.isEmpty()) {
+    				return null;
+    			}
+    		}
+    		while (true) {
+    			if (this.outer != null) {
+    				while (this.blockIndex < this.block.size()) {
+    					Tuple currChild1Tuple = this.block.get(this.blockIndex++);
+    					if (this.p.filter(currChild1Tuple, this.outer)) {
+    						return getMergedTuples(currChild1Tuple, this.outer);
+    					}
+    				}
+    			}
+    			if (!this.child2.hasNext()) {
+    				break;
+    			}
+    			this.outer = this.child2.next();
+    			this.blockIndex = 0;
+    		}
+    		this.child2.rewind();
+    		this.outer = null;
+    		this.block.clear();
     	}
     }
 
@@ -160,8 +277,7 @@ public class Join extends Operator {
     }
     
     private Tuple getMergedTuples(Tuple first, Tuple second) {
-    	TupleDesc resultTD = getTupleDesc();
-		Tuple result = new Tuple(resultTD);
+		Tuple result = new Tuple(this.td);
 		Iterator<Field> f1 = first.fields();
 		Iterator<Field> f2 = second.fields();
 		int i = 0;
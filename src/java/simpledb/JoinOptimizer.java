@@ -68,7 +68,15 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS) {
+            if (preferSortMergeJoin(plan1, t1id, plan2, t2id)) {
+                j = new SortMergeJoin(p, plan1, plan2);
+            } else {
+                j = new HashEquiJoin(p, plan1, plan2);
+            }
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -107,12 +115,92 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            if (j.p == Predicate.Op.EQUALS) {
+                // the logical plan does not say whether inputs are sorted, so
+                // a merge join would have to sort both
+                return Math.min(estimateHashJoinCost(card1, card2, cost1, cost2),
+                        estimateSortMergeJoinCost(card1, card2, cost1, cost2, false, false));
+            }
+            // block nested loops: the right-hand side is scanned once per
+            // block of left-hand tuples, and every pair is compared
+            double blocks = Math.ceil((double) card1
+                    / Join.blockTuples(Join.defaultBlockPages(), leftTupleDesc(j)));
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * Estimate the cost of a HashEquiJoin: each input is read once, and each
+     * tuple is hashed and compared with the tuples of its bucket.
+     */
+    public static double estimateHashJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        return cost1 + cost2 + 2.0 * card1 + 2.0 * card2;
+    }
+
+    /**
+     * Estimate the cost of a SortMergeJoin: each input is read once and
+     * sorted unless it already is, then the inputs are merged with about one
+     * comparison per tuple.
+     *
+     * @param sorted1
+     *            whether the left-hand side is already sorted on its join
+     *            field
+     * @param sorted2
+     *            whether the right-hand side is already sorted on its join
+     *            field
+     */
+    public static double estimateSortMergeJoinCost(int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        if (!sorted1) {
+            cost += sortCost(card1);
+        }
+        if (!sorted2) {
+            cost += sortCost(card2);
+        }
+        return cost;
+    }
+
+    // Helper method that returns the number of comparisons to sort card
+    // tuples
+    private static double sortCost(int card) {
+        return card * (Math.log(Math.max(card, 2)) / Math.log(2));
+    }
+
+    // Helper method that decides whether sorted inputs make a merge join
+    // cheaper than a hash join. Both inputs sorted always does; if only one
+    // is, the cost models are compared using the estimated cardinalities.
+    private static boolean preferSortMergeJoin(DbIterator plan1, int field1,
+            DbIterator plan2, int field2) {
+        boolean sorted1 = SortMergeJoin.isSortedOn(plan1, field1);
+        boolean sorted2 = SortMergeJoin.isSortedOn(plan2, field2);
+        if (sorted1 && sorted2) {
+            return true;
+        }
+        if (!sorted1 && !sorted2) {
+            return false;
+        }
+        int card1 = plan1 instanceof Operator ? ((Operator) plan1).getEstimatedCardinality() : 0;
+        int card2 = plan2 instanceof Operator ? ((Operator) plan2).getEstimatedCardinality() : 0;
+        if (card1 <= 0 || card2 <= 0) {
+            return false;
+        }
+        // both inputs are read either way, so only the CPU costs matter
+        return estimateSortMergeJoinCost(card1, card2, 0, 0, sorted1, sorted2)
+                < estimateHashJoinCost(card1, card2, 0, 0);
+    }
+
+    // Helper method that returns the schema of the left-hand table of a join.
+    // The left-hand side may itself be a join, whose tuples are wider, so
+    // this underestimates the number of blocks in that case.
+    private TupleDesc leftTupleDesc(LogicalJoinNode j) {
+        Integer tableId = this.p == null ? null
+                : this.p.getTableAliasToIdMapping().get(j.t1Alias);
+        if (tableId == null) {
+            return new TupleDesc(new Type[] { Type.INT_TYPE });
         }
+        return Database.getCatalog().getTupleDesc(tableId);
     }
 
     /**
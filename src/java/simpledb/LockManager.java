@@ -1,183 +1,927 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager keeps the locks of transactions on tables, pages and records,
+ * in the modes of {@link LockMode}.
+ * <p>
+ * Locks are hierarchical: before a transaction locks a page it holds the
+ * matching intention lock (IS or IX) on the page's table, and before it
+ * locks a record it holds intention locks on both the table and the page. A
+ * lock on a table or page in S, SIX or X mode implicitly locks everything
+ * inside it, so nothing is locked below it. Once a transaction holds more
+ * than {@link #getEscalationThreshold} page locks on one table, the page
+ * locks are escalated: if the table lock can be converted to S (or X for a
+ * transaction that writes the table) without waiting, it is, and the page
+ * and record locks it covers are released.
+ * <p>
+ * The lock table is hashed on the locked table, page or record into
+ * {@link #NUM_PARTITIONS} partitions, each guarded by its own latch, so
+ * requests for different resources rarely contend. Each locked resource has
+ * a FIFO queue of the requests that could not be granted yet. A new request
+ * is granted at once only if it is compatible with the other holders of the
+ * resource and no request queues before it; a conversion of a lock the
+ * transaction already holds, e.g. from S to X, skips ahead of the queue.
+ * When a lock is released, requests are granted from the head of the queue
+ * for as long as they are compatible, and only the waiters of those requests
+ * are woken.
+ * <p>
+ * While a request waits, the requesting transaction is in the waits-for
+ * graph: it waits for every other transaction holding an incompatible lock
+ * on the resource or queued before it. Each time a request blocks the graph
+ * is searched for a cycle through the requester, and if there is one, the
+ * youngest transaction on the cycle is chosen as the victim: its pending and
+ * future lock requests fail until it completes, so the caller aborts it. A
+ * blocked request also searches again after waiting {@link #RECHECK_MILLIS}
+ * without being granted, for cycles closed by a lock being granted to a
+ * transaction that waits in another thread.
+ */
 public class LockManager {
-	private Map<TransactionId, Set<PageId>> transactionLocks;
-	private Map<PageId, Set<TransactionId>> readLocks;
-	private HashMap<PageId, TransactionId> writeLocks;
-	
+
+	/**
+	 * Number of partitions of the lock table; a power of two
+	 */
+	public static final int NUM_PARTITIONS = 64;
+
+	/**
+	 * Number of page locks a transaction may hold on one table before they
+	 * are escalated to a table lock, unless changed with
+	 * {@link #setEscalationThreshold}
+	 */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 512;
+
+	/**
+	 * Number of buckets of the wait time histogram. Bucket i counts waits
+	 * shorter than 2^i milliseconds and not shorter than 2^(i-1); the last
+	 * bucket counts all longer waits.
+	 */
+	public static final int WAIT_BUCKETS = 16;
+
+	/**
+	 * How long a blocked request waits to be granted before it searches for
+	 * a deadlock again, in milliseconds
+	 */
+	public static final long RECHECK_MILLIS = 1000;
+
+	/**
+	 * A request of a transaction for a lock that was not granted when it was
+	 * made. Its condition is signalled when it is granted, or when its
+	 * transaction is chosen as a deadlock victim.
+	 */
+	private static class Request {
+		final TransactionId tid;
+		final LockMode mode;
+		final Condition condition;
+		boolean granted;
+
+		Request(TransactionId tid, LockMode mode, Condition condition) {
+			this.tid = tid;
+			this.mode = mode;
+			this.condition = condition;
+		}
+	}
+
+	/**
+	 * The locks on one table, page or record: the transactions holding them
+	 * with their modes, and the queue of requests not granted yet
+	 */
+	private static class ResourceLock {
+		final Map<TransactionId, LockMode> holders = new HashMap<TransactionId, LockMode>();
+		final LinkedList<Request> queue = new LinkedList<Request>();
+
+		boolean isFree() {
+			return this.holders.isEmpty() && this.queue.isEmpty();
+		}
+	}
+
+	/**
+	 * A partition of the lock table: the locks on the resources hashed to
+	 * it, guarded by its latch
+	 */
+	private static class Partition {
+		final ReentrantLock latch = new ReentrantLock();
+		final Map<Object, ResourceLock> locks = new HashMap<Object, ResourceLock>();
+	}
+
+	/**
+	 * The locks one transaction holds and their modes, and how many pages of
+	 * each table it holds locks on. A copy of what the lock table says about
+	 * the transaction, so it can be looked up without a partition latch.
+	 */
+	private static class HeldLocks {
+		private final Map<Object, LockMode> modes = new HashMap<Object, LockMode>();
+		private final Map<Integer, Integer> pagesPerTable = new HashMap<Integer, Integer>();
+
+		synchronized LockMode get(Object resource) {
+			return this.modes.get(resource);
+		}
+
+		synchronized void put(Object resource, LockMode mode) {
+			if (this.modes.put(resource, mode) == null && resource instanceof PageId) {
+				int tableId = ((PageId) resource).getTableId();
+				Integer count = this.pagesPerTable.get(tableId);
+				this.pagesPerTable.put(tableId, count == null ? 1 : count + 1);
+			}
+		}
+
+		synchronized boolean remove(Object resource) {
+			if (this.modes.remove(resource) == null) {
+				return false;
+			}
+			if (resource instanceof PageId) {
+				int tableId = ((PageId) resource).getTableId();
+				int count = this.pagesPerTable.get(tableId);
+				if (count == 1) {
+					this.pagesPerTable.remove(tableId);
+				} else {
+					this.pagesPerTable.put(tableId, count - 1);
+				}
+			}
+			return true;
+		}
+
+		synchronized int pageCount(int tableId) {
+			Integer count = this.pagesPerTable.get(tableId);
+			return count == null ? 0 : count;
+		}
+
+		synchronized List<Object> resources() {
+			return new ArrayList<Object>(this.modes.keySet());
+		}
+	}
+
+	private final Partition[] partitions;
+
+	/**
+	 * The locks each transaction holds
+	 */
+	private final ConcurrentHashMap<TransactionId, HeldLocks> transactionLocks;
+
+	/**
+	 * Guards the waits-for graph. It is always taken before a partition
+	 * latch, never while one is held.
+	 */
+	private final ReentrantLock graphLatch;
+
+	/**
+	 * The waits-for graph: the resources each blocked transaction waits for,
+	 * once per blocked request
+	 */
+	private final Map<TransactionId, List<Object>> waitsFor;
+
+	/**
+	 * Transactions chosen as deadlock victims that have not completed yet
+	 */
+	private final Set<TransactionId> victims;
+
+	/**
+	 * Number of page locks on one table after which they are escalated
+	 */
+	private volatile int escalationThreshold;
+
+	/**
+	 * Statistics: transactions aborted to break deadlocks, requests that
+	 * blocked, how long they blocked, and page locks escalated to table
+	 * locks
+	 */
+	private final AtomicLong deadlockAborts;
+	private final AtomicLong lockWaits;
+	private final AtomicLongArray waitTimes;
+	private final AtomicLong escalations;
+
 	public LockManager() {
-		this.transactionLocks = new HashMap<TransactionId, Set<PageId>>();
-		this.readLocks = new HashMap<PageId, Set<TransactionId>>();
-		this.writeLocks = new HashMap<PageId, TransactionId>();
+		this.partitions = new Partition[NUM_PARTITIONS];
+		for (int i = 0; i < NUM_PARTITIONS; i++) {
+			this.partitions[i] = new Partition();
+		}
+		this.transactionLocks = new ConcurrentHashMap<TransactionId, HeldLocks>();
+		this.graphLatch = new ReentrantLock();
+		this.waitsFor = new HashMap<TransactionId, List<Object>>();
+		this.victims = ConcurrentHashMap.<TransactionId>newKeySet();
+		this.escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+		this.deadlockAborts = new AtomicLong();
+		this.lockWaits = new AtomicLong();
+		this.waitTimes = new AtomicLongArray(WAIT_BUCKETS);
+		this.escalations = new AtomicLong();
+	}
+
+	// Helper method that returns the partition of the lock table a resource
+	// is in
+	private Partition partitionOf(Object resource) {
+		int h = resource.hashCode();
+		h ^= (h >>> 16);
+		return this.partitions[h & (NUM_PARTITIONS - 1)];
+	}
+
+	// Helper method that returns the key a table is locked under; no PageId
+	// or RecordId equals it
+	private static Integer tableKey(int tableId) {
+		return Integer.valueOf(tableId);
+	}
+
+	// Helper method that returns the table a locked resource belongs to
+	private static int tableOf(Object resource) {
+		if (resource instanceof PageId) {
+			return ((PageId) resource).getTableId();
+		}
+		if (resource instanceof RecordId) {
+			return ((RecordId) resource).getPageId().getTableId();
+		}
+		return (Integer) resource;
+	}
+
+	/**
+	 * Acquires a lock on a whole table on behalf of given transaction,
+	 * blocking until it can be granted.
+	 *
+	 * @param tid transactionId of the transaction requesting the lock
+	 * @param tableId the table over which the lock is being requested
+	 * @param mode the mode the transaction is requesting
+	 *
+	 * @return true if the lock was acquired, false if the transaction was
+	 * chosen as a deadlock victim or the thread was interrupted, in which
+	 * case the transaction should abort
+	 */
+	public boolean acquireTableLock(TransactionId tid, int tableId, LockMode mode) {
+		return this.acquire(tid, tableKey(tableId), mode);
 	}
-	
+
 	/**
-	 * Acquires a lock on behalf of given transaction with given permission.
-	 * 
+	 * Acquires a lock on a page on behalf of given transaction with given
+	 * permission, blocking until it can be granted.
+	 *
 	 * @param tid transactionId of the transaction requesting the lock
 	 * @param pid the page over which the lock is being requested
 	 * @param perm the permission level the transaction is requesting
-	 * @throws InterruptedException 
-	 * @throws TransactionAbortedException if deadlock was detected.
+	 *
+	 * @return true if the lock was acquired, false if the transaction was
+	 * chosen as a deadlock victim or the thread was interrupted, in which
+	 * case the transaction should abort
 	 */
-	public synchronized boolean acquireLock(TransactionId tid, PageId pid, Permissions perm) {
+	public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm) {
+		return this.acquireLock(tid, pid, LockMode.of(perm));
+	}
 
-		if (this.hasLock(tid, pid, perm)) {
+	/**
+	 * Acquires a lock on a page in the given mode on behalf of given
+	 * transaction, after the intention lock on its table, blocking until
+	 * they can be granted. Nothing is locked on the page if the table lock
+	 * already covers it. S and X page locks count toward escalation.
+	 *
+	 * @return true if the lock was acquired, false if the transaction was
+	 * chosen as a deadlock victim or the thread was interrupted, in which
+	 * case the transaction should abort
+	 */
+	public boolean acquireLock(TransactionId tid, PageId pid, LockMode mode) {
+		Integer table = tableKey(pid.getTableId());
+		if (!this.acquire(tid, table, mode.intention())) {
+			return false;
+		}
+		if (this.covers(tid, table, mode)) {
 			return true;
 		}
-		
-		long startTime = System.currentTimeMillis();
-		long timeOut = (long) ((Math.random() * 5000) + 2000);
-		while (!this.canAcquire(tid, pid, perm)) {
-			try {
-				wait(100);
-			} catch (InterruptedException e) {
-				return false;
+		if (!this.acquire(tid, pid, mode)) {
+			return false;
+		}
+		if (mode == LockMode.S || mode == LockMode.X) {
+			this.escalate(tid, pid.getTableId());
+		}
+		return true;
+	}
+
+	/**
+	 * Acquires a lock on a record on behalf of given transaction with given
+	 * permission, after the intention locks on its table and page, blocking
+	 * until they can be granted. Nothing is locked below a table or page
+	 * lock that already covers the record.
+	 *
+	 * @return true if the lock was acquired, false if the transaction was
+	 * chosen as a deadlock victim or the thread was interrupted, in which
+	 * case the transaction should abort
+	 */
+	public boolean acquireLock(TransactionId tid, RecordId rid, Permissions perm) {
+		LockMode mode = LockMode.of(perm);
+		PageId pid = rid.getPageId();
+		Integer table = tableKey(pid.getTableId());
+		if (!this.acquire(tid, table, mode.intention())) {
+			return false;
+		}
+		if (this.covers(tid, table, mode)) {
+			return true;
+		}
+		if (!this.acquire(tid, pid, mode.intention())) {
+			return false;
+		}
+		if (this.covers(tid, pid, mode)) {
+			return true;
+		}
+		return this.acquire(tid, rid, mode);
+	}
+
+	// Helper method that returns true if the lock tid holds on a table or
+	// page implicitly locks its contents in mode
+	private boolean covers(TransactionId tid, Object parent, LockMode mode) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		LockMode parentMode = held == null ? null : held.get(parent);
+		LockMode implied = parentMode == null ? null : parentMode.implied();
+		return implied != null && implied.covers(mode);
+	}
+
+	// Helper method that acquires a lock on one resource, blocking until it
+	// is granted
+	private boolean acquire(TransactionId tid, Object resource, LockMode mode) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		if (held != null) {
+			LockMode current = held.get(resource);
+			if (current != null && current.covers(mode)) {
+				return true;
 			}
-			long totalWaitTime = System.currentTimeMillis() - startTime;
-			if (totalWaitTime > timeOut) {
+		}
+		Partition partition = this.partitionOf(resource);
+		Request request;
+		partition.latch.lock();
+		try {
+			ResourceLock lock = partition.locks.get(resource);
+			if (lock == null) {
+				lock = new ResourceLock();
+				partition.locks.put(resource, lock);
+			}
+			LockMode current = lock.holders.get(tid);
+			if (current != null && current.covers(mode)) {
+				return true;
+			}
+			if (this.victims.contains(tid)) {
+				this.removeIfFree(partition, resource, lock);
 				return false;
 			}
+			LockMode wanted = current == null ? mode : current.combine(mode);
+			if ((current != null || lock.queue.isEmpty()) && compatible(lock, tid, wanted)) {
+				this.grant(lock, tid, resource, wanted);
+				return true;
+			}
+			request = new Request(tid, wanted, partition.latch.newCondition());
+			if (current != null) {
+				lock.queue.addFirst(request);
+			} else {
+				lock.queue.addLast(request);
+			}
+		} finally {
+			partition.latch.unlock();
 		}
-		
-		if (!this.transactionLocks.containsKey(tid)) {
-			this.transactionLocks.put(tid, new HashSet<PageId>());
+		return this.waitFor(partition, resource, request);
+	}
+
+	// Helper method that acquires a lock on one resource if it can be
+	// granted without waiting; returns false otherwise
+	private boolean tryAcquire(TransactionId tid, Object resource, LockMode mode) {
+		Partition partition = this.partitionOf(resource);
+		partition.latch.lock();
+		try {
+			ResourceLock lock = partition.locks.get(resource);
+			if (lock == null) {
+				lock = new ResourceLock();
+				partition.locks.put(resource, lock);
+			}
+			LockMode current = lock.holders.get(tid);
+			LockMode wanted = current == null ? mode : current.combine(mode);
+			if (current != null && current.covers(mode)) {
+				return true;
+			}
+			if (!this.victims.contains(tid) && (current != null || lock.queue.isEmpty())
+					&& compatible(lock, tid, wanted)) {
+				this.grant(lock, tid, resource, wanted);
+				return true;
+			}
+			this.removeIfFree(partition, resource, lock);
+			return false;
+		} finally {
+			partition.latch.unlock();
 		}
-		this.transactionLocks.get(tid).add(pid);
-		
-		if (perm == Permissions.READ_ONLY) {
-			if (!this.readLocks.containsKey(pid)) {
-				this.readLocks.put(pid, new HashSet<TransactionId>());
+	}
+
+	// Helper method that blocks until request is granted; returns false if
+	// its transaction was chosen as a deadlock victim or the thread was
+	// interrupted, after taking the request off the queue
+	private boolean waitFor(Partition partition, Object resource, Request request) {
+		long startTime = System.nanoTime();
+		this.addWait(request.tid, resource);
+		partition.latch.lock();
+		try {
+			boolean search = true;
+			while (!request.granted) {
+				if (this.victims.contains(request.tid)) {
+					return false;
+				}
+				if (search) {
+					// the search takes the graph latch, which comes first
+					partition.latch.unlock();
+					try {
+						this.breakDeadlock(request.tid);
+					} finally {
+						partition.latch.lock();
+					}
+					search = false;
+					continue;
+				}
+				search = !request.condition.await(RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		} finally {
+			// a thread stopped while it awaits may get here without the latch
+			if (!partition.latch.isHeldByCurrentThread()) {
+				partition.latch.lock();
+			}
+			try {
+				if (!request.granted) {
+					this.cancel(partition, resource, request);
+				}
+			} finally {
+				partition.latch.unlock();
+			}
+			this.removeWait(request.tid, resource);
+			this.recordWait(System.nanoTime() - startTime);
+		}
+	}
+
+	// Helper method that takes a request that was not granted off the queue
+	// of a resource, granting the requests it held back. Must be called with
+	// the latch of the partition held.
+	private void cancel(Partition partition, Object resource, Request request) {
+		ResourceLock lock = partition.locks.get(resource);
+		if (lock != null && lock.queue.remove(request)) {
+			this.grantWaiters(lock, resource);
+			this.removeIfFree(partition, resource, lock);
+		}
+	}
+
+	// Helper method that returns true if a lock in mode on the resource can
+	// be granted to tid alongside the locks others hold on it
+	private static boolean compatible(ResourceLock lock, TransactionId tid, LockMode mode) {
+		for (Map.Entry<TransactionId, LockMode> holder : lock.holders.entrySet()) {
+			if (!holder.getKey().equals(tid) && !mode.isCompatibleWith(holder.getValue())) {
+				return false;
 			}
-			this.readLocks.get(pid).add(tid);
-		} else {
-			this.writeLocks.put(pid, tid);
 		}
 		return true;
 	}
-	
+
+	// Helper method that records a lock on a resource granted to tid
+	private void grant(ResourceLock lock, TransactionId tid, Object resource, LockMode mode) {
+		lock.holders.put(tid, mode);
+		HeldLocks held = this.transactionLocks.get(tid);
+		if (held == null) {
+			held = new HeldLocks();
+			HeldLocks raced = this.transactionLocks.putIfAbsent(tid, held);
+			if (raced != null) {
+				held = raced;
+			}
+		}
+		held.put(resource, mode);
+	}
+
+	// Helper method that grants the requests at the head of the queue of a
+	// resource for as long as they are compatible, and wakes their waiters
+	private void grantWaiters(ResourceLock lock, Object resource) {
+		while (!lock.queue.isEmpty()) {
+			Request request = lock.queue.getFirst();
+			LockMode current = lock.holders.get(request.tid);
+			if (current == null || !current.covers(request.mode)) {
+				LockMode wanted = current == null ? request.mode : current.combine(request.mode);
+				if (!compatible(lock, request.tid, wanted)) {
+					return;
+				}
+				this.grant(lock, request.tid, resource, wanted);
+			}
+			lock.queue.removeFirst();
+			request.granted = true;
+			request.condition.signal();
+		}
+	}
+
+	// Helper method that drops the entry of a resource from its partition
+	// once nobody holds or waits for a lock on it
+	private void removeIfFree(Partition partition, Object resource, ResourceLock lock) {
+		if (lock.isFree()) {
+			partition.locks.remove(resource);
+		}
+	}
+
+	// Helper method that replaces the page and record locks tid holds on a
+	// table by a table lock, once it holds more page locks on the table than
+	// the escalation threshold and the table lock can be granted at once
+	private void escalate(TransactionId tid, int tableId) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		if (held == null || held.pageCount(tableId) <= this.escalationThreshold) {
+			return;
+		}
+		Integer table = tableKey(tableId);
+		LockMode tableMode = held.get(table);
+		if (tableMode == null) {
+			return;
+		}
+		LockMode wanted = (tableMode == LockMode.IS || tableMode == LockMode.S) ? LockMode.S : LockMode.X;
+		if (!this.tryAcquire(tid, table, wanted)) {
+			return;
+		}
+		this.escalations.incrementAndGet();
+		LockMode implied = held.get(table).implied();
+		for (Object resource : held.resources()) {
+			if (resource.equals(table) || tableOf(resource) != tableId) {
+				continue;
+			}
+			LockMode mode = held.get(resource);
+			if (mode != null && implied.covers(mode) && held.remove(resource)) {
+				this.removeLock(tid, resource);
+			}
+		}
+	}
+
+	// Helper method that adds an edge of tid to the waits-for graph
+	private void addWait(TransactionId tid, Object resource) {
+		this.graphLatch.lock();
+		try {
+			List<Object> resources = this.waitsFor.get(tid);
+			if (resources == null) {
+				resources = new ArrayList<Object>();
+				this.waitsFor.put(tid, resources);
+			}
+			resources.add(resource);
+		} finally {
+			this.graphLatch.unlock();
+		}
+	}
+
+	// Helper method that removes an edge of tid from the waits-for graph
+	private void removeWait(TransactionId tid, Object resource) {
+		this.graphLatch.lock();
+		try {
+			List<Object> resources = this.waitsFor.get(tid);
+			if (resources != null) {
+				resources.remove(resource);
+				if (resources.isEmpty()) {
+					this.waitsFor.remove(tid);
+				}
+			}
+		} finally {
+			this.graphLatch.unlock();
+		}
+	}
+
+	// Helper method that looks for a cycle of the waits-for graph through
+	// tid and, if there is one, chooses its youngest transaction as the
+	// victim and wakes the victim's blocked requests
+	private void breakDeadlock(TransactionId tid) {
+		this.graphLatch.lock();
+		try {
+			LinkedList<TransactionId> cycle = new LinkedList<TransactionId>();
+			if (!this.findCycle(tid, tid, new HashSet<TransactionId>(), cycle)) {
+				return;
+			}
+			TransactionId victim = tid;
+			for (TransactionId t : cycle) {
+				if (t.getId() > victim.getId()) {
+					victim = t;
+				}
+			}
+			this.victims.add(victim);
+			this.deadlockAborts.incrementAndGet();
+			Debug.log("deadlock among %d transactions; aborting transaction %d", cycle.size(), victim.getId());
+			List<Object> resources = this.waitsFor.get(victim);
+			if (resources != null) {
+				for (Object resource : resources) {
+					this.signalRequests(victim, resource);
+				}
+			}
+		} finally {
+			this.graphLatch.unlock();
+		}
+	}
+
+	// Helper method that wakes the blocked requests of tid for a resource
+	private void signalRequests(TransactionId tid, Object resource) {
+		Partition partition = this.partitionOf(resource);
+		partition.latch.lock();
+		try {
+			ResourceLock lock = partition.locks.get(resource);
+			if (lock != null) {
+				for (Request request : lock.queue) {
+					if (request.tid.equals(tid)) {
+						request.condition.signal();
+					}
+				}
+			}
+		} finally {
+			partition.latch.unlock();
+		}
+	}
+
+	// Helper method for a depth-first search of the waits-for graph from t
+	// back to start; path holds the transactions from start to t. Must be
+	// called with the graph latch held.
+	private boolean findCycle(TransactionId t, TransactionId start, Set<TransactionId> visited,
+			LinkedList<TransactionId> path) {
+		List<Object> resources = this.waitsFor.get(t);
+		if (resources == null) {
+			return false;
+		}
+		path.addLast(t);
+		for (Object resource : resources) {
+			for (TransactionId blocker : this.blockersOf(t, resource)) {
+				if (this.victims.contains(blocker)) {
+					continue;
+				}
+				if (blocker.equals(start)) {
+					return true;
+				}
+				if (visited.add(blocker) && this.findCycle(blocker, start, visited, path)) {
+					return true;
+				}
+			}
+		}
+		path.removeLast();
+		return false;
+	}
+
+	// Helper method that returns the other transactions the request of t for
+	// a resource waits for: those holding incompatible locks on it and those
+	// queued before it
+	private Set<TransactionId> blockersOf(TransactionId t, Object resource) {
+		Set<TransactionId> blockers = new HashSet<TransactionId>();
+		Partition partition = this.partitionOf(resource);
+		partition.latch.lock();
+		try {
+			ResourceLock lock = partition.locks.get(resource);
+			if (lock == null) {
+				return blockers;
+			}
+			Request waiting = null;
+			for (Request request : lock.queue) {
+				if (request.tid.equals(t)) {
+					waiting = request;
+					break;
+				}
+				blockers.add(request.tid);
+			}
+			if (waiting == null) {
+				// granted since t started waiting
+				return new HashSet<TransactionId>();
+			}
+			for (Map.Entry<TransactionId, LockMode> holder : lock.holders.entrySet()) {
+				if (!waiting.mode.isCompatibleWith(holder.getValue())) {
+					blockers.add(holder.getKey());
+				}
+			}
+		} finally {
+			partition.latch.unlock();
+		}
+		blockers.remove(t);
+		return blockers;
+	}
+
+	// Helper method that adds a wait to the statistics
+	private void recordWait(long nanos) {
+		long millis = nanos / 1000000;
+		int bucket = 0;
+		while (bucket < WAIT_BUCKETS - 1 && millis >= (1L << bucket)) {
+			bucket++;
+		}
+		this.waitTimes.incrementAndGet(bucket);
+		this.lockWaits.incrementAndGet();
+	}
+
 	/**
-	 * Releases lock with given pid on behalf of given transactionId.
-	 * 
+	 * Releases lock with given pid on behalf of given transactionId. The
+	 * locks on the page's table and records are kept.
+	 *
 	 * @param tid transactionId of the transaction requesting the release
 	 * @param pid the page over which the lock is being released
 	 */
-	public synchronized void releaseLock(TransactionId tid, PageId pid) {
-		if (hasLock(tid, pid)) {
-			
-			this.transactionLocks.get(tid).remove(pid);
-			if (this.transactionLocks.get(tid).isEmpty()) {
-				this.transactionLocks.remove(tid);
-			}
-			
-			this.removeLock(pid, tid);
+	public void releaseLock(TransactionId tid, PageId pid) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		if (held != null && held.remove(pid)) {
+			this.removeLock(tid, pid);
 		}
-		notifyAll();
 	}
-	
+
 	/**
-	 * Release all locks held by transaction with given tid.
-	 * 
+	 * Release all locks held by transaction with given tid. The transaction
+	 * is complete, so it stops being a deadlock victim.
+	 *
 	 * @param tid the transactionId of the transaction requesting the full lock release
 	 */
-	public synchronized void releaseAllLocks(TransactionId tid) {
-		if (this.transactionLocks.containsKey(tid)) {
-			for (PageId pid : this.transactionLocks.get(tid)) {
-				this.removeLock(pid, tid);
+	public void releaseAllLocks(TransactionId tid) {
+		HeldLocks held = this.transactionLocks.remove(tid);
+		if (held != null) {
+			for (Object resource : held.resources()) {
+				this.removeLock(tid, resource);
 			}
-			this.transactionLocks.remove(tid);
 		}
-		notifyAll();
+		this.victims.remove(tid);
 	}
-	
+
+	// Helper method that releases the lock of tid on a resource, without
+	// affecting this.transactionLocks, and grants the requests waiting for it
+	private void removeLock(TransactionId tid, Object resource) {
+		Partition partition = this.partitionOf(resource);
+		partition.latch.lock();
+		try {
+			ResourceLock lock = partition.locks.get(resource);
+			if (lock == null) {
+				return;
+			}
+			lock.holders.remove(tid);
+			this.grantWaiters(lock, resource);
+			this.removeIfFree(partition, resource, lock);
+		} finally {
+			partition.latch.unlock();
+		}
+	}
+
 	/**
-	 * Returns true if tid has a read lock or a write lock on page with pid, false otherwise
-	 * 
+	 * Returns true if tid has a lock on page with pid, or a lock on its
+	 * table that covers it, false otherwise
+	 *
 	 * @param tid transactionId of the transaction being checked for the lock with pid
 	 * @param pid the page being checked for a lock
-	 * 
-	 * @return true if tid has a read lock or a write lock on page with pid, false otherwise
+	 *
+	 * @return true if tid has a lock on page with pid, false otherwise
 	 */
-	public synchronized boolean hasLock(TransactionId tid, PageId pid) {
-		return this.transactionLocks.containsKey(tid) && 
-				this.transactionLocks.get(tid).contains(pid);
+	public boolean hasLock(TransactionId tid, PageId pid) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		return held != null && (held.get(pid) != null
+				|| this.covers(tid, tableKey(pid.getTableId()), LockMode.S));
 	}
-	
+
 	/**
-	 * Return true if tid has a lock on page with pid with given permissions, false otherwise
-	 * 
+	 * Return true if tid has a lock on page with pid with given permissions,
+	 * or a lock on its table that covers it, false otherwise
+	 *
 	 * @param tid transactionId of the transaction being checked for the lock with pid
 	 * @param pid the page being checked for a lock
 	 * @param perm the level of permissions of the lock to check
-	 * 
+	 *
 	 * @return true if tid has a lock on page with pid with given permissions, false otherwise
 	 */
-	public synchronized boolean hasLock(TransactionId tid, PageId pid, Permissions perm) {
-		if (perm == Permissions.READ_ONLY) {
-			return (this.readLocks.containsKey(pid) && this.readLocks.get(pid).contains(tid))
-					|| (this.writeLocks.containsKey(pid) && this.writeLocks.get(pid).equals(tid));
-		} else {
-			return this.writeLocks.containsKey(pid) && this.writeLocks.get(pid).equals(tid);
+	public boolean hasLock(TransactionId tid, PageId pid, Permissions perm) {
+		LockMode mode = LockMode.of(perm);
+		HeldLocks held = this.transactionLocks.get(tid);
+		if (held == null) {
+			return false;
 		}
+		LockMode pageMode = held.get(pid);
+		return (pageMode != null && pageMode.covers(mode))
+				|| this.covers(tid, tableKey(pid.getTableId()), mode);
 	}
-	
+
 	/**
 	 * Returns true if the lock with pid is available, to be acquired by tid with given permissions
-	 * Returns true if tid already holds the given lock
-	 * 
+	 * without waiting. Returns true if tid already holds the given lock
+	 *
 	 * @param tid the transactionId of the transaction checking availability
 	 * @param pid the page being checked for availability
 	 * @param perm the permission level for which the request is checking
-	 * 
+	 *
 	 * @return true if the lock with pid is available, to be acquired by tid with given permissions
 	 * Returns true if tid already holds the given lock
 	 */
-	public synchronized boolean canAcquire(TransactionId tid, PageId pid, Permissions perm) {
-		if (this.hasLock(tid, pid, perm)) {
-			return true;
-		}
-		
-		boolean pageNotLocked = (!this.readLocks.containsKey(pid)) && 
-				(!this.writeLocks.containsKey(pid));
-		boolean onlyReads = (!this.writeLocks.containsKey(pid)) && 
-				(perm == Permissions.READ_ONLY);
-		if (pageNotLocked || onlyReads) {
-			return true;
+	public boolean canAcquire(TransactionId tid, PageId pid, Permissions perm) {
+		LockMode mode = LockMode.of(perm);
+		Integer table = tableKey(pid.getTableId());
+		if (!this.isGrantable(tid, table, mode.intention())) {
+			return false;
 		}
-		
-		if ((perm == Permissions.READ_WRITE) && this.canUpgrade(tid, pid)) {
-			return true;
+		return this.covers(tid, table, mode) || this.isGrantable(tid, pid, mode);
+	}
+
+	// Helper method that returns true if tid holds or could be granted a
+	// lock in mode on a resource without waiting
+	private boolean isGrantable(TransactionId tid, Object resource, LockMode mode) {
+		Partition partition = this.partitionOf(resource);
+		partition.latch.lock();
+		try {
+			ResourceLock lock = partition.locks.get(resource);
+			if (lock == null) {
+				return true;
+			}
+			LockMode current = lock.holders.get(tid);
+			if (current != null && current.covers(mode)) {
+				return true;
+			}
+			LockMode wanted = current == null ? mode : current.combine(mode);
+			return (current != null || lock.queue.isEmpty()) && compatible(lock, tid, wanted);
+		} finally {
+			partition.latch.unlock();
 		}
-		
-		return false;
 	}
-	
-	// Helper method to check if a tid can be upgraded
-	private synchronized boolean canUpgrade(TransactionId tid, PageId pid) {
-		return this.transactionLocks.containsKey(tid)
-				&& this.transactionLocks.get(tid).contains(pid)
-				&& this.readLocks.containsKey(pid)
-				&& this.readLocks.get(pid).contains(tid)
-				&& (this.readLocks.get(pid).size() == 1)
-				&& (!this.writeLocks.containsKey(pid));
+
+	/**
+	 * @return the mode of the lock tid holds on the table, or null if it
+	 * holds none
+	 */
+	public LockMode getTableLock(TransactionId tid, int tableId) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		return held == null ? null : held.get(tableKey(tableId));
 	}
-	
-	// Helper method to release locks, removes readLocks or writeLocks without affecting this.transactionLocks
-	private synchronized void removeLock(PageId pid, TransactionId tid) {
-		if (this.readLocks.containsKey(pid) && this.readLocks.get(pid).contains(tid)) {
-			this.readLocks.get(pid).remove(tid);
-			if (this.readLocks.get(pid).isEmpty()) {
-				this.readLocks.remove(pid);
+
+	/**
+	 * @return the mode of the lock tid holds on the page itself, or null if
+	 * it holds none
+	 */
+	public LockMode getPageLock(TransactionId tid, PageId pid) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		return held == null ? null : held.get(pid);
+	}
+
+	/**
+	 * @return the mode of the lock tid holds on the record itself, or null
+	 * if it holds none
+	 */
+	public LockMode getRecordLock(TransactionId tid, RecordId rid) {
+		HeldLocks held = this.transactionLocks.get(tid);
+		return held == null ? null : held.get(rid);
+	}
+
+	/**
+	 * @return the transactions whose requests for a lock on pid wait, in the
+	 * order they will be granted
+	 */
+	public List<TransactionId> getWaiters(PageId pid) {
+		List<TransactionId> waiters = new ArrayList<TransactionId>();
+		Partition partition = this.partitionOf(pid);
+		partition.latch.lock();
+		try {
+			ResourceLock lock = partition.locks.get(pid);
+			if (lock != null) {
+				for (Request request : lock.queue) {
+					waiters.add(request.tid);
+				}
 			}
+		} finally {
+			partition.latch.unlock();
 		}
-		
-		if (this.writeLocks.containsKey(pid) && this.writeLocks.get(pid).equals(tid)) {
-			this.writeLocks.remove(pid);
+		return waiters;
+	}
+
+	/**
+	 * Sets the number of page locks a transaction may hold on one table
+	 * before they are escalated to a table lock.
+	 */
+	public void setEscalationThreshold(int escalationThreshold) {
+		if (escalationThreshold < 1) {
+			throw new IllegalArgumentException("escalation threshold must be positive");
+		}
+		this.escalationThreshold = escalationThreshold;
+	}
+
+	public int getEscalationThreshold() {
+		return this.escalationThreshold;
+	}
+
+	/**
+	 * @return the number of times page locks were escalated to a table lock
+	 */
+	public long getEscalations() {
+		return this.escalations.get();
+	}
+
+	/**
+	 * @return the number of transactions chosen as deadlock victims
+	 */
+	public long getDeadlockAborts() {
+		return this.deadlockAborts.get();
+	}
+
+	/**
+	 * @return the number of lock requests that blocked
+	 */
+	public long getLockWaits() {
+		return this.lockWaits.get();
+	}
+
+	/**
+	 * @return a copy of the histogram of how long blocked lock requests
+	 * waited; see {@link #WAIT_BUCKETS}
+	 */
+	public long[] getWaitTimeHistogram() {
+		long[] histogram = new long[WAIT_BUCKETS];
+		for (int i = 0; i < WAIT_BUCKETS; i++) {
+			histogram[i] = this.waitTimes.get(i);
 		}
+		return histogram;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+/**
+ * The modes of the locks LockManager keeps on tables, pages and records.
+ * <p>
+ * S and X are shared and exclusive locks. IS and IX are intention locks: a
+ * transaction holds one on a table or page before it locks a page or record
+ * inside it in S or X mode, so locks on the parent and on its contents
+ * conflict as they should. SIX is S together with IX, for a transaction
+ * that reads all of a table or page and changes some of its contents.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    /**
+     * Whether two transactions may hold the modes on the same resource at
+     * once, indexed by ordinal
+     */
+    private static final boolean[][] COMPATIBLE = {
+        //         IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /**
+     * The weakest mode at least as strong as both modes, indexed by ordinal
+     */
+    private static final LockMode[][] COMBINED = {
+        /* IS  */ { IS,  IX,  S,   SIX, X },
+        /* IX  */ { IX,  IX,  SIX, SIX, X },
+        /* S   */ { S,   SIX, S,   SIX, X },
+        /* SIX */ { SIX, SIX, SIX, SIX, X },
+        /* X   */ { X,   X,   X,   X,   X },
+    };
+
+    /**
+     * @return true if another transaction may hold other on a resource this
+     *         mode is held on
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that allows everything this mode and other
+     *         allow; the mode a lock is converted to when its holder asks
+     *         for other
+     */
+    public LockMode combine(LockMode other) {
+        return COMBINED[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if this mode allows everything other allows
+     */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+
+    /**
+     * @return the intention mode to hold on the parent of a resource locked
+     *         in this mode
+     */
+    public LockMode intention() {
+        return (this == IS || this == S) ? IS : IX;
+    }
+
+    /**
+     * @return the mode a child of a resource locked in this mode is
+     *         implicitly locked in, or null if it is not locked by it
+     */
+    public LockMode implied() {
+        switch (this) {
+        case S:
+        case SIX:
+            return S;
+        case X:
+            return X;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return S for READ_ONLY and X for READ_WRITE
+     */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+}
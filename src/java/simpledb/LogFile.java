@@ -3,7 +3,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.lang.reflect.*;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +35,17 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Records are appended to the log file under the LogFile monitor, but
+{@link #force} does not force the file while holding it.  A thread
+that needs the log on disk waits for a leader: the first waiting thread
+sleeps for the group commit delay, so that other committers can append
+their records, then forces the file once on behalf of every record
+appended so far, outside the monitor.  Threads whose records the force
+covered return without forcing; the others elect the next leader.
 */
 
 /**
@@ -52,7 +66,8 @@ must not be declared synchronized and must begin with a block like:
  * <li>Each log record ends with a long integer file offset representing the
  * position in the log file where the record began.
  * 
- * <li>There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and CHECKPOINT
+ * <li>There are six record types: ABORT, COMMIT, UPDATE, BEGIN, CHECKPOINT and
+ * BULK_LOAD
  * 
  * <li>ABORT, COMMIT, and BEGIN records contain no additional data
  * 
@@ -67,6 +82,12 @@ must not be declared synchronized and must begin with a block like:
  * integer transaction id and a long integer first record offset for each active
  * transaction.
  * 
+ * <li>BULK_LOAD records describe a run of pages appended to a HeapFile by a
+ * {@link BulkLoader}: an integer table id, an integer first page number and
+ * an integer page count. The pages themselves are not logged; the loader
+ * forces them to disk before the transaction commits, and rollback undoes
+ * the load by overwriting the pages with empty ones.
+ * 
  * </ul>
  * 
  */
@@ -82,6 +103,7 @@ public class LogFile {
 	static final int UPDATE_RECORD = 3;
 	static final int BEGIN_RECORD = 4;
 	static final int CHECKPOINT_RECORD = 5;
+	static final int BULK_LOAD_RECORD = 6;
 	static final long NO_CHECKPOINT_ID = -1;
 
 	final static int INT_SIZE = 4;
@@ -93,6 +115,36 @@ public class LogFile {
 
 	HashMap<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
 
+	/**
+	 * Guards the group commit state below
+	 */
+	private final Object groupLock = new Object();
+
+	/**
+	 * Offset up to which the log is known to be forced to disk
+	 */
+	private long durableOffset = 0;
+
+	/**
+	 * Whether a thread is leading a group force, and whether it is forcing
+	 * the file at the moment
+	 */
+	private boolean leaderActive = false;
+	private boolean forcing = false;
+
+	/**
+	 * Time a leader waits for other committers before forcing, in ns
+	 */
+	private volatile long groupCommitDelay = 0;
+
+	/**
+	 * Number of commit records written and of times the file was forced
+	 * since the statistics were reset, and when they were reset
+	 */
+	private final LongAdder commitCount = new LongAdder();
+	private final LongAdder forceCount = new LongAdder();
+	private volatile long statsStart = System.nanoTime();
+
 	/**
 	 * Constructor. Initialize and back the log file with the specified file.
 	 * We're not sure yet whether the caller is creating a brand new DB, in
@@ -128,6 +180,7 @@ public class LogFile {
 		totalRecords++;
 		if (recoveryUndecided) {
 			recoveryUndecided = false;
+			resetDurableOffset();
 			raf.seek(0);
 			raf.setLength(0);
 			raf.writeLong(NO_CHECKPOINT_ID);
@@ -152,6 +205,10 @@ public class LogFile {
 		// calls rollback
 
 		synchronized (Database.getBufferPool()) {
+			// undo the changes in the pool first, so that flushing the pages
+			// later does not write them back. Committers hold a page while
+			// they log it, so this must not hold the LogFile monitor.
+			Database.getBufferPool().restorePages(tid);
 
 			synchronized (this) {
 				preAppend();
@@ -174,22 +231,26 @@ public class LogFile {
 
 	/**
 	 * Write a commit record to disk for the specified tid, and force the log to
-	 * disk.
+	 * disk. The force is shared with concurrent committers; see
+	 * {@link #force}.
 	 * 
 	 * @param tid
 	 *            The committing transaction.
 	 */
-	public synchronized void logCommit(TransactionId tid) throws IOException {
-		preAppend();
-		Debug.log("COMMIT " + tid.getId());
-		// should we verify that this is a live transaction?
-
-		raf.writeInt(COMMIT_RECORD);
-		raf.writeLong(tid.getId());
-		raf.writeLong(currentOffset);
-		currentOffset = raf.getFilePointer();
+	public void logCommit(TransactionId tid) throws IOException {
+		synchronized (this) {
+			preAppend();
+			Debug.log("COMMIT " + tid.getId());
+			// should we verify that this is a live transaction?
+
+			raf.writeInt(COMMIT_RECORD);
+			raf.writeLong(tid.getId());
+			raf.writeLong(currentOffset);
+			currentOffset = raf.getFilePointer();
+			tidToFirstLogRecord.remove(tid.getId());
+		}
+		commitCount.increment();
 		force();
-		tidToFirstLogRecord.remove(tid.getId());
 	}
 
 	/**
@@ -225,6 +286,34 @@ public class LogFile {
 		Debug.log("WRITE OFFSET = " + currentOffset);
 	}
 
+	/**
+	 * Write a BULK_LOAD record for pages appended to a table by a bulk load,
+	 * and force the log to disk. This must be called before the pages are
+	 * written so that rollback can find and undo them.
+	 * 
+	 * @param tid
+	 *            The transaction performing the load
+	 * @param tableId
+	 *            The table the pages were appended to
+	 * @param firstPage
+	 *            The number of the first appended page
+	 * @param numPages
+	 *            The number of appended pages
+	 */
+	public synchronized void logBulkLoad(TransactionId tid, int tableId, int firstPage, int numPages)
+			throws IOException {
+		Debug.log("BULK LOAD, offset = " + raf.getFilePointer());
+		preAppend();
+		raf.writeInt(BULK_LOAD_RECORD);
+		raf.writeLong(tid.getId());
+		raf.writeInt(tableId);
+		raf.writeInt(firstPage);
+		raf.writeInt(numPages);
+		raf.writeLong(currentOffset);
+		currentOffset = raf.getFilePointer();
+		force();
+	}
+
 	void writePageData(RandomAccessFile raf, Page p) throws IOException {
 		PageId pid = p.getId();
 		int pageInfo[] = pid.serialize();
@@ -265,15 +354,19 @@ public class LogFile {
 			Class<?> idClass = Class.forName(idClassName);
 			Class<?> pageClass = Class.forName(pageClassName);
 
-			Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+			// look the constructors up by their parameters; the order of
+			// getDeclaredConstructors() is unspecified
 			int numIdArgs = raf.readInt();
 			Object idArgs[] = new Object[numIdArgs];
+			Class<?> idArgTypes[] = new Class<?>[numIdArgs];
 			for (int i = 0; i < numIdArgs; i++) {
 				idArgs[i] = new Integer(raf.readInt());
+				idArgTypes[i] = int.class;
 			}
-			pid = (PageId) idConsts[0].newInstance(idArgs);
+			Constructor<?> idConst = idClass.getDeclaredConstructor(idArgTypes);
+			pid = (PageId) idConst.newInstance(idArgs);
 
-			Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+			Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
 			int pageSize = raf.readInt();
 
 			byte[] pageData = new byte[pageSize];
@@ -283,7 +376,7 @@ public class LogFile {
 			pageArgs[0] = pid;
 			pageArgs[1] = pageData;
 
-			newPage = (Page) pageConsts[0].newInstance(pageArgs);
+			newPage = (Page) pageConst.newInstance(pageArgs);
 
 			// Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " +
 			// newPage.getId().getTableId() + ", page = " +
@@ -300,6 +393,9 @@ public class LogFile {
 		} catch (InvocationTargetException e) {
 			e.printStackTrace();
 			throw new IOException();
+		} catch (NoSuchMethodException e) {
+			e.printStackTrace();
+			throw new IOException();
 		}
 		return newPage;
 
@@ -444,6 +540,11 @@ public class LogFile {
 				case BEGIN_RECORD:
 					tidToFirstLogRecord.put(record_tid, newStart);
 					break;
+				case BULK_LOAD_RECORD:
+					logNew.writeInt(raf.readInt());
+					logNew.writeInt(raf.readInt());
+					logNew.writeInt(raf.readInt());
+					break;
 				}
 
 				// all xactions finish with a pointer
@@ -458,6 +559,8 @@ public class LogFile {
 		Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: "
 				+ (raf.length() - minLogRecord));
 
+		// the rewritten log has not been forced
+		resetDurableOffset();
 		raf.close();
 		logFile.delete();
 		newFile.renameTo(logFile);
@@ -497,6 +600,7 @@ public class LogFile {
 		try {
 			logCheckpoint(); // simple way to shutdown is to write a checkpoint
 								// record
+			resetDurableOffset();
 			raf.close();
 		} catch (IOException e) {
 			System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -546,6 +650,9 @@ public class LogFile {
 							Page afterPageImage = this.readPageData(this.raf);
 							Database.getCatalog().getDatabaseFile(afterPageImage.getId().getTableId())
 									.writePage(afterPageImage);
+						} else if (recordType == BULK_LOAD_RECORD) {
+							// loaded pages were forced before commit; nothing to redo
+							this.raf.skipBytes(INT_SIZE * 3);
 						} else if (recordType == BEGIN_RECORD) {
 							undoTransactions.add(recordTid);
 							long firstLogRecord = this.raf.readLong();
@@ -574,8 +681,159 @@ public class LogFile {
 		// some code goes here
 	}
 
-	public synchronized void force() throws IOException {
+	/**
+	 * Force every record appended so far to disk. A thread holding the
+	 * LogFile monitor forces the file itself; other threads force it as a
+	 * group, so concurrent committers share one force.
+	 */
+	public void force() throws IOException {
+		if (Thread.holdsLock(this)) {
+			forceNow();
+			return;
+		}
+		long needed;
+		synchronized (this) {
+			needed = currentOffset;
+		}
+		synchronized (groupLock) {
+			while (leaderActive && durableOffset < needed) {
+				try {
+					groupLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for the log to be forced");
+				}
+			}
+			if (durableOffset >= needed) {
+				return;
+			}
+			leaderActive = true;
+		}
+		try {
+			leadGroupForce();
+		} finally {
+			synchronized (groupLock) {
+				leaderActive = false;
+				forcing = false;
+				groupLock.notifyAll();
+			}
+		}
+	}
+
+	// Helper method run by the leader of a group force: waits for more
+	// records, then forces every record appended so far
+	private void leadGroupForce() throws IOException {
+		long delay = groupCommitDelay;
+		if (delay > 0) {
+			LockSupport.parkNanos(delay);
+		}
+		long end;
+		FileChannel channel;
+		synchronized (this) {
+			end = currentOffset;
+			channel = raf.getChannel();
+			synchronized (groupLock) {
+				forcing = true;
+			}
+		}
+		channel.force(true);
+		forceCount.increment();
+		synchronized (groupLock) {
+			durableOffset = Math.max(durableOffset, end);
+		}
+	}
+
+	// Helper method that forces the file while holding the LogFile monitor
+	private void forceNow() throws IOException {
 		raf.getChannel().force(true);
+		forceCount.increment();
+		synchronized (groupLock) {
+			durableOffset = Math.max(durableOffset, currentOffset);
+		}
+	}
+
+	// Helper method called with the LogFile monitor held before the file is
+	// replaced or emptied: waits for a leader that is forcing the old file,
+	// and forgets how much of the log is on disk
+	private void resetDurableOffset() {
+		synchronized (groupLock) {
+			while (forcing) {
+				try {
+					groupLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			durableOffset = 0;
+		}
+	}
+
+	/**
+	 * Sets how long the leader of a group force waits for other committers
+	 * to append their records before it forces the log. Longer delays share
+	 * a force between more commits, at the cost of commit latency. Defaults
+	 * to 0, which forces at once.
+	 * 
+	 * @param micros
+	 *            the delay in microseconds
+	 */
+	public void setGroupCommitDelay(long micros) {
+		if (micros < 0) {
+			throw new IllegalArgumentException("group commit delay must not be negative: " + micros);
+		}
+		groupCommitDelay = micros * 1000;
+	}
+
+	/**
+	 * @return the group commit delay in microseconds
+	 */
+	public long getGroupCommitDelay() {
+		return groupCommitDelay / 1000;
+	}
+
+	/**
+	 * @return the number of commit records written since the statistics
+	 *         were reset
+	 */
+	public long getCommitCount() {
+		return commitCount.sum();
+	}
+
+	/**
+	 * @return the number of times the log was forced to disk since the
+	 *         statistics were reset
+	 */
+	public long getForceCount() {
+		return forceCount.sum();
+	}
+
+	/**
+	 * @return the number of commits per second since the statistics were
+	 *         reset
+	 */
+	public double getCommitsPerSecond() {
+		double seconds = (System.nanoTime() - statsStart) / 1e9;
+		return seconds <= 0 ? 0.0 : commitCount.sum() / seconds;
+	}
+
+	/**
+	 * @return the number of forces per commit since the statistics were
+	 *         reset, or 0 if nothing has committed
+	 */
+	public double getForcesPerCommit() {
+		long commits = commitCount.sum();
+		return commits == 0 ? 0.0 : (double) forceCount.sum() / commits;
+	}
+
+	/**
+	 * Resets the commit and force counters, e.g. before measuring a
+	 * workload.
+	 */
+	public void resetStats() {
+		commitCount.reset();
+		forceCount.reset();
+		statsStart = System.nanoTime();
 	}
 
 	private void rollbackHelper(long id) throws IOException {
@@ -583,7 +841,6 @@ public class LogFile {
 			return;
 		}
 
-		Set<Page> pagesReverted = new HashSet<Page>();
 		long offset = this.tidToFirstLogRecord.get(id);
 		this.raf.seek(offset);
 		while (true) {
@@ -591,17 +848,21 @@ public class LogFile {
 				int recordType = this.raf.readInt();
 				long recordTid = this.raf.readLong();
 				if (recordType == UPDATE_RECORD && recordTid == id) {
+					// other transactions may have changed other records of
+					// the page, so only the records this one changed are
+					// reverted, on disk; the pool undoes them in memory
 					Page recordBeforePage = this.readPageData(this.raf);
-					if (!pagesReverted.contains(recordBeforePage)) {
-						Database.getCatalog().getDatabaseFile(recordBeforePage.getId().getTableId())
-								.writePage(recordBeforePage);
-						Database.getBufferPool().discardPage(recordBeforePage.getId());
-						pagesReverted.add(recordBeforePage);
-					}
-					this.readPageData(this.raf);
+					Page recordAfterPage = this.readPageData(this.raf);
+					DbFile file = Database.getCatalog().getDatabaseFile(recordBeforePage.getId().getTableId());
+					Page diskPage = file.readPage(recordBeforePage.getId());
+					file.writePage(diskPage.undoUpdate(recordBeforePage, recordAfterPage));
 				} else if (recordType == UPDATE_RECORD) {
 					this.readPageData(this.raf);
 					this.readPageData(this.raf);
+				} else if (recordType == BULK_LOAD_RECORD && recordTid == id) {
+					undoBulkLoad(this.raf.readInt(), this.raf.readInt(), this.raf.readInt());
+				} else if (recordType == BULK_LOAD_RECORD) {
+					this.raf.skipBytes(INT_SIZE * 3);
 				} else if (recordType == CHECKPOINT_RECORD) {
 					int transactionCount = this.raf.readInt();
 					this.raf.skipBytes(transactionCount * LONG_SIZE * 2);
@@ -614,4 +875,21 @@ public class LogFile {
 			}
 		}
 	}
+
+	// Helper method that undoes a bulk load by overwriting the loaded pages
+	// with empty ones; pages appended after them by others are left alone
+	private void undoBulkLoad(int tableId, int firstPage, int numPages) throws IOException {
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (!(file instanceof HeapFile)) {
+			return;
+		}
+		HeapFile heapFile = (HeapFile) file;
+		int lastPage = Math.min(firstPage + numPages, heapFile.numPages());
+		for (int i = firstPage; i < lastPage; i++) {
+			HeapPageId pid = new HeapPageId(tableId, i);
+			heapFile.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+			Database.getBufferPool().discardPage(pid);
+			heapFile.getFreeSpaceMap().markFree(i);
+		}
+	}
 }
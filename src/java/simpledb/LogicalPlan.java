@@ -33,8 +33,8 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<Boolean> oByAsc;
+    private Vector<String> oByFields;
     private String query;
 //    private Query owner;
 
@@ -43,6 +43,8 @@ public class LogicalPlan {
         joins = new Vector<LogicalJoinNode>();
         filters = new Vector<LogicalFilterNode>();
         tables = new Vector<LogicalScanNode>();
+        oByFields = new Vector<String>();
+        oByAsc = new Vector<Boolean>();
         subplanMap = new HashMap<String,DbIterator>();
         tableMap = new HashMap<String,Integer>();
 
@@ -203,17 +205,16 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Calling this
+        several times orders by several fields, the first call's field being the most significant.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAsc.add(asc);
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -474,8 +475,14 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                asc[i] = oByAsc.get(i);
+            }
+            node = new OrderBy(oByIndexes, asc, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-K eviction. The policy remembers the times of the last K accesses to
+ * every cached page and evicts the page whose K-th most recent access is the
+ * oldest. Pages seen fewer than K times are treated as infinitely old and
+ * are evicted first, oldest last access first, so a single sequential scan
+ * cannot push out pages that are used repeatedly.
+ * <p>
+ * Accesses take no lock of the policy: each page's history is updated under
+ * its own monitor, so hits on different pages never contend.
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+	public static final int DEFAULT_K = 2;
+
+	private final int k;
+	
+	/**
+	 * Logical clock, advanced on every access
+	 */
+	private final AtomicLong clock;
+	
+	/**
+	 * The last K access times of each cached page, most recent first. Unused
+	 * entries are 0. Each array is read and written under its own monitor.
+	 */
+	private final ConcurrentHashMap<PageId, long[]> history;
+
+	public LruKEvictionPolicy() {
+		this(DEFAULT_K);
+	}
+
+	/**
+	 * @param k the number of past accesses to remember for every page
+	 */
+	public LruKEvictionPolicy(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be positive: " + k);
+		}
+		this.k = k;
+		this.clock = new AtomicLong(0);
+		this.history = new ConcurrentHashMap<PageId, long[]>();
+	}
+
+	public void recordAccess(PageId pid) {
+		long[] accesses = this.history.get(pid);
+		if (accesses == null) {
+			long[] added = new long[this.k];
+			accesses = this.history.putIfAbsent(pid, added);
+			if (accesses == null) {
+				accesses = added;
+			}
+		}
+		synchronized (accesses) {
+			System.arraycopy(accesses, 0, accesses, 1, this.k - 1);
+			accesses[0] = this.clock.incrementAndGet();
+		}
+	}
+
+	public void recordRemoval(PageId pid) {
+		this.history.remove(pid);
+	}
+
+	public synchronized PageId chooseVictim(Evictable evictable) {
+		PageId victim = null;
+		boolean victimHasK = true;
+		long victimTime = Long.MAX_VALUE;
+		for (Map.Entry<PageId, long[]> entry : this.history.entrySet()) {
+			if (!evictable.canEvict(entry.getKey())) {
+				continue;
+			}
+			long[] accesses = entry.getValue();
+			boolean hasK;
+			long time;
+			synchronized (accesses) {
+				hasK = accesses[this.k - 1] != 0;
+				// pages without K accesses have an infinite backward
+				// K-distance, ties among them are broken by their most
+				// recent access
+				time = hasK ? accesses[this.k - 1] : accesses[0];
+			}
+			if ((victimHasK && !hasK) || (victimHasK == hasK && time < victimTime)) {
+				victim = entry.getKey();
+				victimHasK = hasK;
+				victimTime = time;
+			}
+		}
+		return victim;
+	}
+}
@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * MappedHeapFile is a read-only HeapFile that maps its backing file into
+ * memory with {@link FileChannel#map} and builds HeapPages directly from the
+ * mapped region, without copying pages through a byte array.
+ * <p>
+ * Because the table can never be modified, its pages need no locks and no
+ * buffer pool frames: the iterator reads pages straight from the mapping,
+ * and the operating system's page cache takes the place of BufferPool.
+ * Scans of large read-mostly tables therefore do not evict other tables'
+ * pages from the buffer pool. Pages requested through BufferPool.getPage
+ * are still served normally.
+ * <p>
+ * Appends through this file, e.g. by a {@link BulkLoader}, are rejected. If
+ * the backing file is grown some other way, the file is mapped again the
+ * next time its size is checked, so new scans see the new pages.
+ * <p>
+ * Tables are marked as mapped in the catalog schema file by following the
+ * column list with <code>mapped</code>, e.g.
+ * <code>facts (id int pk, value int) mapped</code>.
+ * 
+ * @see Catalog#loadSchema
+ */
+public class MappedHeapFile extends HeapFile {
+
+	/**
+	 * The open channel to the backing file, or null if it is not mapped
+	 */
+	private transient FileChannel channel;
+	
+	/**
+	 * Mapped regions of the file; each holds pagesPerSegment pages except,
+	 * possibly, the last
+	 */
+	private transient MappedByteBuffer[] segments;
+	
+	/**
+	 * Number of pages in each mapped region
+	 */
+	private transient int pagesPerSegment;
+	
+	/**
+	 * Number of pages in the mapped file
+	 */
+	private transient int mappedPages;
+
+    /**
+     * Constructs a read-only heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+	public MappedHeapFile(File f, TupleDesc td) {
+		super(f, td);
+	}
+
+	/**
+	 * Maps the backing file, if it is not mapped yet or has grown since it
+	 * was mapped. A single mapping is limited to 2GB, so large files are
+	 * mapped as several regions.
+	 */
+	private synchronized void map() throws IOException {
+		if (this.channel == null) {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(getFile(), "r");
+			this.channel = randomAccessFile.getChannel();
+		}
+		int pageSize = BufferPool.getPageSize();
+		int filePages = (int) (this.channel.size() / pageSize);
+		if (this.segments != null && filePages == this.mappedPages) {
+			return;
+		}
+		this.mappedPages = filePages;
+		this.pagesPerSegment = Integer.MAX_VALUE / pageSize;
+		int numSegments = (this.mappedPages + this.pagesPerSegment - 1) / this.pagesPerSegment;
+		MappedByteBuffer[] mapped = new MappedByteBuffer[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			long start = (long) i * this.pagesPerSegment * pageSize;
+			long length = Math.min((long) this.pagesPerSegment * pageSize, (long) this.mappedPages * pageSize - start);
+			mapped[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		}
+		this.segments = mapped;
+	}
+
+	/**
+	 * Drops the mapping and closes the backing file. The file is mapped
+	 * again on the next access.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		super.close();
+		this.segments = null;
+		if (this.channel != null) {
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	// see DbFile.java for javadocs
+	@Override
+	public Page readPage(PageId pid) {
+		try {
+			MappedByteBuffer[] mapped;
+			synchronized (this) {
+				if (this.segments == null || pid.pageNumber() >= this.mappedPages) {
+					map();
+				}
+				if (pid.pageNumber() < 0 || pid.pageNumber() >= this.mappedPages) {
+					throw new IllegalArgumentException();
+				}
+				mapped = this.segments;
+			}
+			int pageSize = BufferPool.getPageSize();
+			ByteBuffer page = mapped[pid.pageNumber() / this.pagesPerSegment].duplicate();
+			page.position((pid.pageNumber() % this.pagesPerSegment) * pageSize);
+			return new HeapPage((HeapPageId) pid, page);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// see DbFile.java for javadocs
+	@Override
+	public void writePage(Page page) throws IOException {
+		throw new IOException("table " + getFile() + " is mapped read-only");
+	}
+
+    /**
+     * Returns the number of pages in this MappedHeapFile, mapping the file
+     * again if it has grown.
+     */
+	@Override
+	public synchronized int numPages() {
+		try {
+			map();
+			return this.mappedPages;
+		} catch (IOException e) {
+			return (int) (getFile().length() / BufferPool.getPageSize());
+		}
+	}
+
+	// see DbFile.java for javadocs
+	@Override
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		throw new DbException("table " + getFile() + " is mapped read-only");
+	}
+
+	@Override
+	int appendPages(TransactionId tid, byte[] data, int count, boolean lastHasSpace)
+			throws IOException {
+		throw new IOException("table " + getFile() + " is mapped read-only");
+	}
+
+	/**
+	 * Does nothing, as nothing is ever written through this file.
+	 */
+	@Override
+	void force() {
+	}
+
+	// see DbFile.java for javadocs
+	@Override
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, TransactionAbortedException {
+		throw new DbException("table " + getFile() + " is mapped read-only");
+	}
+
+	/**
+	 * Returns an iterator that reads pages straight from the mapped file,
+	 * without going through BufferPool; this is safe because the table is
+	 * read-only, so there is nothing to lock.
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid) {
+		return new MappedHeapFileIterator();
+	}
+
+	private class MappedHeapFileIterator extends AbstractDbFileIterator {
+
+		private int currentPageNumber;
+		private int lastPageNumber;
+		private Iterator<Tuple> currentIterator;
+
+		public void open() throws DbException, TransactionAbortedException {
+			this.currentPageNumber = -1;
+			this.lastPageNumber = numPages() - 1;
+			this.currentIterator = null;
+			advancePage();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while (this.currentIterator != null) {
+				if (this.currentIterator.hasNext()) {
+					return this.currentIterator.next();
+				}
+				advancePage();
+			}
+			return null;
+		}
+
+		private void advancePage() throws DbException {
+			this.currentPageNumber++;
+			if (this.currentPageNumber > this.lastPageNumber) {
+				this.currentIterator = null;
+				return;
+			}
+			HeapPage page = (HeapPage) readPage(new HeapPageId(getId(), this.currentPageNumber));
+			if (page == null) {
+				throw new DbException("could not read page " + this.currentPageNumber + " of " + getFile());
+			}
+			this.currentIterator = page.iterator();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			this.currentIterator = null;
+		}
+	}
+}
@@ -1,20 +1,93 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or
+ * more fields, each ascending or descending. Tuples are compared through a
+ * {@link SortKey}, which decides most comparisons from a normalized prefix
+ * of the sort fields computed once per tuple.
+ * <p>
+ * OrderBy is an external merge sort. Child tuples are collected in memory
+ * until they exceed the memory budget; then they are sorted and written to
+ * a {@link SpillFile} as a run. Once the child is exhausted, the runs and the
+ * tuples still in memory are merged with a heap of run cursors, at most
+ * {@link #MERGE_FAN_IN} runs at a time. If everything fits in the budget the
+ * tuples are simply sorted in memory. Either way the sort is stable: tuples
+ * that compare equal are returned in the order the child returned them.
+ * <p>
+ * Tuples read back from runs are rebuilt from their fields and have no
+ * {@link RecordId}, so only an OrderBy that did not spill returns tuples
+ * that can be passed on to e.g. a {@link Delete}.
+ * <p>
+ * With a limit (see {@link #setLimit}), only the first tuples in sort order
+ * are returned, and only that many are kept, in a bounded heap, while the
+ * child is read.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private ArrayList<SortKey.Entry> childTups = new ArrayList<SortKey.Entry>();
+    private int[] orderByFields;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private Iterator<SortKey.Entry> it;
+    private boolean[] asc;
+
+    /**
+     * Default memory budget for the tuples being sorted in bytes
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    /**
+     * Estimated bytes of memory per tuple being sorted, besides its fields
+     */
+    public static final int TUPLE_OVERHEAD = 64;
+
+    /**
+     * Maximum number of runs merged at once; more runs are first merged into
+     * longer runs
+     */
+    public static final int MERGE_FAN_IN = 64;
+
+    /**
+     * Memory budget of new OrderBys in bytes, or 0 for no budget
+     */
+    private static long defaultMemoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * Memory budget for the tuples being sorted in bytes, or 0 for no budget
+     */
+    private long memoryBudget;
+
+    /**
+     * Maximum number of tuples to return, or -1 for all of them
+     */
+    private int limit;
+
+    /**
+     * The sort order
+     */
+    private transient SortKey sortKey;
+    private transient Comparator<SortKey.Entry> comparator;
+
+    /**
+     * Sorted runs written to disk, or null if everything fit in memory
+     */
+    private transient List<SpillFile> runs;
+
+    /**
+     * Cursors over the runs and the in-memory tuples, by their current tuple
+     */
+    private transient PriorityQueue<RunCursor> merge;
+
+    /**
+     * Statistics of the last sort
+     */
+    private transient int numRuns;
+    private transient long spilledBytes;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,50 +100,304 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order per field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc.clone();
+        this.memoryBudget = defaultMemoryBudget;
+        this.limit = -1;
     }
     
+    /**
+     * @return true if the first sort field is ascending
+     */
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
     
+    /**
+     * @return the first sort field
+     */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
+    /**
+     * @return the name of the first sort field
+     */
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    /**
+     * @return the sort fields, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if it is ascending
+     */
+    public boolean[] getAscending() {
+        return this.asc.clone();
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * Sets the memory budget of OrderBys created afterwards.
+     *
+     * @param bytes
+     *            the budget in bytes, or 0 for no budget
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = bytes;
+    }
+
+    /**
+     * Limits the memory used for tuples being sorted. Tuples that do not fit
+     * are written to disk in sorted runs. Takes effect the next time the
+     * operator is opened.
+     *
+     * @param bytes
+     *            the budget in bytes, or 0 for no budget
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes, or 0 if there is none
+     */
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Returns only the first n tuples in sort order, like a LIMIT clause.
+     * Takes effect the next time the operator is opened.
+     *
+     * @param n
+     *            the maximum number of tuples to return, or -1 for all
+     */
+    public void setLimit(int n) {
+        this.limit = n;
+    }
+
+    /**
+     * @return the maximum number of tuples returned, or -1 for all
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk by the last sort,
+     *         including runs written by intermediate merges
+     */
+    public int getNumRuns() {
+        return this.numRuns;
+    }
+
+    /**
+     * @return the number of bytes written to disk by the last sort
+     */
+    public long getSpilledBytes() {
+        return this.spilledBytes;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        this.sortKey = new SortKey(td, orderByFields, asc);
+        this.comparator = this.sortKey.entryComparator();
+        this.childTups = new ArrayList<SortKey.Entry>();
+        this.numRuns = 0;
+        this.spilledBytes = 0;
+        if (this.limit >= 0) {
+            topN();
+        } else {
+            sort();
+        }
         super.open();
     }
 
+    // Helper method that keeps the first limit tuples of the child in a
+    // heap whose head is the last of them
+    private void topN() throws DbException, TransactionAbortedException {
+        PriorityQueue<SortKey.Entry> heap = new PriorityQueue<SortKey.Entry>(Math.max(1, limit),
+                Collections.reverseOrder(this.comparator));
+        while (child.hasNext()) {
+            SortKey.Entry e = this.sortKey.entry(child.next());
+            if (heap.size() < limit) {
+                heap.add(e);
+            } else if (limit > 0 && this.comparator.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        childTups.addAll(heap);
+        Collections.sort(childTups, this.comparator);
+        it = childTups.iterator();
+    }
+
+    // Helper method that sorts the child, writing a sorted run whenever the
+    // tuples in memory exceed the budget
+    private void sort() throws DbException, TransactionAbortedException {
+        long tupleMemory = td.getSize() + TUPLE_OVERHEAD;
+        long memoryUsed = 0;
+        while (child.hasNext()) {
+            childTups.add(this.sortKey.entry(child.next()));
+            memoryUsed += tupleMemory;
+            if (this.memoryBudget > 0 && memoryUsed > this.memoryBudget) {
+                Collections.sort(childTups, this.comparator);
+                if (this.runs == null) {
+                    this.runs = new ArrayList<SpillFile>();
+                }
+                this.runs.add(writeRun(new TupleIterator(td, tuplesOf(childTups))));
+                childTups.clear();
+                memoryUsed = 0;
+            }
+        }
+        Collections.sort(childTups, this.comparator);
+        if (this.runs == null) {
+            it = childTups.iterator();
+            return;
+        }
+        // merge runs until the rest can be merged at once with the tuples
+        // still in memory
+        while (this.runs.size() + 1 > MERGE_FAN_IN) {
+            List<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < this.runs.size(); i += MERGE_FAN_IN) {
+                List<SpillFile> group = this.runs.subList(i, Math.min(i + MERGE_FAN_IN, this.runs.size()));
+                List<RunCursor> inputs = new ArrayList<RunCursor>();
+                for (SpillFile run : group) {
+                    inputs.add(new RunCursor(run.iterator()));
+                }
+                merged.add(writeRun(new MergeIterator(inputs)));
+                for (SpillFile run : group) {
+                    run.delete();
+                }
+            }
+            this.runs = merged;
+        }
+        startMerge();
+    }
+
+    // Helper method that returns the tuples of sorted entries
+    private static List<Tuple> tuplesOf(List<SortKey.Entry> entries) {
+        List<Tuple> tuples = new ArrayList<Tuple>(entries.size());
+        for (SortKey.Entry e : entries) {
+            tuples.add(e.tuple);
+        }
+        return tuples;
+    }
+
+    // Helper method that writes the tuples of an iterator to a new run
+    private SpillFile writeRun(DbIterator tuples) throws DbException, TransactionAbortedException {
+        try {
+            SpillFile run = new SpillFile(td);
+            tuples.open();
+            while (tuples.hasNext()) {
+                run.add(tuples.next());
+            }
+            tuples.close();
+            this.numRuns++;
+            this.spilledBytes += run.numBytes();
+            return run;
+        } catch (IOException e) {
+            throw new DbException("could not write sorted run: " + e.getMessage());
+        }
+    }
+
+    // Helper method that starts the final merge of the runs and the
+    // entries still in memory
+    private void startMerge() throws DbException, TransactionAbortedException {
+        List<RunCursor> inputs = new ArrayList<RunCursor>();
+        for (SpillFile run : this.runs) {
+            inputs.add(new RunCursor(run.iterator()));
+        }
+        inputs.add(new RunCursor(childTups.iterator()));
+        this.merge = openCursors(inputs);
+    }
+
+    // Helper method that opens merge inputs and puts a cursor for each
+    // non-empty one on a heap
+    private static PriorityQueue<RunCursor> openCursors(List<RunCursor> inputs)
+            throws DbException, TransactionAbortedException {
+        PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(Math.max(1, inputs.size()));
+        for (int i = 0; i < inputs.size(); i++) {
+            RunCursor cursor = inputs.get(i);
+            cursor.index = i;
+            cursor.open();
+            if (cursor.advance()) {
+                heap.add(cursor);
+            } else {
+                cursor.close();
+            }
+        }
+        return heap;
+    }
+
     public void close() {
         super.close();
+        child.close();
         it = null;
+        if (this.runs != null) {
+            Debug.log("OrderBy wrote %d runs, %d bytes", this.numRuns, this.spilledBytes);
+        }
+        closeMerge();
+        if (this.runs != null) {
+            for (SpillFile run : this.runs) {
+                run.delete();
+            }
+            this.runs = null;
+        }
+        childTups = new ArrayList<SortKey.Entry>();
+    }
+
+    // Helper method that closes the inputs of the final merge
+    private void closeMerge() {
+        if (this.merge != null) {
+            for (RunCursor cursor : this.merge) {
+                cursor.close();
+            }
+            this.merge = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (this.runs == null) {
+            it = childTups.iterator();
+            return;
+        }
+        closeMerge();
+        startMerge();
     }
 
     /**
@@ -82,12 +409,32 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (this.merge != null) {
+            return nextMerged(this.merge);
+        }
         if (it != null && it.hasNext()) {
-            return it.next();
+            return it.next().tuple;
         } else
             return null;
     }
 
+    // Helper method that returns the smallest current tuple of the cursors
+    // on a heap, or null if they are all exhausted
+    private static Tuple nextMerged(PriorityQueue<RunCursor> heap)
+            throws DbException, TransactionAbortedException {
+        RunCursor cursor = heap.poll();
+        if (cursor == null) {
+            return null;
+        }
+        Tuple t = cursor.current.tuple;
+        if (cursor.advance()) {
+            heap.add(cursor);
+        } else {
+            cursor.close();
+        }
+        return t;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -98,26 +445,109 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * A sorted input of a merge, either a run on disk or the entries in
+     * memory, and its smallest unmerged entry.
+     */
+    private class RunCursor implements Comparable<RunCursor> {
+        final DbIterator input;
+        final Iterator<SortKey.Entry> entries;
+        SortKey.Entry current;
+
+        /**
+         * Position of the input in the merge; inputs are in the order the
+         * child returned their tuples, so ties go to the lower index
+         */
+        int index;
+
+        RunCursor(DbIterator input) {
+            this.input = input;
+            this.entries = null;
+        }
+
+        RunCursor(Iterator<SortKey.Entry> entries) {
+            this.input = null;
+            this.entries = entries;
+        }
+
+        void open() throws DbException, TransactionAbortedException {
+            if (this.input != null) {
+                this.input.open();
+            }
+        }
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        void close() {
+            if (this.input != null) {
+                this.input.close();
+            }
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        // Moves to the next entry of the input; false if there is none
+        boolean advance() throws DbException, TransactionAbortedException {
+            if (this.entries != null) {
+                this.current = this.entries.hasNext() ? this.entries.next() : null;
+            } else {
+                this.current = this.input.hasNext()
+                        ? OrderBy.this.sortKey.entry(this.input.next()) : null;
+            }
+            return this.current != null;
+        }
+
+        public int compareTo(RunCursor other) {
+            int c = OrderBy.this.comparator.compare(this.current, other.current);
+            return c != 0 ? c : Integer.compare(this.index, other.index);
+        }
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    /**
+     * Merges sorted inputs into one sorted stream, for intermediate merges.
+     */
+    private class MergeIterator extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<RunCursor> inputs;
+        private transient PriorityQueue<RunCursor> heap;
+
+        MergeIterator(List<RunCursor> inputs) {
+            this.inputs = inputs;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return OrderBy.this.td;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            this.heap = openCursors(this.inputs);
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            if (this.heap != null) {
+                for (RunCursor cursor : this.heap) {
+                    cursor.close();
+                }
+                this.heap = null;
+            }
+        }
+
+        public void rewind() throws DbException {
+            throw new DbException("intermediate merges cannot be rewound");
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return nextMerged(this.heap);
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[0];
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+        }
     }
-    
+
 }
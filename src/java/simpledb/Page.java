@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.IOException;
+import java.util.Set;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -7,8 +10,9 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  *     Page(PageId id, byte[] data)
+ * where PageId is the class of the page's id.
  */
 public interface Page {
 
@@ -28,6 +32,12 @@ public interface Page {
      */
     public TransactionId isDirty();
 
+    /**
+     * Returns true if the transaction changed this page and has not
+     * completed since, or last dirtied it.
+     */
+    public boolean isDirtiedBy(TransactionId tid);
+
   /**
    * Set the dirty state of this page as dirtied by a particular transaction
    */
@@ -56,4 +66,38 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /*
+     * a transaction that wrote this page just committed.
+     * copy its changes to the before image, leaving out changes of
+     * transactions that are still running.
+     */
+    public void setBeforeImage(TransactionId tid);
+
+    /*
+     * a transaction that wrote this page aborted.
+     * undo its changes by copying them back from the before image.
+     */
+    public void restoreBeforeImage(TransactionId tid);
+
+    /**
+     * Returns the transactions that changed this page and have not
+     * completed since.
+     */
+    public Set<TransactionId> getDirtiers();
+
+    /**
+     * Returns the before image of this page with only the changes of the
+     * specified transaction applied. Used to log the changes of each
+     * transaction on a page separately.
+     */
+    public Page getChangesOf(TransactionId tid) throws IOException;
+
+    /**
+     * Returns a copy of this page in which the records that differ between
+     * the before and after images of a logged update are reverted to the
+     * before image. Undoes the logged changes of one transaction without
+     * touching the records other transactions changed.
+     */
+    public Page undoUpdate(Page before, Page after) throws IOException;
 }
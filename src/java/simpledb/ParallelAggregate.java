@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.util.*;
+
+import simpledb.Aggregator.Op;
+
+/**
+ * ParallelAggregate computes an aggregate over a {@link ParallelSeqScan}
+ * with the workers of the scan. Each worker aggregates the tuples it scans
+ * into its own Aggregator, and the partial aggregates are combined at the
+ * end, as {@link simpledb.parallel.AggregateOptimizer} does across workers:
+ * COUNT is combined with SUM, and AVG is computed as SUM_COUNT, combined
+ * with SC_AVG. The output is the same as that of an {@link Aggregate}.
+ */
+public class ParallelAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private ParallelSeqScan child;
+    private int afield;
+    private int gfield;
+    private Aggregator.Op aop;
+    private TupleDesc td;
+    private transient DbIterator itr;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The scan that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use; not SUM_COUNT or SC_AVG
+     */
+    public ParallelAggregate(ParallelSeqScan child, int afield, int gfield, Aggregator.Op aop) {
+        if (aop == Op.SUM_COUNT || aop == Op.SC_AVG) {
+            throw new IllegalArgumentException("unsupported parallel aggregate: " + aop);
+        }
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.td = new Aggregate(child, afield, gfield, aop).getTupleDesc();
+    }
+
+    public int groupField() {
+        return this.gfield;
+    }
+
+    public int aggregateField() {
+        return this.afield;
+    }
+
+    public Aggregator.Op aggregateOp() {
+        return this.aop;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        TupleDesc childTd = this.child.getTupleDesc();
+        final Type gtype = this.gfield == Aggregator.NO_GROUPING ? null : childTd.getFieldType(this.gfield);
+        final boolean intField = childTd.getFieldType(this.afield) == Type.INT_TYPE;
+        final Op partialOp = this.aop == Op.AVG ? Op.SUM_COUNT : this.aop;
+        List<Aggregator> partials = this.child.scanPartial(new ParallelSeqScan.PartialFactory<Aggregator>() {
+            public Aggregator create() {
+                return intField
+                        ? new IntegerAggregator(gfield, gtype, afield, partialOp)
+                        : new StringAggregator(gfield, gtype, afield, partialOp);
+            }
+
+            public void add(Aggregator partial, Tuple t) {
+                partial.mergeTupleIntoGroup(t);
+            }
+        });
+
+        // partial results are (group, value) or (value), or (group, sum,
+        // count) and (sum, count) for AVG
+        boolean grouped = this.gfield != Aggregator.NO_GROUPING;
+        Op combineOp = this.aop == Op.AVG ? Op.SC_AVG : this.aop == Op.COUNT ? Op.SUM : this.aop;
+        Aggregator combined = new IntegerAggregator(grouped ? 0 : Aggregator.NO_GROUPING, gtype,
+                grouped ? 1 : 0, combineOp);
+        for (Aggregator partial : partials) {
+            DbIterator it = partial.iterator();
+            it.open();
+            while (it.hasNext()) {
+                combined.mergeTupleIntoGroup(it.next());
+            }
+            it.close();
+        }
+
+        List<Tuple> results = new ArrayList<Tuple>();
+        DbIterator it = combined.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Tuple result = new Tuple(this.td);
+            for (int i = 0; i < this.td.numFields(); i++) {
+                result.setField(i, t.getField(i));
+            }
+            results.add(result);
+        }
+        it.close();
+        this.itr = new TupleIterator(this.td, results);
+        this.itr.open();
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (this.itr != null && this.itr.hasNext()) {
+            return this.itr.next();
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.itr.rewind();
+    }
+
+    public void close() {
+        super.close();
+        if (this.itr != null) {
+            this.itr.close();
+        }
+        this.itr = null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = (ParallelSeqScan) children[0];
+    }
+}
@@ -0,0 +1,376 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * ParallelHashJoin is an in-memory hash equi-join that builds and probes
+ * with several threads of the pool shared by the parallel operators.
+ * <p>
+ * The hash table is split into {@link #NUM_PARTITIONS} partitions, each a
+ * HashMap locked only while tuples are added to it. Build workers buffer the
+ * tuples they hash per partition and add a buffer to its partition once it
+ * is full, so they rarely contend for a partition. If the build input is a
+ * {@link ParallelSeqScan}, its own workers build the table as they scan;
+ * otherwise the build input is read in morsels of {@link #MORSEL_TUPLES}
+ * tuples, which are handed to build tasks. The probe input is read in
+ * morsels too, up to one per thread at a time, and the morsels are probed
+ * in parallel against the finished table, which is no longer locked.
+ * <p>
+ * The output has the same tuples as a serial join, in no particular order.
+ * Unlike {@link HashEquiJoin}, the build input must fit in memory.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of partitions of the hash table
+     */
+    public static final int NUM_PARTITIONS = 64;
+
+    /**
+     * Number of input tuples a task builds or probes at a time
+     */
+    public static final int MORSEL_TUPLES = 1024;
+
+    /**
+     * Number of tuples a build worker buffers per partition
+     */
+    private static final int BUFFER_TUPLES = 64;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+
+    /**
+     * Whether the hash table is built on child1 rather than child2
+     */
+    private boolean buildOnChild1;
+
+    /**
+     * Maximum number of tasks building or probing at once
+     */
+    private int parallelism;
+
+    /**
+     * Schema of the output tuples
+     */
+    private transient TupleDesc td;
+
+    /**
+     * The inputs the table is built on and probed with, and their join
+     * fields
+     */
+    private transient DbIterator build, probe;
+    private transient int buildField, probeField;
+
+    /**
+     * The partitions of the hash table
+     */
+    private transient List<HashMap<Field, ArrayList<Tuple>>> tables;
+
+    /**
+     * Output of the last probed morsels not returned yet
+     */
+    private transient Iterator<Tuple> output;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("hash joins only support EQUALS");
+        }
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.buildOnChild1 = true;
+        this.parallelism = ParallelSeqScan.getPool().getParallelism();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
+    }
+
+    /**
+     * Chooses the input the hash table is built on; child1 by default.
+     * Takes effect the next time the operator is opened.
+     */
+    public void setBuildOnChild1(boolean buildOnChild1) {
+        this.buildOnChild1 = buildOnChild1;
+    }
+
+    public boolean buildsOnChild1() {
+        return this.buildOnChild1;
+    }
+
+    /**
+     * Sets the maximum number of tasks building or probing at once.
+     * Defaults to the parallelism of the shared pool. Takes effect the next
+     * time the operator is opened.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.td = getTupleDesc();
+        this.build = this.buildOnChild1 ? this.child1 : this.child2;
+        this.probe = this.buildOnChild1 ? this.child2 : this.child1;
+        this.buildField = this.buildOnChild1 ? this.p.getField1() : this.p.getField2();
+        this.probeField = this.buildOnChild1 ? this.p.getField2() : this.p.getField1();
+        this.tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(NUM_PARTITIONS);
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            this.tables.add(new HashMap<Field, ArrayList<Tuple>>());
+        }
+        buildTable();
+        this.probe.open();
+        this.output = null;
+        super.open();
+    }
+
+    // Helper method that builds the hash table with several workers
+    private void buildTable() throws DbException, TransactionAbortedException {
+        if (this.build instanceof ParallelSeqScan) {
+            List<PartitionWriter> writers = ((ParallelSeqScan) this.build).scanPartial(
+                    new ParallelSeqScan.PartialFactory<PartitionWriter>() {
+                        public PartitionWriter create() {
+                            return new PartitionWriter();
+                        }
+
+                        public void add(PartitionWriter writer, Tuple t) {
+                            writer.add(t);
+                        }
+                    });
+            for (PartitionWriter writer : writers) {
+                writer.flush();
+            }
+            return;
+        }
+        ForkJoinPool pool = ParallelSeqScan.getPool();
+        LinkedList<ForkJoinTask<?>> running = new LinkedList<ForkJoinTask<?>>();
+        this.build.open();
+        List<Tuple> morsel;
+        while ((morsel = readMorsel(this.build)) != null) {
+            if (running.size() == this.parallelism) {
+                running.removeFirst().join();
+            }
+            running.add(pool.submit(new BuildTask(morsel)));
+        }
+        for (ForkJoinTask<?> task : running) {
+            task.join();
+        }
+    }
+
+    // Helper method that reads the next morsel of an input, or returns null
+    // if the input is exhausted
+    private static List<Tuple> readMorsel(DbIterator input) throws DbException, TransactionAbortedException {
+        if (!input.hasNext()) {
+            return null;
+        }
+        List<Tuple> morsel = new ArrayList<Tuple>(MORSEL_TUPLES);
+        while (morsel.size() < MORSEL_TUPLES && input.hasNext()) {
+            morsel.add(input.next());
+        }
+        return morsel;
+    }
+
+    // Helper method that returns the partition of a join field value
+    private static int partitionOf(Field key) {
+        return SpillFile.partitionOf(key, 0, NUM_PARTITIONS);
+    }
+
+    public void close() {
+        super.close();
+        this.child1.close();
+        this.child2.close();
+        this.tables = null;
+        this.output = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.probe.rewind();
+        this.output = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples are the concatenation of the joining tuples of
+     * child1 and child2, in no particular order.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (this.output == null || !this.output.hasNext()) {
+            List<ProbeTask> tasks = new ArrayList<ProbeTask>(this.parallelism);
+            List<Tuple> morsel;
+            while (tasks.size() < this.parallelism && (morsel = readMorsel(this.probe)) != null) {
+                ProbeTask task = new ProbeTask(morsel);
+                ParallelSeqScan.getPool().execute(task);
+                tasks.add(task);
+            }
+            if (tasks.isEmpty()) {
+                return null;
+            }
+            List<Tuple> joined = new ArrayList<Tuple>();
+            for (ProbeTask task : tasks) {
+                joined.addAll(task.join());
+            }
+            this.output = joined.iterator();
+        }
+        return this.output.next();
+    }
+
+    // Helper method that concatenates a build and a probe tuple in child
+    // order
+    private Tuple getMergedTuples(Tuple buildTuple, Tuple probeTuple) {
+        Tuple first = this.buildOnChild1 ? buildTuple : probeTuple;
+        Tuple second = this.buildOnChild1 ? probeTuple : buildTuple;
+        Tuple result = new Tuple(this.td);
+        int width1 = first.getTupleDesc().numFields();
+        for (int i = 0; i < width1; i++) {
+            result.setField(i, first.getField(i));
+        }
+        for (int i = 0; i < second.getTupleDesc().numFields(); i++) {
+            result.setField(width1 + i, second.getField(i));
+        }
+        return result;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    /**
+     * Buffers the build tuples of one worker per partition, adding a
+     * partition's buffer to the table under the partition's lock when it
+     * is full.
+     */
+    private class PartitionWriter {
+        private final List<List<Tuple>> buffers = new ArrayList<List<Tuple>>(NUM_PARTITIONS);
+
+        PartitionWriter() {
+            // buffers are allocated on first use
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                this.buffers.add(null);
+            }
+        }
+
+        void add(Tuple t) {
+            int partition = partitionOf(t.getField(buildField));
+            List<Tuple> buffer = this.buffers.get(partition);
+            if (buffer == null) {
+                buffer = new ArrayList<Tuple>(BUFFER_TUPLES);
+                this.buffers.set(partition, buffer);
+            }
+            buffer.add(t);
+            if (buffer.size() == BUFFER_TUPLES) {
+                write(partition);
+            }
+        }
+
+        // Adds every buffer that is not empty to the table
+        void flush() {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                if (this.buffers.get(i) != null && !this.buffers.get(i).isEmpty()) {
+                    write(i);
+                }
+            }
+        }
+
+        private void write(int partition) {
+            HashMap<Field, ArrayList<Tuple>> table = tables.get(partition);
+            synchronized (table) {
+                for (Tuple t : this.buffers.get(partition)) {
+                    Field key = t.getField(buildField);
+                    ArrayList<Tuple> list = table.get(key);
+                    if (list == null) {
+                        list = new ArrayList<Tuple>();
+                        table.put(key, list);
+                    }
+                    list.add(t);
+                }
+            }
+            this.buffers.get(partition).clear();
+        }
+    }
+
+    /**
+     * Adds a morsel of the build input to the table.
+     */
+    private class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Tuple> morsel;
+
+        BuildTask(List<Tuple> morsel) {
+            this.morsel = morsel;
+        }
+
+        protected void compute() {
+            PartitionWriter writer = new PartitionWriter();
+            for (Tuple t : this.morsel) {
+                writer.add(t);
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * Joins a morsel of the probe input with the table.
+     */
+    private class ProbeTask extends RecursiveTask<List<Tuple>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Tuple> morsel;
+
+        ProbeTask(List<Tuple> morsel) {
+            this.morsel = morsel;
+        }
+
+        protected List<Tuple> compute() {
+            List<Tuple> joined = new ArrayList<Tuple>();
+            for (Tuple t : this.morsel) {
+                Field key = t.getField(probeField);
+                ArrayList<Tuple> matches = tables.get(partitionOf(key)).get(key);
+                if (matches != null) {
+                    for (Tuple match : matches) {
+                        joined.add(getMergedTuples(match, t));
+                    }
+                }
+            }
+            return joined;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelSeqScan reads a table stored in a HeapFile with several threads.
+ * The pages of the file are split into morsels of {@link #MORSEL_PAGES}
+ * consecutive pages. Worker tasks on a ForkJoinPool shared by all parallel
+ * scans claim morsels one at a time, apply the pushed-down predicates (see
+ * {@link #addPredicate}) to their tuples, and hand the tuples that pass to
+ * the consumer in chunks through a bounded queue. Tuples come out in no
+ * particular order.
+ * <p>
+ * Operators that can combine partial results, like
+ * {@link ParallelAggregate}, can instead give each worker its own partial
+ * state with {@link #scanPartial} and combine the states at the end.
+ */
+public class ParallelSeqScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of consecutive pages a worker claims at a time
+     */
+    public static final int MORSEL_PAGES = 16;
+
+    /**
+     * Number of tuples a worker hands to the consumer at a time
+     */
+    public static final int CHUNK_TUPLES = 256;
+
+    /**
+     * Number of chunks the queue to the consumer holds
+     */
+    public static final int QUEUE_CHUNKS = 64;
+
+    /**
+     * How long the consumer and the workers wait on the queue before
+     * checking whether the scan failed or was closed
+     */
+    private static final long POLL_MILLIS = 10;
+
+    /**
+     * Marks the end of the tuples of one worker in the queue
+     */
+    private static final List<Tuple> END = Collections.emptyList();
+
+    /**
+     * The pool running the workers of all parallel operators
+     */
+    private static ForkJoinPool pool;
+
+    /**
+     * Creates the partial state of a worker of {@link #scanPartial} and
+     * adds the tuples the worker scans to it.
+     */
+    public interface PartialFactory<P> {
+        P create();
+
+        void add(P partial, Tuple t);
+    }
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final TupleDesc td;
+
+    /**
+     * Predicates every returned tuple passes
+     */
+    private final List<Predicate> predicates;
+
+    /**
+     * Maximum number of workers scanning at once
+     */
+    private int parallelism;
+
+    /**
+     * Number of pages of the table when the scan started
+     */
+    private transient int numPages;
+
+    /**
+     * Index of the next morsel to claim
+     */
+    private transient AtomicInteger nextMorsel;
+
+    /**
+     * Set when the scan is closed, to stop the workers
+     */
+    private transient volatile boolean cancelled;
+
+    /**
+     * The first exception thrown by a worker, or null
+     */
+    private transient AtomicReference<Exception> failure;
+
+    /**
+     * Chunks of tuples from the workers to the consumer
+     */
+    private transient BlockingQueue<List<Tuple>> queue;
+
+    /**
+     * The running workers, and the number whose END marker the consumer has
+     * not taken yet
+     */
+    private transient List<ForkJoinTask<?>> workers;
+    private transient int workersRunning;
+
+    /**
+     * The chunk being returned, and the next tuple if hasNext found one
+     */
+    private transient Iterator<Tuple> chunk;
+    private transient Tuple next;
+
+    /**
+     * Creates a parallel scan over the specified table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile.
+     * @param tableAlias
+     *            the alias of this table, used to prefix the field names as
+     *            in SeqScan
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("parallel scans need a HeapFile");
+        }
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.td = new SeqScan(tid, tableid, tableAlias).getTupleDesc();
+        this.predicates = new ArrayList<Predicate>();
+        this.parallelism = getPool().getParallelism();
+    }
+
+    /**
+     * @return the pool shared by all parallel operators
+     */
+    static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    public String getAlias() {
+        return this.tableAlias;
+    }
+
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
+    /**
+     * Pushes a predicate into the scan; the workers only return tuples that
+     * pass every predicate added. Takes effect the next time the scan is
+     * started.
+     */
+    public void addPredicate(Predicate p) {
+        this.predicates.add(p);
+    }
+
+    /**
+     * @return the predicates pushed into the scan
+     */
+    public List<Predicate> getPredicates() {
+        return Collections.unmodifiableList(this.predicates);
+    }
+
+    /**
+     * Sets the maximum number of workers scanning at once. Defaults to the
+     * parallelism of the shared pool. Takes effect the next time the scan is
+     * started.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        int numWorkers = startScan();
+        this.queue = new ArrayBlockingQueue<List<Tuple>>(QUEUE_CHUNKS);
+        this.workers = new ArrayList<ForkJoinTask<?>>(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            this.workers.add(getPool().submit(new QueueWorker()));
+        }
+        this.workersRunning = numWorkers;
+        this.chunk = null;
+        this.next = null;
+    }
+
+    // Helper method that resets the morsels and returns the number of
+    // workers to scan them with
+    private int startScan() {
+        this.numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(this.tableid)).numPages();
+        this.nextMorsel = new AtomicInteger(0);
+        this.cancelled = false;
+        this.failure = new AtomicReference<Exception>();
+        int numMorsels = (this.numPages + MORSEL_PAGES - 1) / MORSEL_PAGES;
+        return Math.max(1, Math.min(this.parallelism, numMorsels));
+    }
+
+    /**
+     * Scans the whole table with the workers, each adding the tuples it
+     * scans that pass the predicates to its own partial state, without
+     * handing them to a consumer.
+     *
+     * @param factory
+     *            creates the partial state of each worker and adds tuples to
+     *            it; add is only called by the worker owning the state
+     * @return the partial states of the workers
+     */
+    public <P> List<P> scanPartial(final PartialFactory<P> factory)
+            throws DbException, TransactionAbortedException {
+        int numWorkers = startScan();
+        List<PartialWorker<P>> partialWorkers = new ArrayList<PartialWorker<P>>(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            PartialWorker<P> worker = new PartialWorker<P>(factory);
+            partialWorkers.add(worker);
+            getPool().execute(worker);
+        }
+        List<P> partials = new ArrayList<P>(numWorkers);
+        for (PartialWorker<P> worker : partialWorkers) {
+            worker.quietlyJoin();
+            partials.add(worker.partial);
+        }
+        checkFailure();
+        return partials;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (this.queue == null) {
+            throw new IllegalStateException("scan not open");
+        }
+        if (this.next == null) {
+            this.next = readNext();
+        }
+        return this.next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple result = this.next;
+        this.next = null;
+        return result;
+    }
+
+    // Helper method that returns the next tuple from the workers, or null
+    // once every worker has finished
+    private Tuple readNext() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (this.chunk != null && this.chunk.hasNext()) {
+                return this.chunk.next();
+            }
+            if (this.workersRunning == 0) {
+                checkFailure();
+                return null;
+            }
+            List<Tuple> tuples;
+            try {
+                tuples = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for scan workers");
+            }
+            checkFailure();
+            if (tuples == END) {
+                this.workersRunning--;
+            } else if (tuples != null) {
+                this.chunk = tuples.iterator();
+            }
+        }
+    }
+
+    // Helper method that rethrows the first exception of a worker
+    private void checkFailure() throws DbException, TransactionAbortedException {
+        Exception e = this.failure.get();
+        if (e == null) {
+            return;
+        }
+        if (e instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) e;
+        }
+        if (e instanceof DbException) {
+            throw (DbException) e;
+        }
+        throw new DbException("parallel scan failed: " + e);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        this.cancelled = true;
+        if (this.workers != null) {
+            // the workers release their pins before they finish
+            for (ForkJoinTask<?> worker : this.workers) {
+                worker.quietlyJoin();
+            }
+            this.workers = null;
+        }
+        this.queue = null;
+        this.chunk = null;
+        this.next = null;
+    }
+
+    /**
+     * A task that claims morsels until there are none left and scans their
+     * pages.
+     */
+    private abstract class Worker extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        protected void compute() {
+            try {
+                int morsel;
+                while (!cancelled
+                        && (morsel = nextMorsel.getAndIncrement()) * MORSEL_PAGES < numPages) {
+                    int end = Math.min(numPages, (morsel + 1) * MORSEL_PAGES);
+                    for (int pageNo = morsel * MORSEL_PAGES; pageNo < end && !cancelled; pageNo++) {
+                        scanPage(pageNo);
+                    }
+                }
+                finish();
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                done();
+            }
+        }
+
+        // Helper method that passes the tuples of a page that pass the
+        // predicates to accept, keeping the page pinned meanwhile
+        private void scanPage(int pageNo) throws Exception {
+            HeapPageId pid = new HeapPageId(tableid, pageNo);
+            BufferPool bufferPool = Database.getBufferPool();
+            HeapPage page = (HeapPage) bufferPool.pinPage(tid, pid, Permissions.READ_ONLY);
+            try {
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (passes(t)) {
+                        accept(t);
+                    }
+                }
+            } finally {
+                bufferPool.unpinPage(tid, pid);
+            }
+        }
+
+        private boolean passes(Tuple t) {
+            for (Predicate p : predicates) {
+                if (!p.filter(t)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        abstract void accept(Tuple t) throws InterruptedException;
+
+        // Called after the last morsel when the worker did not fail
+        void finish() throws InterruptedException {
+        }
+
+        // Called when the worker stops, whether or not it failed
+        void done() {
+        }
+    }
+
+    /**
+     * A worker that hands its tuples to the consumer through the queue.
+     */
+    private class QueueWorker extends Worker {
+
+        private static final long serialVersionUID = 1L;
+
+        private List<Tuple> tuples = new ArrayList<Tuple>(CHUNK_TUPLES);
+
+        void accept(Tuple t) throws InterruptedException {
+            this.tuples.add(t);
+            if (this.tuples.size() == CHUNK_TUPLES) {
+                put(this.tuples);
+                this.tuples = new ArrayList<Tuple>(CHUNK_TUPLES);
+            }
+        }
+
+        void finish() throws InterruptedException {
+            if (!this.tuples.isEmpty()) {
+                put(this.tuples);
+            }
+        }
+
+        void done() {
+            try {
+                put(END);
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+
+        // Helper method that waits for room in the queue, letting the pool
+        // start another thread meanwhile so the workers of other scans in
+        // the same plan still run
+        private void put(final List<Tuple> tuples) throws InterruptedException {
+            final BlockingQueue<List<Tuple>> queue = ParallelSeqScan.this.queue;
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean released = false;
+
+                public boolean block() throws InterruptedException {
+                    this.released = cancelled
+                            || queue.offer(tuples, POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    return this.released;
+                }
+
+                public boolean isReleasable() {
+                    return this.released || cancelled || (this.released = queue.offer(tuples));
+                }
+            });
+        }
+    }
+
+    /**
+     * A worker that adds its tuples to its own partial state.
+     */
+    private class PartialWorker<P> extends Worker {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PartialFactory<P> factory;
+        private final P partial;
+
+        PartialWorker(PartialFactory<P> factory) {
+            this.factory = factory;
+            this.partial = factory.create();
+        }
+
+        void accept(Tuple t) {
+            this.factory.add(this.partial, t);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+/**
+ * Parallelizer rewrites a query plan to scan tables with several threads
+ * where it can. SeqScans over HeapFiles are replaced by
+ * {@link ParallelSeqScan}s, the Filters directly above them are pushed into
+ * the scans so the workers apply them, and Aggregates over such scans are
+ * replaced by {@link ParallelAggregate}s, which aggregate per worker.
+ * Equality joins become {@link ParallelHashJoin}s where the input they build
+ * on fits in the memory budget of the join. Other operators stay as they
+ * are, with their children rewritten.
+ */
+public class Parallelizer {
+
+    /**
+     * Returns a plan that produces the same tuples as plan, using parallel
+     * operators where possible. Operators of plan may be modified.
+     */
+    public static DbIterator parallelize(DbIterator plan) {
+        DbIterator parallelPlan = toParallel(plan);
+        if (parallelPlan != null) {
+            return parallelPlan;
+        }
+        if (plan instanceof Operator) {
+            Operator op = (Operator) plan;
+            DbIterator[] children = op.getChildren();
+            if (children != null && children.length > 0) {
+                DbIterator[] newChildren = new DbIterator[children.length];
+                for (int i = 0; i < children.length; i++) {
+                    newChildren[i] = parallelize(children[i]);
+                }
+                op.setChildren(newChildren);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the parallel version of plan, or null if the operator at the
+     * root of plan has none.
+     */
+    static DbIterator toParallel(DbIterator plan) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile)) {
+                return null;
+            }
+            return new ParallelSeqScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias());
+        }
+        if (plan instanceof Filter) {
+            Filter filter = (Filter) plan;
+            DbIterator child = toParallel(filter.getChildren()[0]);
+            if (!(child instanceof ParallelSeqScan)) {
+                return null;
+            }
+            ((ParallelSeqScan) child).addPredicate(filter.getPredicate());
+            return child;
+        }
+        if (plan instanceof Aggregate) {
+            Aggregate aggregate = (Aggregate) plan;
+            Aggregator.Op aop = aggregate.aggregateOp();
+            // budgeted aggregates stay serial where they can spill
+            if (aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG
+                    || aggregate.getMemoryBudget() > 0) {
+                return null;
+            }
+            DbIterator child = toParallel(aggregate.getChildren()[0]);
+            if (!(child instanceof ParallelSeqScan)) {
+                return null;
+            }
+            return new ParallelAggregate((ParallelSeqScan) child,
+                    aggregate.aggregateField(), aggregate.groupField(), aop);
+        }
+        if (plan instanceof Join) {
+            // Join keeps its hash table in memory anyway
+            Join join = (Join) plan;
+            if (join.getJoinPredicate().getOperator() != Predicate.Op.EQUALS) {
+                return null;
+            }
+            DbIterator[] children = join.getChildren();
+            return new ParallelHashJoin(join.getJoinPredicate(),
+                    parallelize(children[0]), parallelize(children[1]));
+        }
+        if (plan instanceof HashEquiJoin) {
+            HashEquiJoin join = (HashEquiJoin) plan;
+            DbIterator[] children = join.getChildren();
+            long size1 = HashEquiJoin.estimateBytes(children[0]);
+            long size2 = HashEquiJoin.estimateBytes(children[1]);
+            boolean buildOnChild1 = size1 >= 0 && (size2 < 0 || size1 <= size2);
+            long buildSize = buildOnChild1 ? size1 : size2;
+            // the parallel join cannot spill, so a build input of unknown
+            // size stays with the hybrid hash join
+            if (buildSize < 0 || (join.getMemoryBudget() > 0 && buildSize > join.getMemoryBudget())) {
+                return null;
+            }
+            ParallelHashJoin parallelJoin = new ParallelHashJoin(join.getJoinPredicate(),
+                    parallelize(children[0]), parallelize(children[1]));
+            parallelJoin.setBuildOnChild1(buildOnChild1);
+            return parallelJoin;
+        }
+        return null;
+    }
+}
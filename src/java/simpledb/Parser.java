@@ -11,6 +11,8 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    static boolean vectorized = false;
+    static boolean parallel = false;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -253,18 +255,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -315,6 +314,11 @@ public class Parser {
             } catch (InstantiationException e) {
                 e.printStackTrace();
             }
+            if (vectorized) {
+                query.setPhysicalPlan(Vectorizer.vectorize(physicalPlan));
+            } else if (parallel) {
+                query.setPhysicalPlan(Parallelizer.parallelize(physicalPlan));
+            }
         }
 
         return query;
@@ -511,7 +515,8 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a query on its own reads a snapshot without locking
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -595,7 +600,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-vectorized] [-parallel] [-aggmemory bytes] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -615,6 +620,20 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-vectorized")) {
+                    vectorized = true;
+                    System.out.println("Batch execution enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    parallel = true;
+                    System.out.println("Parallel scans enabled.");
+                } else if (argv[i].equals("-aggmemory")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected byte count after -aggmemory\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    Aggregate.setDefaultMemoryBudget(Long.parseLong(argv[i]));
+                    System.out.println("Aggregate memory budget set to " + argv[i] + " bytes.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -96,8 +96,7 @@ public class Predicate implements Serializable {
 	 * @return true if the comparison is true, false otherwise.
 	 */
 	public boolean filter(Tuple t) {
-		Field givenField = t.getField(this.field);
-		return givenField.compare(this.op, this.operand);
+		return t.compareField(this.field, this.op, this.operand);
 	}
 
 	/**
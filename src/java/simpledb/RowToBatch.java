@@ -0,0 +1,56 @@
+package simpledb;
+
+/**
+ * RowToBatch packs the tuples of a DbIterator into batches, so row mode
+ * operators can feed batch mode ones.
+ */
+public class RowToBatch implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbIterator child;
+    private final int batchSize;
+
+    public RowToBatch(DbIterator child) {
+        this(child, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    public RowToBatch(DbIterator child, int batchSize) {
+        this.child = child;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the row mode iterator this operator reads from
+     */
+    public DbIterator getChild() {
+        return this.child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        this.child.open();
+    }
+
+    public void close() {
+        this.child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child.rewind();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.child.hasNext()) {
+            return null;
+        }
+        TupleBatch batch = new TupleBatch(this.child.getTupleDesc(), this.batchSize);
+        while (!batch.isFull() && this.child.hasNext()) {
+            batch.addTuple(this.child.next());
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * SequentialReadAhead watches the pages a scan reads from one table and,
+ * once the scan has read a few consecutive pages, asks the buffer pool to
+ * prefetch the pages after the current one.
+ * <p>
+ * The read-ahead window starts small and adapts to the speed of the scan.
+ * It doubles, up to the buffer pool's read-ahead limit, every time the scan
+ * reaches a prefetched page before it was loaded, i.e. whenever the scan is
+ * faster than the prefetcher can stay ahead of it. It halves every time the
+ * scan reaches a prefetched page that is no longer cached, i.e. whenever the
+ * scan is so slow that prefetched pages are evicted before it uses them.
+ * The window is never larger than a quarter of the buffer pool, so
+ * prefetched pages do not evict each other before they are used.
+ * 
+ * @see BufferPool#setReadAheadPages
+ * @see BufferPool#prefetchPage
+ */
+public class SequentialReadAhead implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of consecutive pages a scan must read before read-ahead starts
+	 */
+	public static final int SEQUENTIAL_THRESHOLD = 2;
+	
+	/**
+	 * Size of the read-ahead window when read-ahead starts
+	 */
+	public static final int INITIAL_WINDOW = 2;
+
+	/**
+	 * The table being scanned
+	 */
+	private final int tableid;
+	
+	/**
+	 * The last page of the table
+	 */
+	private final int highestPageNumber;
+	
+	/**
+	 * The page the scan read last, -1 if it has not read any
+	 */
+	private int lastPageNumber;
+	
+	/**
+	 * Number of consecutive pages read so far
+	 */
+	private int sequentialRun;
+	
+	/**
+	 * Current number of pages to keep prefetched ahead of the scan
+	 */
+	private int window;
+	
+	/**
+	 * The last page read-ahead has been asked to load, -1 if none
+	 */
+	private int prefetchedUpTo;
+
+	public SequentialReadAhead(int tableid, int highestPageNumber) {
+		this.tableid = tableid;
+		this.highestPageNumber = highestPageNumber;
+		reset();
+	}
+
+	/**
+	 * Forgets the pages read so far, e.g. when the scan is rewound.
+	 */
+	public void reset() {
+		this.lastPageNumber = -1;
+		this.sequentialRun = 0;
+		this.window = INITIAL_WINDOW;
+		this.prefetchedUpTo = -1;
+	}
+
+	/**
+	 * Must be called before the scan fetches each page.
+	 * 
+	 * @param pageNumber the page the scan is about to read
+	 */
+	public void beforeRead(int pageNumber) {
+		BufferPool bufferPool = Database.getBufferPool();
+		int maxWindow = Math.min(bufferPool.getReadAheadPages(), bufferPool.getNumPages() / 4);
+		if (maxWindow <= 0) {
+			return;
+		}
+		
+		if (pageNumber == this.lastPageNumber + 1) {
+			this.sequentialRun++;
+		} else {
+			this.sequentialRun = 1;
+			this.window = INITIAL_WINDOW;
+			this.prefetchedUpTo = -1;
+		}
+		this.lastPageNumber = pageNumber;
+		if (this.sequentialRun < SEQUENTIAL_THRESHOLD) {
+			return;
+		}
+		
+		HeapPageId pid = new HeapPageId(this.tableid, pageNumber);
+		if (pageNumber <= this.prefetchedUpTo && !bufferPool.isCached(pid)) {
+			if (bufferPool.isPrefetchPending(pid)) {
+				// the scan caught up with the prefetcher
+				this.window = this.window * 2;
+			} else {
+				// the page was evicted before the scan got to it
+				this.window = Math.max(this.window / 2, 1);
+			}
+		}
+		this.window = Math.min(this.window, maxWindow);
+		
+		int first = Math.max(this.prefetchedUpTo + 1, pageNumber + 1);
+		int last = Math.min(pageNumber + this.window, this.highestPageNumber);
+		for (int i = first; i <= last; i++) {
+			bufferPool.prefetchPage(new HeapPageId(this.tableid, i));
+		}
+		if (last >= first) {
+			this.prefetchedUpTo = last;
+		}
+	}
+	
+	/**
+	 * @return the current number of pages to keep prefetched ahead of the scan
+	 */
+	int getWindow() {
+		return this.window;
+	}
+}
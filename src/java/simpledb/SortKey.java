@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * SortKey compares tuples on several fields, each ascending or descending.
+ * <p>
+ * To make most comparisons a single primitive compare, the leading sort
+ * fields of a tuple are normalized into a 64-bit prefix whose unsigned order
+ * is the sort order: an integer field takes 32 bits (sign bit flipped), and
+ * a string field takes its first characters, 16 bits each; descending fields
+ * have their bits inverted. Packing stops at the first string field or when
+ * the 64 bits are used. Tuples are compared by {@link Entry}, which carries
+ * the prefix computed once per tuple. Only when two prefixes are equal, and
+ * the prefix does not cover every sort field, are the fields themselves
+ * compared.
+ */
+public class SortKey implements Comparator<Tuple>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A tuple and its normalized prefix.
+     */
+    public static final class Entry {
+        public final long prefix;
+        public final Tuple tuple;
+
+        public Entry(long prefix, Tuple tuple) {
+            this.prefix = prefix;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * The sort fields, most significant first
+     */
+    private final int[] fields;
+
+    /**
+     * Whether each sort field is ascending
+     */
+    private final boolean[] asc;
+
+    /**
+     * Whether each sort field is an integer field
+     */
+    private final boolean[] isInt;
+
+    /**
+     * Whether equal prefixes mean equal sort fields
+     */
+    private final boolean prefixExact;
+
+    /**
+     * Creates a sort key.
+     *
+     * @param td
+     *            the schema of the tuples to compare
+     * @param fields
+     *            the sort fields, most significant first
+     * @param asc
+     *            whether each sort field is ascending
+     */
+    public SortKey(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length) {
+            throw new IllegalArgumentException("need one direction per sort field");
+        }
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+        this.isInt = new boolean[fields.length];
+        int intBits = 0;
+        boolean allInts = true;
+        for (int i = 0; i < fields.length; i++) {
+            this.isInt[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+            if (this.isInt[i]) {
+                intBits += 32;
+            } else {
+                allInts = false;
+            }
+        }
+        this.prefixExact = allInts && intBits <= 64;
+    }
+
+    /**
+     * @return an Entry holding the tuple and its normalized prefix
+     */
+    public Entry entry(Tuple t) {
+        return new Entry(prefix(t), t);
+    }
+
+    /**
+     * @return the normalized prefix of the sort fields of the tuple
+     */
+    public long prefix(Tuple t) {
+        long prefix = 0;
+        int bits = 0;
+        for (int i = 0; i < this.fields.length && bits < 64; i++) {
+            if (this.isInt[i]) {
+                if (bits + 32 > 64) {
+                    break;
+                }
+                long u = (t.getInt(this.fields[i]) ^ 0x80000000) & 0xffffffffL;
+                if (!this.asc[i]) {
+                    u = ~u & 0xffffffffL;
+                }
+                prefix |= u << (32 - bits);
+                bits += 32;
+            } else {
+                String s = ((StringField) t.getField(this.fields[i])).getValue();
+                for (int c = 0; bits < 64; c++, bits += 16) {
+                    long u = c < s.length() ? s.charAt(c) : 0;
+                    if (!this.asc[i]) {
+                        u = ~u & 0xffffL;
+                    }
+                    prefix |= u << (48 - bits);
+                }
+                break;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Compares two entries, using their prefixes where they decide.
+     */
+    public int compare(Entry a, Entry b) {
+        int c = Long.compareUnsigned(a.prefix, b.prefix);
+        if (c != 0 || this.prefixExact) {
+            return c;
+        }
+        return compare(a.tuple, b.tuple);
+    }
+
+    /**
+     * Compares two tuples on every sort field.
+     */
+    public int compare(Tuple a, Tuple b) {
+        for (int i = 0; i < this.fields.length; i++) {
+            int c;
+            if (this.isInt[i]) {
+                c = Integer.compare(a.getInt(this.fields[i]), b.getInt(this.fields[i]));
+            } else {
+                c = ((StringField) a.getField(this.fields[i])).getValue()
+                        .compareTo(((StringField) b.getField(this.fields[i])).getValue());
+            }
+            if (c != 0) {
+                return this.asc[i] ? c : -c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return a Comparator of entries in this sort order
+     */
+    public Comparator<Entry> entryComparator() {
+        return new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return SortKey.this.compare(a, b);
+            }
+        };
+    }
+}
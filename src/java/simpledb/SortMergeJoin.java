@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs on equality of a field of each by merging
+ * them in join field order. An input that is already sorted on its join
+ * field in ascending order (see {@link #isSortedOn}) is read as it is;
+ * otherwise it is sorted by an {@link OrderBy} first.
+ * <p>
+ * child2 tuples with the same join field value are buffered as a run, and
+ * every child1 tuple with that value is paired with each tuple of the run,
+ * so only one run of duplicates is held in memory at a time. The output is
+ * sorted on the join field.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+
+    /**
+     * The inputs in join field order: the children, or OrderBys over them
+     */
+    private transient DbIterator sorted1, sorted2;
+
+    /**
+     * Schema of the output tuples
+     */
+    private transient TupleDesc td;
+
+    /**
+     * The child1 tuple being paired with the run
+     */
+    private transient Tuple left;
+
+    /**
+     * The next child2 tuple after the run, or null if child2 is exhausted
+     */
+    private transient Tuple right;
+
+    /**
+     * child2 tuples whose join field equals runKey, and the index of the
+     * next one to pair with left
+     */
+    private transient List<Tuple> run;
+    private transient Field runKey;
+    private transient int runIndex;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("sort-merge join only supports EQUALS");
+        }
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if the tuples of the iterator are known to come out in
+     *         ascending order of the specified field
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy orderBy = (OrderBy) it;
+            return orderBy.isASC() && orderBy.getOrderByField() == field;
+        }
+        if (it instanceof Filter) {
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        }
+        if (it instanceof SortMergeJoin) {
+            SortMergeJoin join = (SortMergeJoin) it;
+            int width1 = join.child1.getTupleDesc().numFields();
+            return field == join.p.getField1() || field == width1 + join.p.getField2();
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.td = getTupleDesc();
+        this.sorted1 = isSortedOn(this.child1, this.p.getField1())
+                ? this.child1 : new OrderBy(this.p.getField1(), true, this.child1);
+        this.sorted2 = isSortedOn(this.child2, this.p.getField2())
+                ? this.child2 : new OrderBy(this.p.getField2(), true, this.child2);
+        this.sorted1.open();
+        this.sorted2.open();
+        this.run = new ArrayList<Tuple>();
+        startMerge();
+        super.open();
+    }
+
+    // Helper method that resets the merge to the start of both inputs
+    private void startMerge() throws DbException, TransactionAbortedException {
+        this.left = null;
+        this.right = this.sorted2.hasNext() ? this.sorted2.next() : null;
+        this.run.clear();
+        this.runKey = null;
+        this.runIndex = 0;
+    }
+
+    public void close() {
+        super.close();
+        if (this.sorted1 != null) {
+            this.sorted1.close();
+            this.sorted2.close();
+        }
+        this.sorted1 = null;
+        this.sorted2 = null;
+        this.left = null;
+        this.right = null;
+        this.run = null;
+        this.runKey = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.sorted1.rewind();
+        this.sorted2.rewind();
+        startMerge();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples come out in order of the join field, and are the
+     * concatenation of the joining tuples of child1 and child2.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (this.runIndex < this.run.size()) {
+                return getMergedTuples(this.left, this.run.get(this.runIndex++));
+            }
+
+            // the current child1 tuple has been paired with the whole run
+            if (!this.sorted1.hasNext()) {
+                return null;
+            }
+            this.left = this.sorted1.next();
+            Field key = this.left.getField(this.p.getField1());
+            this.runIndex = 0;
+            if (this.runKey != null && key.compare(Predicate.Op.EQUALS, this.runKey)) {
+                continue;
+            }
+
+            // a new key: collect the child2 tuples that match it
+            this.run.clear();
+            this.runKey = null;
+            while (this.right != null
+                    && this.right.getField(this.p.getField2()).compare(Predicate.Op.LESS_THAN, key)) {
+                this.right = this.sorted2.hasNext() ? this.sorted2.next() : null;
+            }
+            if (this.right == null) {
+                return null;
+            }
+            if (this.right.getField(this.p.getField2()).compare(Predicate.Op.EQUALS, key)) {
+                this.runKey = key;
+                while (this.right != null
+                        && this.right.getField(this.p.getField2()).compare(Predicate.Op.EQUALS, key)) {
+                    this.run.add(this.right);
+                    this.right = this.sorted2.hasNext() ? this.sorted2.next() : null;
+                }
+            }
+        }
+    }
+
+    // Helper method that concatenates a child1 and a child2 tuple
+    private Tuple getMergedTuples(Tuple first, Tuple second) {
+        Tuple result = new Tuple(this.td);
+        int width1 = first.getTupleDesc().numFields();
+        for (int i = 0; i < width1; i++) {
+            result.setField(i, first.getField(i));
+        }
+        for (int i = 0; i < second.getTupleDesc().numFields(); i++) {
+            result.setField(width1 + i, second.getField(i));
+        }
+        return result;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * SpillFile is a temporary file of tuples that operators write when their
+ * working data does not fit in memory, e.g. hash partitions or sorted runs.
+ * Tuples are appended back to back in their serialized form and read back
+ * in the same order with {@link #iterator()}. Only the fields are written, so
+ * tuples read back have no {@link RecordId}.
+ * <p>
+ * Spill files are private to the operator that creates them, so they do not
+ * go through the Catalog, the BufferPool or the log: they are never shared
+ * or recovered, and with NO STEAL the dirty pages of a temporary HeapFile
+ * could not be evicted, which is the memory the operator is trying to free.
+ * The file is deleted by {@link #delete()} or, failing that, when the JVM
+ * exits.
+ */
+public class SpillFile {
+
+    /**
+     * The schema of the tuples in the file
+     */
+    private final TupleDesc td;
+
+    /**
+     * The temporary file on disk
+     */
+    private final File file;
+
+    /**
+     * Stream that tuples are appended to, or null once the file is deleted
+     */
+    private DataOutputStream out;
+
+    /**
+     * Number of tuples written
+     */
+    private long numTuples;
+
+    /**
+     * Creates an empty spill file.
+     *
+     * @param td
+     *            the schema of the tuples that will be written
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+        this.numTuples = 0;
+    }
+
+    /**
+     * Returns the partition a key belongs to when tuples are hash
+     * partitioned into numPartitions files. Operators that partition their
+     * partitions again pass a different seed each time, so that keys that
+     * shared a partition are spread out.
+     */
+    public static int partitionOf(Field key, int seed, int numPartitions) {
+        int h = (key.hashCode() ^ (seed * 0x9E3779B9)) * 0x85EBCA6B;
+        h ^= h >>> 15;
+        return (h & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    /**
+     * @return the schema of the tuples in the file
+     */
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    /**
+     * Appends a tuple to the file.
+     */
+    public void add(Tuple t) throws IOException {
+        if (this.out == null) {
+            throw new IllegalStateException("spill file was deleted");
+        }
+        t.serialize(this.out);
+        this.numTuples++;
+    }
+
+    /**
+     * @return the number of tuples written
+     */
+    public long numTuples() {
+        return this.numTuples;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long numBytes() {
+        return this.numTuples * this.td.getSize();
+    }
+
+    /**
+     * Returns an iterator over the tuples written so far, in the order they
+     * were added. Tuples may still be added afterwards; an iterator that is
+     * opened or rewound later sees them too.
+     */
+    public DbIterator iterator() {
+        return new SpillFileIterator();
+    }
+
+    /**
+     * Closes and deletes the file. Open iterators must be closed first;
+     * opening or rewinding an iterator afterwards throws a DbException.
+     */
+    public void delete() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.out = null;
+        }
+        this.file.delete();
+    }
+
+    /**
+     * Reads the tuples of the file back in order.
+     */
+    private class SpillFileIterator extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private transient long remaining;
+
+        public TupleDesc getTupleDesc() {
+            return SpillFile.this.td;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            openStream();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            closeStream();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            closeStream();
+            openStream();
+        }
+
+        // Helper method that starts reading at the beginning of the file
+        private void openStream() throws DbException {
+            if (SpillFile.this.out == null) {
+                throw new DbException("spill file was deleted");
+            }
+            try {
+                SpillFile.this.out.flush();
+                this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(SpillFile.this.file)));
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            this.remaining = SpillFile.this.numTuples;
+        }
+
+        // Helper method that closes the input stream, if any
+        private void closeStream() {
+            if (this.in != null) {
+                try {
+                    this.in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                this.in = null;
+            }
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (this.remaining == 0) {
+                return null;
+            }
+            Tuple t = new Tuple(SpillFile.this.td);
+            try {
+                for (int i = 0; i < SpillFile.this.td.numFields(); i++) {
+                    t.setField(i, SpillFile.this.td.getFieldType(i).parse(this.in));
+                }
+            } catch (ParseException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            this.remaining--;
+            return t;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[0];
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+        }
+    }
+}
@@ -82,6 +82,17 @@ public class StringAggregator implements Aggregator {
     	this.gbColName = tup.getTupleDesc().getFieldName(this.gbfield);
     }
 
+    public int numGroups() {
+    	if (this.gbfield == NO_GROUPING) {
+    		return this.aggregatorNoGroups == null ? 0 : 1;
+    	}
+    	return this.aggregatorGroups.size();
+    }
+
+    public boolean hasGroup(Field group) {
+    	return this.gbfield != NO_GROUPING && this.aggregatorGroups.containsKey(group);
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
@@ -119,7 +119,7 @@ public class TableStats {
         }
         // scan the data once to determine the min and max valus
         try {
-            Transaction t = new Transaction();
+            Transaction t = new Transaction(true);
             t.start();
             SeqScan s = new SeqScan(t.getId(), tableid, "t");
             s.open();
@@ -152,7 +152,7 @@ public class TableStats {
         basePages = ((HeapFile) f).numPages();
         int count = 0;
         try {
-            Transaction t = new Transaction();
+            Transaction t = new Transaction(true);
             t.start();
             SeqScan s = new SeqScan(t.getId(), tableid, "t");
             s.open();
@@ -1,14 +1,21 @@
 package simpledb;
 
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Tuples read from a HeapPage are views over the page's bytes: their fields
+ * are decoded the first time they are asked for, so operators that look at
+ * only a few columns, or reject most rows, do not pay to decode the rest.
  */
 public class Tuple implements Serializable {
 
@@ -17,6 +24,27 @@ public class Tuple implements Serializable {
     private TupleDesc schema;
     private RecordId recordId;
     private List<Field> fields;
+    
+    /**
+     * The bytes this tuple's undecoded fields are read from, or null if all
+     * fields were set directly
+     */
+    private transient ByteBuffer source;
+    
+    /**
+     * Offset of this tuple within source
+     */
+    private transient int sourceOffset;
+    
+    /**
+     * The layout of the tuple within source
+     */
+    private transient TupleDesc sourceSchema;
+
+    /**
+     * Whether a field was set with setField since the tuple was created
+     */
+    private transient boolean fieldsSet;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -34,6 +62,25 @@ public class Tuple implements Serializable {
     	this.recordId = null;
     }
 
+    /**
+     * Create a tuple whose fields are decoded on demand from the specified
+     * bytes. The bytes must not change while the tuple is in use.
+     * 
+     * @param td
+     *            the schema of this tuple, which is also its layout in source
+     * @param source
+     *            the buffer holding the tuple
+     * @param offset
+     *            the absolute position of the tuple in source
+     */
+    Tuple(TupleDesc td, ByteBuffer source, int offset) {
+    	this(td);
+    	this.source = source;
+    	this.sourceOffset = offset;
+    	this.sourceSchema = td;
+    	this.fields = new ArrayList<Field>(Collections.<Field>nCopies(td.numFields(), null));
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -72,6 +119,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
+    	this.fieldsSet = true;
     	if (i < this.fields.size()) {
     		this.fields.set(i, f);
     	} else {
@@ -87,7 +135,107 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return this.fields.get(i);
+        Field f = this.fields.get(i);
+        if (f == null && this.source != null) {
+        	f = decodeField(i);
+        	this.fields.set(i, f);
+        }
+        return f;
+    }
+
+    /**
+     * Compares the ith field of this tuple to operand, like
+     * getField(i).compare(op, operand). Integer fields that have not been
+     * decoded are compared straight from the source bytes without creating
+     * a Field.
+     */
+    public boolean compareField(int i, Predicate.Op op, Field operand) {
+    	if (this.source != null && this.fields.get(i) == null
+    			&& this.sourceSchema.getFieldType(i) == Type.INT_TYPE
+    			&& operand instanceof IntField) {
+    		int value = this.source.getInt(fieldPosition(i));
+    		return IntField.compare(value, op, ((IntField) operand).getValue());
+    	}
+    	return getField(i).compare(op, operand);
+    }
+
+    /**
+     * Returns the value of the ith field, which must be an integer field.
+     * Fields that have not been decoded are read straight from the source
+     * bytes without creating a Field.
+     */
+    public int getInt(int i) {
+    	if (this.source != null && this.fields.get(i) == null) {
+    		return this.source.getInt(fieldPosition(i));
+    	}
+    	return ((IntField) getField(i)).getValue();
+    }
+
+    /**
+     * @return true if this tuple is read from the specified position of
+     *         buffer and none of its fields was set since, so that its bytes
+     *         there are still its contents
+     */
+    boolean isUnchangedView(ByteBuffer buffer, int offset) {
+    	return this.source == buffer && this.sourceOffset == offset && !this.fieldsSet;
+    }
+
+    // Helper method that returns the absolute position of field i in source
+    private int fieldPosition(int i) {
+    	int position = this.sourceOffset;
+    	for (int j = 0; j < i; j++) {
+    		position += this.sourceSchema.getFieldType(j).getLen();
+    	}
+    	return position;
+    }
+
+    // Helper method that decodes field i from source
+    private Field decodeField(int i) {
+    	Type type = this.sourceSchema.getFieldType(i);
+    	int position = fieldPosition(i);
+    	if (type == Type.INT_TYPE) {
+    		return new IntField(this.source.getInt(position));
+    	}
+    	ByteBuffer buf = this.source.duplicate();
+    	buf.position(position);
+    	try {
+    		return type.parse(buf);
+    	} catch (java.text.ParseException e) {
+    		throw new NoSuchElementException("parsing error!");
+    	}
+    }
+
+    // Helper method that decodes every field that has not been decoded yet
+    private void decodeAll() {
+    	if (this.source != null) {
+    		for (int i = 0; i < this.fields.size(); i++) {
+    			getField(i);
+    		}
+    	}
+    }
+
+    /**
+     * Writes the fields of this tuple in the on-disk format. Fields that were
+     * never decoded are copied from the source bytes.
+     */
+    void serialize(DataOutputStream dos) throws IOException {
+    	for (int i = 0; i < this.fields.size(); i++) {
+    		Field f = this.fields.get(i);
+    		if (f != null || this.source == null) {
+    			f.serialize(dos);
+    		} else {
+    			int position = fieldPosition(i);
+    			for (int j = 0; j < this.sourceSchema.getFieldType(i).getLen(); j++) {
+    				dos.writeByte(this.source.get(position + j));
+    			}
+    		}
+    	}
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+    	// the source buffer is not serializable
+    	decodeAll();
+    	out.defaultWriteObject();
     }
 
     /**
@@ -100,6 +248,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
+        decodeAll();
         String result = "";
         for (int i = 0; i < this.fields.size() - 1; i++) {
         	result += this.fields.get(i).toString() + "\t";
@@ -114,6 +263,7 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields() {
         // some code goes here
+        decodeAll();
         return fields.iterator();
     }
     
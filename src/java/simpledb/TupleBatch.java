@@ -0,0 +1,271 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to a fixed number of rows in column order: one int[]
+ * per integer column and one String[] per string column. Batch operators
+ * (see {@link BatchIterator}) pass TupleBatches between each other instead
+ * of single Tuples.
+ * <p>
+ * Rows are addressed two ways. The physical rows 0 .. getNumRows()-1 are the
+ * positions in the column arrays. A selection vector lists the physical rows
+ * that are still part of the batch, e.g. those that passed a filter; if there
+ * is no selection vector every physical row is selected. Operators iterate
+ * over the selected rows with {@link #size()} and {@link #row(int)}.
+ * <p>
+ * A batch handed out by nextBatch belongs to the receiver: the producer does
+ * not reuse it. Batches that share column arrays, e.g. projections, must
+ * not be written to.
+ */
+public class TupleBatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of rows in a batch
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The schema of the rows in this batch
+	 */
+	private final TupleDesc td;
+
+	/**
+	 * The values of each integer column, or null for other columns
+	 */
+	private final int[][] intColumns;
+
+	/**
+	 * The values of each string column, or null for other columns
+	 */
+	private final String[][] stringColumns;
+
+	/**
+	 * Maximum number of physical rows
+	 */
+	private final int capacity;
+
+	/**
+	 * Number of physical rows
+	 */
+	private int numRows;
+
+	/**
+	 * Physical rows that are selected, or null if all of them are
+	 */
+	private int[] selection;
+
+	/**
+	 * Number of valid entries in selection
+	 */
+	private int numSelected;
+
+	/**
+	 * Creates an empty batch of {@link #DEFAULT_CAPACITY} rows.
+	 */
+	public TupleBatch(TupleDesc td) {
+		this(td, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty batch.
+	 *
+	 * @param td
+	 *            the schema of the rows
+	 * @param capacity
+	 *            the maximum number of rows
+	 */
+	public TupleBatch(TupleDesc td, int capacity) {
+		this.td = td;
+		this.capacity = capacity;
+		this.intColumns = new int[td.numFields()][];
+		this.stringColumns = new String[td.numFields()][];
+		for (int i = 0; i < td.numFields(); i++) {
+			if (td.getFieldType(i) == Type.INT_TYPE) {
+				this.intColumns[i] = new int[capacity];
+			} else {
+				this.stringColumns[i] = new String[capacity];
+			}
+		}
+		this.numRows = 0;
+		this.selection = null;
+		this.numSelected = 0;
+	}
+
+	// Constructor for batches that share the columns of another batch
+	private TupleBatch(TupleDesc td, int capacity, int[][] intColumns, String[][] stringColumns,
+			int numRows, int[] selection, int numSelected) {
+		this.td = td;
+		this.capacity = capacity;
+		this.intColumns = intColumns;
+		this.stringColumns = stringColumns;
+		this.numRows = numRows;
+		this.selection = selection;
+		this.numSelected = numSelected;
+	}
+
+	/**
+	 * @return the schema of the rows in this batch
+	 */
+	public TupleDesc getTupleDesc() {
+		return this.td;
+	}
+
+	/**
+	 * @return the maximum number of physical rows
+	 */
+	public int capacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return the number of physical rows
+	 */
+	public int getNumRows() {
+		return this.numRows;
+	}
+
+	/**
+	 * @return true if no more rows can be added
+	 */
+	public boolean isFull() {
+		return this.numRows == this.capacity;
+	}
+
+	/**
+	 * @return the number of selected rows
+	 */
+	public int size() {
+		return this.selection == null ? this.numRows : this.numSelected;
+	}
+
+	/**
+	 * @return the physical row of the ith selected row
+	 */
+	public int row(int i) {
+		return this.selection == null ? i : this.selection[i];
+	}
+
+	/**
+	 * Replaces the selection vector. Rows that are not listed are no longer
+	 * part of the batch.
+	 *
+	 * @param selection
+	 *            the selected physical rows, in increasing order
+	 * @param numSelected
+	 *            the number of valid entries in selection
+	 */
+	public void setSelection(int[] selection, int numSelected) {
+		this.selection = selection;
+		this.numSelected = numSelected;
+	}
+
+	/**
+	 * @return the values of integer column col, indexed by physical row
+	 */
+	public int[] getIntColumn(int col) {
+		return this.intColumns[col];
+	}
+
+	/**
+	 * @return the values of string column col, indexed by physical row
+	 */
+	public String[] getStringColumn(int col) {
+		return this.stringColumns[col];
+	}
+
+	/**
+	 * Returns the value of a column in a physical row as a Field.
+	 */
+	public Field getField(int col, int row) {
+		if (this.intColumns[col] != null) {
+			return new IntField(this.intColumns[col][row]);
+		}
+		return new StringField(this.stringColumns[col][row], Type.STRING_LEN);
+	}
+
+	/**
+	 * Returns the value of a column in a physical row as a key for hashing:
+	 * an Integer or a String.
+	 */
+	public Object getKey(int col, int row) {
+		if (this.intColumns[col] != null) {
+			return this.intColumns[col][row];
+		}
+		return this.stringColumns[col][row];
+	}
+
+	/**
+	 * Adds an empty physical row, which the caller fills in through the
+	 * column arrays. Only allowed on batches without a selection vector.
+	 *
+	 * @return the physical row that was added
+	 */
+	public int addRow() {
+		if (this.selection != null) {
+			throw new IllegalStateException("cannot add rows to a batch with a selection");
+		}
+		return this.numRows++;
+	}
+
+	/**
+	 * Adds a row holding the fields of t.
+	 */
+	public void addTuple(Tuple t) {
+		int row = addRow();
+		for (int i = 0; i < this.td.numFields(); i++) {
+			if (this.intColumns[i] != null) {
+				this.intColumns[i][row] = ((IntField) t.getField(i)).getValue();
+			} else {
+				this.stringColumns[i][row] = ((StringField) t.getField(i)).getValue();
+			}
+		}
+	}
+
+	/**
+	 * Copies columns of a row of another batch into this one, starting at
+	 * column toCol of a physical row of this batch.
+	 */
+	public void copyColumns(TupleBatch from, int fromRow, int toRow, int toCol) {
+		for (int i = 0; i < from.td.numFields(); i++) {
+			if (from.intColumns[i] != null) {
+				this.intColumns[toCol + i][toRow] = from.intColumns[i][fromRow];
+			} else {
+				this.stringColumns[toCol + i][toRow] = from.stringColumns[i][fromRow];
+			}
+		}
+	}
+
+	/**
+	 * Returns the ith selected row as a Tuple.
+	 */
+	public Tuple getTuple(int i) {
+		int row = row(i);
+		Tuple t = new Tuple(this.td);
+		for (int col = 0; col < this.td.numFields(); col++) {
+			t.setField(col, getField(col, row));
+		}
+		return t;
+	}
+
+	/**
+	 * Returns a batch with only the specified columns of this one. The
+	 * batches share their column arrays and selection vector.
+	 *
+	 * @param columns
+	 *            the columns of this batch to keep, in output order
+	 * @param outTd
+	 *            the schema of the returned batch
+	 */
+	public TupleBatch project(int[] columns, TupleDesc outTd) {
+		int[][] ints = new int[columns.length][];
+		String[][] strings = new String[columns.length][];
+		for (int i = 0; i < columns.length; i++) {
+			ints[i] = this.intColumns[columns[i]];
+			strings[i] = this.stringColumns[columns[i]];
+		}
+		return new TupleBatch(outTd, this.capacity, ints, strings, this.numRows, this.selection, this.numSelected);
+	}
+}
@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 2Q eviction. Pages touched for the first time enter a FIFO queue (A1in).
+ * Pages evicted from A1in are remembered, without their data, in a ghost
+ * queue (A1out). A page that is accessed again while its id is in A1out is
+ * promoted to an LRU queue (Am) of hot pages. Victims come from A1in while it
+ * holds more than a quarter of the cached pages, and from Am otherwise, so
+ * pages read once by a scan never displace pages that are reused.
+ * <p>
+ * The queues are ordered by every access, so they can only be updated under
+ * the policy's lock. Accesses are instead appended to a lock-free log, which
+ * is applied to the queues in order before each removal and eviction, and
+ * by an accessing thread that finds the log long and the lock free. Hits on
+ * different pages therefore never wait for each other or for an eviction.
+ */
+public class TwoQEvictionPolicy implements EvictionPolicy {
+
+	/**
+	 * Number of logged accesses at which an accessing thread tries to apply
+	 * the log
+	 */
+	private static final int DRAIN_THRESHOLD = 1024;
+
+	/**
+	 * First-access pages, oldest first
+	 */
+	private LinkedHashSet<PageId> a1in;
+	
+	/**
+	 * Ids of pages recently evicted from a1in, oldest first
+	 */
+	private LinkedHashSet<PageId> a1out;
+	
+	/**
+	 * Hot pages, least recently used first
+	 */
+	private LinkedHashSet<PageId> am;
+
+	/**
+	 * Accesses not applied to the queues yet, oldest first
+	 */
+	private final ConcurrentLinkedQueue<PageId> accessLog;
+
+	/**
+	 * Number of entries in accessLog
+	 */
+	private final AtomicInteger loggedAccesses;
+
+	/**
+	 * Held while the queues are read or updated
+	 */
+	private final ReentrantLock lock;
+
+	public TwoQEvictionPolicy() {
+		this.a1in = new LinkedHashSet<PageId>();
+		this.a1out = new LinkedHashSet<PageId>();
+		this.am = new LinkedHashSet<PageId>();
+		this.accessLog = new ConcurrentLinkedQueue<PageId>();
+		this.loggedAccesses = new AtomicInteger(0);
+		this.lock = new ReentrantLock();
+	}
+
+	public void recordAccess(PageId pid) {
+		this.accessLog.add(pid);
+		if (this.loggedAccesses.incrementAndGet() >= DRAIN_THRESHOLD && this.lock.tryLock()) {
+			try {
+				drainAccesses();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	// Helper method that applies the logged accesses to the queues; the
+	// caller must hold the lock
+	private void drainAccesses() {
+		PageId pid;
+		while ((pid = this.accessLog.poll()) != null) {
+			this.loggedAccesses.decrementAndGet();
+			applyAccess(pid);
+		}
+	}
+
+	// Helper method that moves an accessed page between the queues
+	private void applyAccess(PageId pid) {
+		if (this.am.remove(pid)) {
+			this.am.add(pid);
+		} else if (this.a1in.contains(pid)) {
+			// correlated references while in A1in do not make a page hot
+			return;
+		} else if (this.a1out.remove(pid)) {
+			this.am.add(pid);
+		} else {
+			this.a1in.add(pid);
+		}
+	}
+
+	public void recordRemoval(PageId pid) {
+		this.lock.lock();
+		try {
+			drainAccesses();
+			removePage(pid);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Helper method that forgets a removed page, remembering it as a ghost
+	// if it was only accessed once
+	private void removePage(PageId pid) {
+		if (this.a1in.remove(pid)) {
+			this.a1out.add(pid);
+			int maxGhosts = Math.max(1, (this.a1in.size() + this.am.size()) / 2);
+			Iterator<PageId> it = this.a1out.iterator();
+			while (this.a1out.size() > maxGhosts && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		} else {
+			this.am.remove(pid);
+		}
+	}
+
+	public PageId chooseVictim(Evictable evictable) {
+		this.lock.lock();
+		try {
+			drainAccesses();
+			return pickVictim(evictable);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Helper method that picks a victim from the queues
+	private PageId pickVictim(Evictable evictable) {
+		int maxA1in = Math.max(1, (this.a1in.size() + this.am.size()) / 4);
+		PageId victim = null;
+		if (this.a1in.size() > maxA1in) {
+			victim = firstEvictable(this.a1in, evictable);
+		}
+		if (victim == null) {
+			victim = firstEvictable(this.am, evictable);
+		}
+		if (victim == null) {
+			victim = firstEvictable(this.a1in, evictable);
+		}
+		return victim;
+	}
+
+	private PageId firstEvictable(Set<PageId> queue, Evictable evictable) {
+		for (PageId pid : queue) {
+			if (evictable.canEvict(pid)) {
+				return pid;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+/**
+ * Vectorizer rewrites a row mode query plan to run in batch mode where it
+ * can. SeqScans over HeapFiles, and the Filters, Projects, Aggregates and
+ * equality joins above them, are replaced by their batch mode versions and
+ * connected back to the rest of the plan with a {@link BatchToRow}. Other
+ * operators stay as they are, with their children rewritten.
+ * <p>
+ * An equality join is run in batch mode if either of its inputs can be; the
+ * other input is fed to it through a {@link RowToBatch}.
+ */
+public class Vectorizer {
+
+    /**
+     * Returns a plan that produces the same tuples as plan, using batch mode
+     * operators where possible. Operators of plan may be modified.
+     */
+    public static DbIterator vectorize(DbIterator plan) {
+        BatchIterator batchPlan = toBatch(plan);
+        if (batchPlan != null) {
+            return new BatchToRow(batchPlan);
+        }
+        if (plan instanceof Operator) {
+            Operator op = (Operator) plan;
+            DbIterator[] children = op.getChildren();
+            if (children != null && children.length > 0) {
+                DbIterator[] newChildren = new DbIterator[children.length];
+                for (int i = 0; i < children.length; i++) {
+                    newChildren[i] = vectorize(children[i]);
+                }
+                op.setChildren(newChildren);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the batch mode version of plan, or null if the operator at the
+     * root of plan has none.
+     */
+    static BatchIterator toBatch(DbIterator plan) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile)) {
+                return null;
+            }
+            return new BatchSeqScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias());
+        }
+        if (plan instanceof BatchToRow) {
+            return ((BatchToRow) plan).getBatchIterator();
+        }
+        if (plan instanceof Filter) {
+            Filter filter = (Filter) plan;
+            BatchIterator child = toBatch(filter.getChildren()[0]);
+            return child == null ? null : new BatchFilter(filter.getPredicate(), child);
+        }
+        if (plan instanceof Project) {
+            Project project = (Project) plan;
+            BatchIterator child = toBatch(project.getChildren()[0]);
+            return child == null ? null : new BatchProject(project.getFieldList(), child);
+        }
+        if (plan instanceof Aggregate) {
+            Aggregate aggregate = (Aggregate) plan;
+            DbIterator rowChild = aggregate.getChildren()[0];
+            Aggregator.Op aop = aggregate.aggregateOp();
+            // BatchAggregate keeps every group in memory, so budgeted
+            // aggregates stay in row mode where they can spill
+            if (aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG
+                    || aggregate.getMemoryBudget() > 0
+                    || rowChild.getTupleDesc().getFieldType(aggregate.aggregateField()) != Type.INT_TYPE) {
+                return null;
+            }
+            BatchIterator child = toBatch(rowChild);
+            return child == null ? null : new BatchAggregate(child,
+                    aggregate.aggregateField(), aggregate.groupField(), aop);
+        }
+        if (plan instanceof Join || plan instanceof HashEquiJoin) {
+            JoinPredicate p = plan instanceof Join
+                    ? ((Join) plan).getJoinPredicate() : ((HashEquiJoin) plan).getJoinPredicate();
+            if (p.getOperator() != Predicate.Op.EQUALS) {
+                return null;
+            }
+            DbIterator[] children = ((Operator) plan).getChildren();
+            BatchIterator child1 = toBatch(children[0]);
+            BatchIterator child2 = toBatch(children[1]);
+            if (child1 == null && child2 == null) {
+                return null;
+            }
+            if (child1 == null) {
+                child1 = new RowToBatch(vectorize(children[0]));
+            }
+            if (child2 == null) {
+                child2 = new RowToBatch(vectorize(children[1]));
+            }
+            return new BatchHashEquiJoin(p, child1, child2);
+        }
+        return null;
+    }
+}
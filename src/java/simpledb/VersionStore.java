@@ -0,0 +1,296 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * VersionStore keeps the committed versions of pages that read-only
+ * transactions may still need, so they can read a snapshot of the database
+ * as of their start without taking locks.
+ * <p>
+ * Every commit that changes pages gets a commit timestamp. When it installs
+ * the new committed image of a page, the image it replaces is kept with that
+ * timestamp, as it is what every snapshot taken before the commit reads. A
+ * snapshot taken at timestamp s therefore reads, for each page, the image
+ * replaced by the first commit after s, or the current committed image if
+ * no commit since s changed the page. Versions are only kept while a
+ * snapshot older than them is running.
+ * <p>
+ * Pages appended straight to disk, e.g. by a {@link BulkLoader}, have no
+ * before image in the pool. Their writer registers them before writing
+ * them, so snapshots read them as empty until it commits; when it does,
+ * they are kept as empty versions for the snapshots that are still running.
+ * <p>
+ * Commits install their pages while holding the commit lock, and snapshots
+ * are taken under it, so a snapshot sees either all or none of a commit.
+ *
+ * @see BufferPool#beginSnapshot
+ */
+public class VersionStore {
+
+	/**
+	 * A committed image of a page that was replaced by a later commit
+	 */
+	private static class Version {
+		/**
+		 * Timestamp of the commit that replaced the image
+		 */
+		private final long replacedAt;
+		private final Page image;
+
+		private Version(long replacedAt, Page image) {
+			this.replacedAt = replacedAt;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Replaced images of each page, oldest first
+	 */
+	private final ConcurrentHashMap<PageId, LinkedList<Version>> versions;
+
+	/**
+	 * Pages appended by transactions that have not completed yet, and the
+	 * transaction that appended each
+	 */
+	private final ConcurrentHashMap<PageId, TransactionId> appends;
+
+	/**
+	 * Snapshot timestamp of each running read-only transaction
+	 */
+	private final ConcurrentHashMap<TransactionId, Long> snapshots;
+
+	/**
+	 * Timestamp of the last commit whose pages are all installed
+	 */
+	private volatile long lastCommit;
+
+	/**
+	 * Held by a commit while it installs its pages, and while snapshots are
+	 * taken and versions pruned
+	 */
+	private final ReentrantLock commitLock;
+
+	/**
+	 * Creates a store with no versions and no snapshots.
+	 */
+	public VersionStore() {
+		this.versions = new ConcurrentHashMap<PageId, LinkedList<Version>>();
+		this.snapshots = new ConcurrentHashMap<TransactionId, Long>();
+		this.appends = new ConcurrentHashMap<PageId, TransactionId>();
+		this.lastCommit = 0;
+		this.commitLock = new ReentrantLock();
+	}
+
+	/**
+	 * Starts a snapshot for a read-only transaction. Waits for a commit that
+	 * is installing its pages to finish.
+	 *
+	 * @param tid the read-only transaction
+	 * @return the timestamp of the snapshot
+	 */
+	public long beginSnapshot(TransactionId tid) {
+		this.commitLock.lock();
+		try {
+			this.snapshots.put(tid, this.lastCommit);
+			return this.lastCommit;
+		} finally {
+			this.commitLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the timestamp of the snapshot of the transaction, or -1 if it
+	 *         is not a read-only transaction
+	 */
+	public long getSnapshot(TransactionId tid) {
+		if (this.snapshots.isEmpty()) {
+			return -1;
+		}
+		Long snapshot = this.snapshots.get(tid);
+		return snapshot == null ? -1 : snapshot;
+	}
+
+	/**
+	 * Ends the snapshot of a read-only transaction and drops the versions
+	 * no running snapshot needs any more. Does nothing if the transaction
+	 * has no snapshot.
+	 */
+	public void endSnapshot(TransactionId tid) {
+		if (this.snapshots.remove(tid) != null) {
+			prune();
+		}
+	}
+
+	/**
+	 * Starts installing the pages of a commit. Must be followed by
+	 * {@link #endCommit}, which releases the commit lock.
+	 *
+	 * @return the timestamp of the commit
+	 */
+	public long beginCommit() {
+		this.commitLock.lock();
+		return this.lastCommit + 1;
+	}
+
+	/**
+	 * Finishes installing the pages of a commit, making it visible to the
+	 * snapshots taken from now on.
+	 *
+	 * @param commit the timestamp returned by {@link #beginCommit}
+	 */
+	public void endCommit(long commit) {
+		this.lastCommit = commit;
+		this.commitLock.unlock();
+	}
+
+	/**
+	 * Keeps a committed image of a page that a commit is replacing, if any
+	 * snapshot may need it. Must be called between {@link #beginCommit} and
+	 * {@link #endCommit}, while the page cannot be read.
+	 *
+	 * @param pid the page
+	 * @param commit the timestamp of the commit replacing the image
+	 * @param image the replaced image
+	 */
+	public void addVersion(PageId pid, long commit, Page image) {
+		// every running snapshot is older than the commit
+		if (this.snapshots.isEmpty()) {
+			return;
+		}
+		LinkedList<Version> pageVersions = this.versions.get(pid);
+		if (pageVersions == null) {
+			pageVersions = new LinkedList<Version>();
+			this.versions.put(pid, pageVersions);
+		}
+		synchronized (pageVersions) {
+			pageVersions.add(new Version(commit, image));
+		}
+	}
+
+	/**
+	 * Records that a transaction is appending a page past the end of its
+	 * file. Must be called before the page is written.
+	 */
+	public void addAppend(TransactionId tid, PageId pid) {
+		this.appends.put(pid, tid);
+	}
+
+	/**
+	 * @return true if the page was appended by a transaction that has not
+	 *         completed yet, so snapshots must read it as empty
+	 */
+	public boolean isPendingAppend(PageId pid) {
+		return !this.appends.isEmpty() && this.appends.containsKey(pid);
+	}
+
+	/**
+	 * @return the pages the transaction appended
+	 */
+	public List<PageId> getAppends(TransactionId tid) {
+		List<PageId> pages = new ArrayList<PageId>();
+		if (this.appends.isEmpty()) {
+			return pages;
+		}
+		for (Map.Entry<PageId, TransactionId> append : this.appends.entrySet()) {
+			if (append.getValue().equals(tid)) {
+				pages.add(append.getKey());
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * Forgets the pages the transaction appended, once it has completed. A
+	 * committing transaction must first keep their empty images with
+	 * {@link #addVersion}, so snapshots reading them in between still see
+	 * them empty.
+	 */
+	public void removeAppends(TransactionId tid, List<PageId> pages) {
+		for (PageId pid : pages) {
+			this.appends.remove(pid, tid);
+		}
+	}
+
+	/**
+	 * @return true if any snapshot is running
+	 */
+	public boolean hasSnapshots() {
+		return !this.snapshots.isEmpty();
+	}
+
+	/**
+	 * Returns the image of a page a snapshot reads, if a commit after the
+	 * snapshot replaced it.
+	 *
+	 * @param pid the page
+	 * @param snapshot the timestamp of the snapshot
+	 * @return the image, or null if the snapshot reads the current
+	 *         committed image of the page
+	 */
+	public Page getVersion(PageId pid, long snapshot) {
+		LinkedList<Version> pageVersions = this.versions.get(pid);
+		if (pageVersions == null) {
+			return null;
+		}
+		synchronized (pageVersions) {
+			for (Version version : pageVersions) {
+				if (version.replacedAt > snapshot) {
+					return version.image;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of replaced page images kept
+	 */
+	public int getVersionCount() {
+		int count = 0;
+		for (LinkedList<Version> pageVersions : this.versions.values()) {
+			synchronized (pageVersions) {
+				count += pageVersions.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of running snapshots
+	 */
+	public int getSnapshotCount() {
+		return this.snapshots.size();
+	}
+
+	// Helper method that drops the versions replaced no later than the
+	// oldest running snapshot
+	private void prune() {
+		this.commitLock.lock();
+		try {
+			long oldest = Long.MAX_VALUE;
+			for (Long snapshot : this.snapshots.values()) {
+				oldest = Math.min(oldest, snapshot);
+			}
+			Iterator<Map.Entry<PageId, LinkedList<Version>>> it = this.versions.entrySet().iterator();
+			while (it.hasNext()) {
+				LinkedList<Version> pageVersions = it.next().getValue();
+				synchronized (pageVersions) {
+					while (!pageVersions.isEmpty() && pageVersions.getFirst().replacedAt <= oldest) {
+						pageVersions.removeFirst();
+					}
+					if (pageVersions.isEmpty()) {
+						it.remove();
+					}
+				}
+			}
+		} finally {
+			this.commitLock.unlock();
+		}
+	}
+}
@@ -182,11 +182,16 @@ public class ProjectOptimizer extends ParallelQueryPlanOptimizer {
 //		}
 	    } else if (root instanceof OrderBy) {
 		OrderBy o = (OrderBy) root;
-		neededField.add(o.getTupleDesc().getFieldName(
-		        o.getOrderByField()));
+		int[] oFields = o.getOrderByFields();
+		String[] oNames = new String[oFields.length];
+		for (int i = 0; i < oFields.length; i++) {
+		    oNames[i] = o.getTupleDesc().getFieldName(oFields[i]);
+		    neededField.add(oNames[i]);
+		}
 		children[0] = pushDownProject(children[0], neededField);
-		o = new OrderBy(children[0].getTupleDesc().fieldNameToIndex(
-		        o.getOrderFieldName()), o.isASC(), children[0]);
+		for (int i = 0; i < oFields.length; i++)
+		    oFields[i] = children[0].getTupleDesc().fieldNameToIndex(oNames[i]);
+		o = new OrderBy(oFields, o.getAscending(), children[0]);
 		return o;
 	    } else if (root instanceof Aggregate) {
 		Aggregate a = (Aggregate) root;
@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -176,6 +177,66 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate with a memory budget of one group, so every
+   * other group is spilled
+   */
+  @Test public void spillAggregate() throws Exception {
+    Aggregate op = new Aggregate(scan1, 1, 0,
+        Aggregator.Op.SUM);
+    op.setMemoryBudget(1);
+    op.open();
+    sum.open();
+    TestUtil.matchAllTuples(sum, op);
+    assertTrue(op.getSpilledBytes() > 0);
+
+    op.rewind();
+    sum.rewind();
+    TestUtil.matchAllTuples(sum, op);
+    op.close();
+
+    op = new Aggregate(scan3, 1, 0, Aggregator.Op.SUM);
+    op.setMemoryBudget(1);
+    op.open();
+    sumstring.open();
+    TestUtil.matchAllTuples(sumstring, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate with many more groups than fit in its budget,
+   * which makes partitions spill again
+   */
+  @Test public void spillManyGroups() throws Exception {
+    int groups = 2000;
+    int[] data = new int[groups * 3 * 2];
+    int[] expected = new int[groups];
+    for (int i = 0; i < groups * 3; i++) {
+      data[2 * i] = i % groups;
+      data[2 * i + 1] = i;
+      expected[i % groups] = Math.max(expected[i % groups], i);
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0,
+        Aggregator.Op.MAX);
+    long groupSize = Type.INT_TYPE.getLen() + Aggregate.GROUP_OVERHEAD;
+    op.setMemoryBudget(10 * groupSize);
+    op.open();
+    boolean[] seen = new boolean[groups];
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int group = ((IntField) t.getField(0)).getValue();
+      assertFalse(seen[group]);
+      seen[group] = true;
+      assertEquals(expected[group], ((IntField) t.getField(1)).getValue());
+      count++;
+    }
+    assertEquals(groups, count);
+    assertTrue(op.getPeakMemory() <= 10 * groupSize);
+    assertTrue(op.getSpilledBytes() >= (groups * 3 - 10) * 8);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BatchOperatorTest extends SimpleDbTestBase {
+
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // more than one batch and one page of rows, with repeated join keys
+        left = SystemTestUtil.createRandomHeapFile(3, 3000, 200, null, null);
+        right = SystemTestUtil.createRandomHeapFile(2, 700, 200, null, null);
+        tid = new TransactionId();
+    }
+
+    // Helper method that checks a plan gives the same tuples in batch mode
+    private void assertSameAsBatch(DbIterator rowPlan, DbIterator samePlan) throws Exception {
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(rowPlan);
+        DbIterator batchPlan = Vectorizer.vectorize(samePlan);
+        assertTrue(batchPlan instanceof BatchToRow);
+        assertEquals(expected, SystemTestUtil.sortedTuples(batchPlan));
+    }
+
+    private SeqScan scanLeft() {
+        return new SeqScan(tid, left.getId(), "l");
+    }
+
+    private SeqScan scanRight() {
+        return new SeqScan(tid, right.getId(), "r");
+    }
+
+    @Test public void scanFilterProject() throws Exception {
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        Type[] types = { Type.INT_TYPE, Type.INT_TYPE };
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(100));
+            assertSameAsBatch(new Project(fields, types, new Filter(p, scanLeft())),
+                    new Project(fields, types, new Filter(p, scanLeft())));
+        }
+    }
+
+    @Test public void aggregate() throws Exception {
+        Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+        for (Aggregator.Op op : ops) {
+            assertSameAsBatch(new Aggregate(scanLeft(), 1, 0, op),
+                    new Aggregate(scanLeft(), 1, 0, op));
+            assertSameAsBatch(new Aggregate(scanLeft(), 2, Aggregator.NO_GROUPING, op),
+                    new Aggregate(scanLeft(), 2, Aggregator.NO_GROUPING, op));
+        }
+    }
+
+    @Test public void join() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        assertSameAsBatch(new Join(p, scanLeft(), scanRight()),
+                new Join(p, scanLeft(), scanRight()));
+        Predicate filter = new Predicate(2, Predicate.Op.LESS_THAN, new IntField(50));
+        assertSameAsBatch(new HashEquiJoin(p, new Filter(filter, scanLeft()), scanRight()),
+                new HashEquiJoin(p, new Filter(filter, scanLeft()), scanRight()));
+    }
+
+    /**
+     * A row mode operator over a batch plan keeps running in row mode, and
+     * the plan under it is rewritten.
+     */
+    @Test public void mixedPlan() throws Exception {
+        OrderBy rowPlan = new OrderBy(0, true, new Aggregate(scanLeft(), 1, 0, Aggregator.Op.SUM));
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(rowPlan);
+        OrderBy plan = new OrderBy(0, true, new Aggregate(scanLeft(), 1, 0, Aggregator.Op.SUM));
+        assertSame(plan, Vectorizer.vectorize(plan));
+        assertTrue(plan.getChildren()[0] instanceof BatchToRow);
+        assertEquals(expected, SystemTestUtil.sortedTuples(plan));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchOperatorTest.class);
+    }
+}
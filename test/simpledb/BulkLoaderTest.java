@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BulkLoaderTest extends TestUtil.CreateHeapFile {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    // Helper method that counts the tuples of the file in a new transaction
+    private int countTuples(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /**
+     * Tuples from an iterator fill whole pages written in batches; the
+     * partly filled last page is left for ordinary inserts.
+     */
+    @Test public void loadIterator() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 2000; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        TupleIterator child = new TupleIterator(empty.getTupleDesc(), tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader(empty, t.getId(), 2);
+        assertEquals(2000, loader.load(child));
+        t.commit();
+
+        // the empty first page plus ceil(2000 / 504) loaded pages
+        assertEquals(5, empty.numPages());
+        assertEquals(2000, countTuples(empty));
+        assertEquals(4, empty.getFreeSpaceMap().findPage(1));
+    }
+
+    /**
+     * Delimited text is parsed with the table's schema, and bad lines are
+     * rejected.
+     */
+    @Test public void loadText() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader(empty, t.getId());
+        assertEquals(3, loader.load(new StringReader("1,2\n\n3, 4\n5,6\n"), ','));
+        t.commit();
+        assertEquals(3, countTuples(empty));
+
+        t = new Transaction();
+        t.start();
+        try {
+            new BulkLoader(empty, t.getId()).load(new StringReader("1,2,3\n"), ',');
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        t.commit();
+    }
+
+    /**
+     * Aborting the loading transaction empties the loaded pages.
+     */
+    @Test public void abortUndoesLoad() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BulkLoader loader = new BulkLoader(empty, t.getId());
+        for (int i = 0; i < 600; ++i) {
+            loader.add(Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(600, loader.finish());
+        t.abort();
+
+        assertEquals(0, countTuples(empty));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
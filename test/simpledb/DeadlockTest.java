@@ -7,6 +7,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +212,38 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Unit test for waits-for graph deadlock detection: the deadlock is found
+   * as soon as it forms, the younger transaction is aborted, and the older
+   * one gets its lock.
+   */
+  @Test public void testYoungestVictim() throws Exception {
+    LockManager lm = bp.getLockManager();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired());
+
+    long start = System.currentTimeMillis();
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2.join();
+    lg1.join(LockManager.RECHECK_MILLIS);
+    assertTrue(System.currentTimeMillis() - start < LockManager.RECHECK_MILLIS);
+    assertTrue(lg2.getError() instanceof TransactionAbortedException);
+    assertTrue(lg1.acquired());
+    assertEquals(1, lm.getDeadlockAborts());
+
+    long waits = 0;
+    for (long count : lm.getWaitTimeHistogram()) {
+      waits += count;
+    }
+    assertEquals(2, lm.getLockWaits());
+    assertEquals(lm.getLockWaits(), waits);
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,228 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private HeapPageId p0, p1, p2, p3;
+
+    private static final EvictionPolicy.Evictable ALL = new EvictionPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    @Before public void createPids() {
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        p2 = new HeapPageId(1, 2);
+        p3 = new HeapPageId(1, 3);
+    }
+
+    private EvictionPolicy.Evictable allBut(final PageId skipped) {
+        return new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(skipped);
+            }
+        };
+    }
+
+    /**
+     * CLOCK gives every page a second chance, then evicts in ring order and
+     * skips pages that may not be evicted.
+     */
+    @Test public void clock() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        policy.recordAccess(p0);
+        policy.recordAccess(p1);
+        policy.recordAccess(p2);
+
+        assertEquals(p1, policy.chooseVictim(allBut(p0)));
+        policy.recordRemoval(p1);
+
+        // p2's bit was cleared by the first sweep, p0 is referenced again
+        policy.recordAccess(p0);
+        assertEquals(p2, policy.chooseVictim(ALL));
+        policy.recordRemoval(p2);
+
+        // the freed frame is reused
+        policy.recordAccess(p3);
+        assertEquals(p0, policy.chooseVictim(ALL));
+    }
+
+    /**
+     * LRU-K evicts pages seen fewer than K times before pages that are reused.
+     */
+    @Test public void lruK() {
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        policy.recordAccess(p0);
+        policy.recordAccess(p0);
+        policy.recordAccess(p1);
+        policy.recordAccess(p1);
+        policy.recordAccess(p2);
+        policy.recordAccess(p3);
+
+        assertEquals(p2, policy.chooseVictim(ALL));
+        policy.recordRemoval(p2);
+        assertEquals(p3, policy.chooseVictim(ALL));
+        policy.recordRemoval(p3);
+
+        // oldest second-to-last access goes first
+        assertEquals(p0, policy.chooseVictim(ALL));
+        assertEquals(p1, policy.chooseVictim(allBut(p0)));
+    }
+
+    /**
+     * 2Q promotes a page to the hot queue only when it comes back after
+     * being evicted, and evicts scanned pages ahead of hot ones.
+     */
+    @Test public void twoQ() {
+        EvictionPolicy policy = new TwoQEvictionPolicy();
+        policy.recordAccess(p0);
+        policy.recordAccess(p1);
+        assertEquals(p0, policy.chooseVictim(ALL));
+        policy.recordRemoval(p0);
+
+        // p0 is remembered in the ghost queue, so it comes back hot
+        policy.recordAccess(p0);
+        policy.recordAccess(p2);
+        policy.recordAccess(p3);
+        assertEquals(p1, policy.chooseVictim(ALL));
+        policy.recordRemoval(p1);
+        assertEquals(p2, policy.chooseVictim(ALL));
+        policy.recordRemoval(p2);
+
+        // A1in is back within its quarter of the pool, so the hot queue gives
+        // up a page
+        assertEquals(p0, policy.chooseVictim(ALL));
+        policy.recordRemoval(p0);
+        assertEquals(p3, policy.chooseVictim(ALL));
+        policy.recordRemoval(p3);
+        assertNull(policy.chooseVictim(ALL));
+    }
+
+    /**
+     * LRU-K and 2Q record accesses without waiting for a thread that is
+     * choosing a victim.
+     */
+    @Test public void accessesDoNotWaitForEviction() throws Exception {
+        EvictionPolicy[] policies = { new LruKEvictionPolicy(), new TwoQEvictionPolicy() };
+        for (final EvictionPolicy policy : policies) {
+            policy.recordAccess(p0);
+            policy.recordAccess(p1);
+            final CountDownLatch choosing = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread evictor = new Thread() {
+                public void run() {
+                    policy.chooseVictim(new EvictionPolicy.Evictable() {
+                        public boolean canEvict(PageId pid) {
+                            choosing.countDown();
+                            try {
+                                done.await();
+                            } catch (InterruptedException e) {
+                                // give up waiting
+                            }
+                            return true;
+                        }
+                    });
+                }
+            };
+            evictor.start();
+            choosing.await();
+
+            Thread reader = new Thread() {
+                public void run() {
+                    policy.recordAccess(p1);
+                    policy.recordAccess(p2);
+                }
+            };
+            reader.start();
+            reader.join(5000);
+            assertFalse(policy.getClass().getSimpleName() + " blocked an access", reader.isAlive());
+
+            done.countDown();
+            evictor.join();
+            reader.join();
+        }
+    }
+
+    /**
+     * BufferPool counts hits and misses of getPage.
+     */
+    @Test public void hitRate() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = Database.resetBufferPool(2, new LruKEvictionPolicy());
+        TransactionId tid = new TransactionId();
+        HeapPageId hp0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId hp1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId hp2 = new HeapPageId(hf.getId(), 2);
+
+        bp.getPage(tid, hp0, Permissions.READ_ONLY);
+        bp.getPage(tid, hp0, Permissions.READ_ONLY);
+        bp.getPage(tid, hp1, Permissions.READ_ONLY);
+        bp.getPage(tid, hp2, Permissions.READ_ONLY);
+        // hp0 was reused, so hp1 was evicted to make room for hp2
+        bp.getPage(tid, hp0, Permissions.READ_ONLY);
+
+        assertEquals(2, bp.getHitCount());
+        assertEquals(3, bp.getMissCount());
+        assertEquals(0.4, bp.getHitRate(), 0.0001);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pinned pages are never evicted, and unpinning makes them evictable again.
+     */
+    @Test public void pinnedPagesStayCached() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId hp0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId hp1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId hp2 = new HeapPageId(hf.getId(), 2);
+
+        bp.pinPage(tid, hp0, Permissions.READ_ONLY);
+        bp.getPage(tid, hp1, Permissions.READ_ONLY);
+        bp.getPage(tid, hp2, Permissions.READ_ONLY);
+        assertTrue(bp.isPinned(hp0));
+        bp.getPage(tid, hp0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getHitCount());
+
+        bp.pinPage(tid, hp2, Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, hp1, Permissions.READ_ONLY);
+            fail("all pages are pinned, nothing can be evicted");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, hp2);
+        assertFalse(bp.isPinned(hp2));
+        bp.getPage(tid, hp1, Permissions.READ_ONLY);
+
+        // completing the transaction releases its remaining pins
+        bp.transactionComplete(tid);
+        assertFalse(bp.isPinned(hp0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
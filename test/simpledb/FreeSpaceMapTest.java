@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * findPage wraps around and skips pages marked full.
+     */
+    @Test public void findPage() {
+        FreeSpaceMap map = new FreeSpaceMap();
+        assertEquals(-1, map.findPage(0));
+
+        map.ensurePages(4);
+        assertEquals(4, map.numPages());
+        assertEquals(-1, map.findPage(2));
+
+        for (int i = 0; i < 4; i++) {
+            map.markFree(i);
+        }
+        assertEquals(2, map.findPage(2));
+
+        map.markFull(2);
+        map.markFull(3);
+        assertEquals(0, map.findPage(2));
+
+        map.markFull(0);
+        map.markFull(1);
+        assertEquals(-1, map.findPage(0));
+
+        map.markFree(3);
+        assertEquals(3, map.findPage(0));
+    }
+
+    /**
+     * A map built over full pages does not mark them free, so inserts skip
+     * them and only find the empty first page of the file.
+     */
+    @Test public void buildOverFullPages() throws Exception {
+        BulkLoader loader = new BulkLoader(empty, tid);
+        for (int i = 0; i < 3 * 504; ++i) {
+            loader.add(Utility.getHeapTuple(i, 2));
+        }
+        loader.finish();
+        assertEquals(4, empty.numPages());
+
+        empty.getFreeSpaceMapFile().delete();
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        FreeSpaceMap map = reopened.getFreeSpaceMap();
+        assertEquals(4, map.numPages());
+        assertEquals(0, map.findPage(1));
+    }
+
+    /**
+     * A page that gets a free slot back is reused instead of appending.
+     */
+    @Test public void insertReusesFreedSlot() throws Exception {
+        // fill the first two pages
+        for (int i = 0; i < 1008; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(0));
+
+        // free a slot on page 0; the next insert should land there
+        Tuple t = null;
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        t = it.next();
+        it.close();
+        empty.deleteTuple(tid, t);
+        assertEquals(0, empty.getFreeSpaceMap().findPage(1));
+
+        Tuple inserted = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, inserted);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, inserted.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * The map built from the page headers matches what inserts recorded,
+     * and a saved map is loaded when the file is opened again.
+     */
+    @Test public void buildAndPersist() throws Exception {
+        for (int i = 0; i < 1010; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(),
+                    Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(3, empty.numPages());
+
+        // page 0 and 1 are full, page 2 has space
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        FreeSpaceMap built = reopened.getFreeSpaceMap();
+        assertEquals(3, built.numPages());
+        assertEquals(2, built.findPage(0));
+
+        File saved = empty.getFreeSpaceMapFile();
+        saved.deleteOnExit();
+        empty.setPersistFreeSpaceMap(true);
+        empty.close();
+        assertTrue(saved.exists());
+
+        FreeSpaceMap loaded = FreeSpaceMap.load(saved);
+        assertEquals(3, loaded.numPages());
+        assertEquals(2, loaded.findPage(0));
+        saved.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
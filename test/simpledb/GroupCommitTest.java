@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class GroupCommitTest {
+    private File file;
+    private LogFile log;
+
+    @Before public void setUp() throws IOException {
+        file = File.createTempFile("groupcommit", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    // Helper method that writes the BEGIN and COMMIT records of a new
+    // transaction
+    private void commit() throws IOException {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+    }
+
+    /**
+     * Unit test for a commit forcing the log once, and for a force that
+     * has nothing new to write not forcing it again.
+     */
+    @Test public void singleCommitForcesOnce() throws IOException {
+        commit();
+        assertEquals(1, log.getCommitCount());
+        assertEquals(1, log.getForceCount());
+        assertEquals(1.0, log.getForcesPerCommit(), 0.0);
+
+        log.force();
+        assertEquals(1, log.getForceCount());
+
+        log.resetStats();
+        assertEquals(0, log.getCommitCount());
+        assertEquals(0.0, log.getForcesPerCommit(), 0.0);
+    }
+
+    /**
+     * Unit test for concurrent committers sharing forces within the group
+     * commit delay.
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final int threads = 8;
+        log.setGroupCommitDelay(20000);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger committed = new AtomicInteger(0);
+        List<Thread> committers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread committer = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        commit();
+                        committed.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            committer.start();
+            committers.add(committer);
+        }
+        start.countDown();
+        for (Thread committer : committers) {
+            committer.join();
+        }
+
+        assertEquals(threads, committed.get());
+        assertEquals(threads, log.getCommitCount());
+        assertTrue(log.getForceCount() >= 1);
+        assertTrue(log.getForceCount() < threads);
+        assertTrue(log.getCommitsPerSecond() > 0);
+    }
+
+    /**
+     * Unit test for a commit through Transaction forcing the log once for
+     * its UPDATE records and its COMMIT record together.
+     */
+    @Test public void transactionCommitForcesOnce() throws Exception {
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        LogFile dbLog = Database.getLogFile();
+        dbLog.resetStats();
+        for (int i = 0; i < 5; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        assertEquals(5, dbLog.getCommitCount());
+        assertTrue(dbLog.getForcesPerCommit() <= 1.0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
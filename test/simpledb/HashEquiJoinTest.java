@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when the hash table fits in memory
+   */
+  @Test public void eqJoin() throws Exception {
+    DbIterator scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    DbIterator scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    DbIterator eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    assertEquals(0, op.getSpilledBytes());
+    op.close();
+  }
+
+  /**
+   * Unit test for HashEquiJoin with a budget far smaller than its build
+   * input, so partitions are spilled and joined from disk
+   */
+  @Test public void spillJoin() throws Exception {
+    int n1 = 3000, n2 = 2000;
+    int[] data1 = new int[n1 * width1];
+    int[] data2 = new int[n2 * width2];
+    Map<Integer, Integer> count1 = new HashMap<Integer, Integer>();
+    for (int i = 0; i < n1; i++) {
+      data1[i * width1] = i % 1000;
+      data1[i * width1 + 1] = i;
+      Integer c = count1.get(i % 1000);
+      count1.put(i % 1000, c == null ? 1 : c + 1);
+    }
+    int expected = 0;
+    for (int i = 0; i < n2; i++) {
+      data2[i * width2] = i % 1500;
+      data2[i * width2 + 1] = i;
+      data2[i * width2 + 2] = -i;
+      Integer c = count1.get(i % 1500);
+      expected += c == null ? 0 : c;
+    }
+
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(width1, data1), TestUtil.createTupleList(width2, data2));
+    op.setMemoryBudget(100 * (width1 * Type.INT_TYPE.getLen() + HashEquiJoin.TUPLE_OVERHEAD));
+    op.open();
+    assertEquals(expected, checkJoin(op));
+    assertTrue(op.getSpilledBytes() > 0);
+
+    op.rewind();
+    assertEquals(expected, checkJoin(op));
+    op.close();
+  }
+
+  // Helper method that checks that every output tuple matches on the join
+  // key and has the fields of both inputs in order, and counts the tuples
+  private int checkJoin(DbIterator op) throws Exception {
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      assertEquals(key, ((IntField) t.getField(1)).getValue() % 1000);
+      assertEquals(key, ((IntField) t.getField(2)).getValue());
+      int i = ((IntField) t.getField(3)).getValue();
+      assertEquals(key, i % 1500);
+      assertEquals(-i, ((IntField) t.getField(4)).getValue());
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
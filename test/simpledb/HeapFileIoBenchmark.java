@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures page read (scan) and page write (insert) throughput of HeapFile
+ * against the previous implementation, which opened a new RandomAccessFile
+ * for every page access. Pages are read with DbFile.readPage directly so the
+ * buffer pool does not hide the I/O path. Because page parsing and
+ * serialization cost the same in both versions, the raw numbers repeat the
+ * measurement for the I/O calls alone.
+ * <p>
+ * Run with: java simpledb.HeapFileIoBenchmark [numPages] [rounds]
+ */
+public class HeapFileIoBenchmark {
+
+    private static Page readPageReopening(File f, PageId pid) throws IOException {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+        raf.read(data);
+        raf.close();
+        return new HeapPage((HeapPageId) pid, data);
+    }
+
+    private static void writePageReopening(File f, Page p) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek((long) p.getId().pageNumber() * BufferPool.getPageSize());
+        raf.write(p.getPageData());
+        raf.close();
+    }
+
+    private static double pagesPerSecond(int pages, long nanos) {
+        return pages / (nanos / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * numPages, null, null);
+        File f = hf.getFile();
+        int tableid = hf.getId();
+
+        long oldScan = Long.MAX_VALUE, newScan = Long.MAX_VALUE;
+        long oldInsert = Long.MAX_VALUE, newInsert = Long.MAX_VALUE;
+        long oldRaw = Long.MAX_VALUE, newRaw = Long.MAX_VALUE;
+        byte[] data = new byte[BufferPool.getPageSize()];
+        FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < numPages; i++) {
+                RandomAccessFile raf = new RandomAccessFile(f, "r");
+                raf.seek((long) i * BufferPool.getPageSize());
+                raf.read(data);
+                raf.close();
+            }
+            oldRaw = Math.min(oldRaw, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < numPages; i++) {
+                channel.read(ByteBuffer.wrap(data), (long) i * BufferPool.getPageSize());
+            }
+            newRaw = Math.min(newRaw, System.nanoTime() - start);
+        }
+        channel.close();
+
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < numPages; i++) {
+                readPageReopening(f, new HeapPageId(tableid, i));
+            }
+            oldScan = Math.min(oldScan, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < numPages; i++) {
+                hf.readPage(new HeapPageId(tableid, i));
+            }
+            newScan = Math.min(newScan, System.nanoTime() - start);
+
+            // rewrite every page in place, as flushing inserted pages does
+            Page page = hf.readPage(new HeapPageId(tableid, 0));
+            start = System.nanoTime();
+            for (int i = 0; i < numPages; i++) {
+                writePageReopening(f, new HeapPage(new HeapPageId(tableid, i), page.getPageData()));
+            }
+            oldInsert = Math.min(oldInsert, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < numPages; i++) {
+                hf.writePage(new HeapPage(new HeapPageId(tableid, i), page.getPageData()));
+            }
+            newInsert = Math.min(newInsert, System.nanoTime() - start);
+        }
+        hf.close();
+
+        System.out.printf("%d pages, best of %d rounds%n", numPages, rounds);
+        System.out.printf("raw    RandomAccessFile per page: %10.0f pages/s%n", pagesPerSecond(numPages, oldRaw));
+        System.out.printf("raw    persistent FileChannel:    %10.0f pages/s%n", pagesPerSecond(numPages, newRaw));
+        System.out.printf("scan   RandomAccessFile per page: %10.0f pages/s%n", pagesPerSecond(numPages, oldScan));
+        System.out.printf("scan   persistent FileChannel:    %10.0f pages/s%n", pagesPerSecond(numPages, newScan));
+        System.out.printf("insert RandomAccessFile per page: %10.0f pages/s%n", pagesPerSecond(numPages, oldInsert));
+        System.out.printf("insert persistent FileChannel:    %10.0f pages/s%n", pagesPerSecond(numPages, newInsert));
+    }
+}
@@ -6,12 +6,15 @@ import simpledb.systemtest.SystemTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -120,6 +123,58 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Tuples are views over the page bytes: predicates can be evaluated on
+     * them, and an unmodified page serializes back to the bytes it was read
+     * from.
+     */
+    @Test public void lazyTuples() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+        Iterator<Tuple> it = page.iterator();
+        for (int[] tup : EXAMPLE_VALUES) {
+            Tuple t = it.next();
+            Predicate p = new Predicate(1, Predicate.Op.EQUALS, new IntField(tup[1]));
+            assertTrue(p.filter(t));
+            p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(tup[0]));
+            assertFalse(p.filter(t));
+        }
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+        // a modified slot is written from the new tuple
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        Tuple replacement = Utility.getHeapTuple(new int[] { 1, 2 });
+        page.insertTuple(replacement);
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Tuple read = copy.iterator().next();
+        assertEquals(1, ((IntField) read.getField(0)).getValue());
+        assertEquals(2, ((IntField) read.getField(1)).getValue());
+    }
+
+    /**
+     * The before image of a page that was only read is the bytes it was read
+     * from, without a copy, until the page sets a new one.
+     */
+    @Test public void lazyBeforeImage() throws Exception {
+        ByteBuffer mapped = ByteBuffer.wrap(EXAMPLE_DATA).asReadOnlyBuffer();
+        HeapPage page = new HeapPage(pid, mapped);
+        assertNull(page.oldData);
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+        assertNull(page.oldData);
+
+        // a field set on a view is written from the tuple, not the bytes
+        Tuple first = page.iterator().next();
+        first.setField(0, new IntField(-1));
+        assertEquals(-1, ((IntField) new HeapPage(pid, page.getPageData()).iterator().next().getField(0)).getValue());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+        page.setBeforeImage();
+        assertNotNull(page.oldData);
+        assertTrue(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,6 +1,8 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -126,6 +128,51 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage keeping the changes of transactions apart:
+     * a slot emptied by one transaction is not reused by another, a commit
+     * copies only the committer's slots to the before image, and an abort
+     * restores only the aborter's slots.
+     */
+    @Test public void transactionSlots() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        TransactionId deleter = new TransactionId();
+        TransactionId inserter = new TransactionId();
+        Tuple deleted = page.iterator().next();
+        int deletedSlot = deleted.getRecordId().tupleno();
+        Field deletedKey = deleted.getField(0);
+
+        page.deleteTuple(deleter, deleted);
+        Tuple added = Utility.getHeapTuple(123456, 2);
+        assertTrue(page.insertTuple(inserter, added));
+        int addedSlot = added.getRecordId().tupleno();
+        assertTrue(addedSlot != deletedSlot);
+        assertTrue(page.isDirtiedBy(deleter));
+        assertTrue(page.isDirtiedBy(inserter));
+
+        page.setBeforeImage(inserter);
+        HeapPage before = page.getBeforeImage();
+        assertTrue(before.isSlotUsed(deletedSlot));
+        assertTrue(before.isSlotUsed(addedSlot));
+        assertFalse(page.isDirtiedBy(inserter));
+
+        page.restoreBeforeImage(deleter);
+        assertFalse(page.isDirtiedBy(deleter));
+        assertTrue(page.isSlotUsed(deletedSlot));
+        assertTrue(page.isSlotUsed(addedSlot));
+        assertArrayEquals(before.getPageData(), page.getPageData());
+        boolean found = false;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getRecordId().tupleno() == deletedSlot) {
+                assertEquals(deletedKey, t.getField(0));
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,67 @@
+package simpledb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntAggregationTableTest extends SimpleDbTestBase {
+
+    /**
+     * Groups keep their index and accumulators as the table grows.
+     */
+    @Test public void addAndFind() {
+        IntAggregationTable table = new IntAggregationTable(4);
+        assertEquals(-1, table.find(7));
+
+        for (int i = 0; i < 1000; i++) {
+            int key = i * 31 - 500;
+            assertEquals(-1, table.find(key));
+            int g = table.add(key);
+            assertEquals(i, g);
+            table.setFirst(g, key);
+            table.setSecond(g, 2L * key);
+        }
+        assertEquals(1000, table.size());
+
+        for (int i = 0; i < 1000; i++) {
+            int key = i * 31 - 500;
+            int g = table.find(key);
+            assertEquals(i, g);
+            assertEquals(key, table.keyAt(g));
+            assertEquals(key, table.first(g));
+            assertEquals(2L * key, table.second(g));
+        }
+        assertEquals(-1, table.find(1));
+    }
+
+    /**
+     * Sums that overflow an int are kept exactly until the average is taken.
+     */
+    @Test public void avgWithoutOverflow() throws Exception {
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+        TupleDesc td = Utility.getTupleDesc(2);
+        for (int i = 0; i < 4; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(1));
+            t.setField(1, new IntField(Integer.MAX_VALUE));
+            agg.mergeTupleIntoGroup(t);
+        }
+        DbIterator it = agg.iterator();
+        it.open();
+        assertTrue(it.hasNext());
+        Tuple result = it.next();
+        assertEquals(new IntField(1), result.getField(0));
+        assertEquals(new IntField(Integer.MAX_VALUE), result.getField(1));
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntAggregationTableTest.class);
+    }
+}
@@ -3,6 +3,10 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -83,6 +87,78 @@ public class JoinTest extends SimpleDbTestBase {
     assertTrue(TestUtil.compareTuples(expected, actual));
   }
 
+  /**
+   * Unit test for Join.rewind() part way through a nested loop join
+   */
+  @Test public void rewindNestedLoop() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2);
+    op.open();
+    for (int i = 0; i < 3; i++) {
+      assertNotNull(op.next());
+    }
+    op.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+      count++;
+    }
+    assertEquals(11, count);
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for the block nested-loop join: child2 is scanned once per
+   * block of child1 tuples
+   */
+  @Test public void blockNestedLoop() throws Exception {
+    final int[] scans = new int[1];
+    TupleIterator inner = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    DbIterator countingInner = new TupleIterator(inner.getTupleDesc(), toList(inner)) {
+      private static final long serialVersionUID = 1L;
+
+      public void rewind() {
+        scans[0]++;
+        super.rewind();
+      }
+    };
+    int[] outerData = new int[2000 * width1];
+    for (int i = 0; i < 2000; i++) {
+      outerData[i * width1] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    Join op = new Join(pred, TestUtil.createTupleList(width1, outerData), countingInner);
+    op.setBlockPages(1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(((IntField) t.getField(0)).getValue() < ((IntField) t.getField(2)).getValue());
+      count++;
+    }
+    // 0 < 1..5, 1 < 2..5, 2 < 3..5, 3 < 4..5, 4 < 5
+    assertEquals(15, count);
+    int blockSize = Join.blockTuples(1, Utility.getTupleDesc(width1));
+    assertEquals((2000 + blockSize - 1) / blockSize, scans[0]);
+  }
+
+  // Helper method that reads all tuples of an iterator into a list
+  private static List<Tuple> toList(DbIterator it) throws Exception {
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    it.open();
+    while (it.hasNext()) {
+      tuples.add(it.next());
+    }
+    it.close();
+    return tuples;
+  }
+
   /**
    * Unit test for Join.getNext() using a &gt; predicate
    */
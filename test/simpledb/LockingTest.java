@@ -3,7 +3,12 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +191,157 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for the FIFO queue of a page: a read request queued behind a
+   * write request is not granted before it, even while the page is only
+   * read locked.
+   */
+  @Test public void queuedRequestsGrantedInOrder() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT / 10);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT / 10);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+    assertEquals(Arrays.asList(tid2, tid3), bp.getLockManager().getWaiters(p0));
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired());
+    Thread.sleep(TIMEOUT / 10);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(TIMEOUT);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for a lock upgrade skipping ahead of the requests queued for
+   * the page.
+   */
+  @Test public void upgradeSkipsQueue() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT / 10);
+    TestUtil.LockGrabber upgrader = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    upgrader.start();
+    Thread.sleep(TIMEOUT / 10);
+    assertEquals(Arrays.asList(tid1, tid3), bp.getLockManager().getWaiters(p0));
+
+    bp.transactionComplete(tid2);
+    upgrader.join(TIMEOUT);
+    assertTrue(upgrader.acquired());
+    assertFalse(writer.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for record locks: transactions lock different records of a
+   * page at once but wait for each other on the same record, and a read
+   * lock on the whole page waits for both.
+   */
+  @Test public void recordLocksOnSamePage() throws Exception {
+    LockManager lm = bp.getLockManager();
+    final RecordId r0 = new RecordId(p0, 0);
+    RecordId r1 = new RecordId(p0, 1);
+    bp.lockRecord(tid1, r0, Permissions.READ_WRITE);
+    bp.lockRecord(tid2, r1, Permissions.READ_WRITE);
+    assertEquals(LockMode.IX, lm.getTableLock(tid1, empty.getId()));
+    assertEquals(LockMode.IX, lm.getPageLock(tid1, p0));
+    assertEquals(LockMode.X, lm.getRecordLock(tid2, r1));
+
+    TransactionId tid3 = new TransactionId();
+    assertFalse(lm.canAcquire(tid3, p0, Permissions.READ_ONLY));
+    assertTrue(lm.canAcquire(tid3, p1, Permissions.READ_ONLY));
+
+    final AtomicBoolean acquired = new AtomicBoolean(false);
+    Thread grabber = new Thread() {
+      public void run() {
+        try {
+          bp.lockRecord(tid2, r0, Permissions.READ_WRITE);
+          acquired.set(true);
+        } catch (TransactionAbortedException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    grabber.start();
+    Thread.sleep(TIMEOUT / 10);
+    assertFalse(acquired.get());
+
+    bp.transactionComplete(tid1);
+    grabber.join(TIMEOUT);
+    assertTrue(acquired.get());
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * Unit test for transactions deleting different tuples of one page: an
+   * abort undoes only the aborting transaction's delete.
+   */
+  @Test public void abortUndoesOnlyOwnRecords() throws Exception {
+    TransactionId reader = new TransactionId();
+    Iterator<Tuple> it = ((HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY)).iterator();
+    Tuple first = it.next();
+    Tuple second = it.next();
+    bp.transactionComplete(reader);
+
+    bp.deleteTuple(tid1, first);
+    bp.deleteTuple(tid2, second);
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+
+    boolean foundFirst = false;
+    boolean foundSecond = false;
+    TransactionId tid3 = new TransactionId();
+    it = ((HeapPage) bp.getPage(tid3, p0, Permissions.READ_ONLY)).iterator();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      foundFirst |= t.getField(0).equals(first.getField(0));
+      foundSecond |= t.getField(0).equals(second.getField(0));
+    }
+    assertTrue(foundFirst);
+    assertFalse(foundSecond);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for escalating page locks to a table lock once a transaction
+   * holds more than the threshold.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockMode.IS, lm.getTableLock(tid1, empty.getId()));
+    assertEquals(0, lm.getEscalations());
+
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(1, lm.getEscalations());
+    assertEquals(LockMode.S, lm.getTableLock(tid1, empty.getId()));
+    assertNull(lm.getPageLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p0));
+
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+    private MappedHeapFile mhf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 3 + 7, 1 << 16, null, tuples);
+        mhf = new MappedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(mhf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Scans of a mapped table return every tuple, without using buffer pool
+     * frames.
+     */
+    @Test public void scan() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(4, mhf.numPages());
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(mhf, tid, tuples);
+        assertEquals(0, bp.getMissCount());
+
+        // pages can still be read through the buffer pool
+        HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(mhf.getId(), 3), Permissions.READ_ONLY);
+        assertEquals(p.numSlots - 7, p.getNumEmptySlots());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Mapped tables are read-only.
+     */
+    @Test public void readOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        try {
+            mhf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+            fail("mapped tables cannot be modified");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Bulk loads into a mapped table are rejected, and pages appended to the
+     * file some other way are seen by the next scan.
+     */
+    @Test public void append() throws Exception {
+        TransactionId tid = new TransactionId();
+        BulkLoader loader = new BulkLoader(mhf, tid);
+        loader.add(Utility.getHeapTuple(1, 2));
+        try {
+            loader.finish();
+            fail("mapped tables cannot be appended to");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(4, mhf.numPages());
+
+        HeapFile plain = new HeapFile(mhf.getFile(), mhf.getTupleDesc());
+        BulkLoader plainLoader = new BulkLoader(plain, tid);
+        for (int i = 0; i < 10; ++i) {
+            plainLoader.add(Utility.getHeapTuple(new int[] {i, i}));
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+        }
+        plainLoader.finish();
+        Database.getBufferPool().transactionComplete(tid);
+        plain.close();
+
+        assertEquals(5, mhf.numPages());
+        SystemTestUtil.matchTuples(mhf, new TransactionId(), tuples);
+    }
+
+    /**
+     * Closing drops the mapping; the file is mapped again when it is used.
+     */
+    @Test public void closeAndReopen() throws Exception {
+        mhf.close();
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(mhf, tid, tuples);
+    }
+
+    /**
+     * The catalog opens tables annotated with "mapped" as MappedHeapFiles.
+     */
+    @Test public void loadSchema() throws Exception {
+        File schema = File.createTempFile("schema", ".txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("plain (a int, b int)\n");
+        w.write("facts (a int pk, b int) mapped\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        int plainId = Database.getCatalog().getTableId("plain");
+        int factsId = Database.getCatalog().getTableId("facts");
+        assertFalse(Database.getCatalog().getDatabaseFile(plainId) instanceof MappedHeapFile);
+        assertTrue(Database.getCatalog().getDatabaseFile(factsId) instanceof MappedHeapFile);
+        assertEquals("a", Database.getCatalog().getPrimaryKey(factsId));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
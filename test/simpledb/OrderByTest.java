@@ -0,0 +1,237 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  int width = 2;
+
+  // Helper method that returns n tuples whose first field is a permutation
+  // of 0..n-1 and whose second field is its negation
+  private DbIterator shuffled(int n) {
+    int[] data = new int[n * width];
+    for (int i = 0; i < n; i++) {
+      int v = (int) ((i * 7919L) % n);
+      data[i * width] = v;
+      data[i * width + 1] = -v;
+    }
+    return TestUtil.createTupleList(width, data);
+  }
+
+  // Helper method that checks that op returns count tuples with first
+  // field first, first + step, ...
+  private void checkOrder(DbIterator op, int count, int first, int step) throws Exception {
+    for (int i = 0; i < count; i++) {
+      assertTrue(op.hasNext());
+      Tuple t = op.next();
+      int v = first + i * step;
+      assertEquals(v, ((IntField) t.getField(0)).getValue());
+      assertEquals(-v, ((IntField) t.getField(1)).getValue());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for OrderBy when every tuple fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    OrderBy op = new OrderBy(0, true, shuffled(1000));
+    op.open();
+    checkOrder(op, 1000, 0, 1);
+    assertEquals(0, op.getNumRuns());
+    op.rewind();
+    checkOrder(op, 1000, 0, 1);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with a budget that forces sorted runs to disk
+   */
+  @Test public void externalSort() throws Exception {
+    OrderBy op = new OrderBy(0, false, shuffled(1000));
+    op.setMemoryBudget(100 * (width * Type.INT_TYPE.getLen() + OrderBy.TUPLE_OVERHEAD));
+    op.open();
+    checkOrder(op, 1000, 999, -1);
+    assertEquals(9, op.getNumRuns());
+    assertEquals(909 * width * Type.INT_TYPE.getLen(), op.getSpilledBytes());
+    op.rewind();
+    checkOrder(op, 1000, 999, -1);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with more runs than are merged at once
+   */
+  @Test public void intermediateMerges() throws Exception {
+    int n = 3 * OrderBy.MERGE_FAN_IN * 2;
+    OrderBy op = new OrderBy(0, true, shuffled(n));
+    op.setMemoryBudget(2 * (width * Type.INT_TYPE.getLen() + OrderBy.TUPLE_OVERHEAD));
+    op.open();
+    checkOrder(op, n, 0, 1);
+    assertTrue(op.getNumRuns() > n / 3);
+    op.close();
+  }
+
+  /**
+   * Unit test for an external sort keeping tuples with equal keys in the
+   * order the child returned them, across runs and intermediate merges
+   */
+  @Test public void externalSortIsStable() throws Exception {
+    int n = 1000;
+    int[] data = new int[n * width];
+    for (int i = 0; i < n; i++) {
+      data[i * width] = (i * 7919) % 5;
+      data[i * width + 1] = i;
+    }
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(width, data));
+    op.setMemoryBudget(7 * (width * Type.INT_TYPE.getLen() + OrderBy.TUPLE_OVERHEAD));
+    op.open();
+    assertTrue(op.getNumRuns() > OrderBy.MERGE_FAN_IN);
+    int lastKey = -1;
+    int lastPosition = -1;
+    for (int i = 0; i < n; i++) {
+      assertTrue(op.hasNext());
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      int position = ((IntField) t.getField(1)).getValue();
+      assertTrue(key >= lastKey);
+      if (key == lastKey) {
+        assertTrue(position > lastPosition);
+      }
+      lastKey = key;
+      lastPosition = position;
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with a limit
+   */
+  @Test public void topN() throws Exception {
+    OrderBy op = new OrderBy(0, true, shuffled(1000));
+    op.setLimit(10);
+    op.open();
+    checkOrder(op, 10, 0, 1);
+    op.rewind();
+    checkOrder(op, 10, 0, 1);
+    op.close();
+
+    op.setLimit(0);
+    op.open();
+    checkOrder(op, 0, 0, 1);
+    op.close();
+  }
+
+  // Helper method that returns n tuples of three small int fields, so that
+  // sorting on them needs every key to break ties
+  private DbIterator threeKeys(int n) {
+    int[] data = new int[n * 3];
+    for (int i = 0; i < n; i++) {
+      int v = (int) ((i * 7919L) % n);
+      data[i * 3] = v % 3 - 1;
+      data[i * 3 + 1] = v / 3 % 5;
+      data[i * 3 + 2] = v;
+    }
+    return TestUtil.createTupleList(3, data);
+  }
+
+  // Helper method that checks that op returns n tuples in order of field
+  // 0 ascending, field 1 descending, field 2 ascending
+  private void checkThreeKeys(DbIterator op, int n) throws Exception {
+    int[] prev = null;
+    for (int i = 0; i < n; i++) {
+      assertTrue(op.hasNext());
+      Tuple t = op.next();
+      int[] cur = { t.getInt(0), t.getInt(1), t.getInt(2) };
+      if (prev != null) {
+        assertTrue(prev[0] < cur[0]
+            || (prev[0] == cur[0] && (prev[1] > cur[1]
+                || (prev[1] == cur[1] && prev[2] < cur[2]))));
+      }
+      prev = cur;
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for OrderBy on several int fields with mixed directions, in
+   * memory and with sorted runs on disk
+   */
+  @Test public void multiKey() throws Exception {
+    int[] fields = { 0, 1, 2 };
+    boolean[] asc = { true, false, true };
+    OrderBy op = new OrderBy(fields, asc, threeKeys(1000));
+    op.open();
+    checkThreeKeys(op, 1000);
+    op.close();
+
+    op = new OrderBy(fields, asc, threeKeys(1000));
+    op.setMemoryBudget(100 * (3 * Type.INT_TYPE.getLen() + OrderBy.TUPLE_OVERHEAD));
+    op.open();
+    checkThreeKeys(op, 1000);
+    assertTrue(op.getNumRuns() > 0);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy on a string field whose values share a prefix
+   * longer than the normalized key, then an int field
+   */
+  @Test public void stringKeys() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < 100; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField("common prefix " + (i % 10), Type.STRING_LEN));
+      t.setField(1, new IntField(99 - i));
+      tuples.add(t);
+    }
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { false, true },
+        new TupleIterator(td, tuples));
+    op.open();
+    for (int s = 9; s >= 0; s--) {
+      for (int j = 0; j < 10; j++) {
+        assertTrue(op.hasNext());
+        Tuple t = op.next();
+        assertEquals("common prefix " + s, ((StringField) t.getField(0)).getValue());
+        assertEquals(9 - s + 10 * j, t.getInt(1));
+      }
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for the normalized prefix of SortKey: its unsigned order is
+   * the sort order of the fields it covers
+   */
+  @Test public void sortKeyPrefix() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    SortKey key = new SortKey(td, new int[] { 0, 1 }, new boolean[] { true, false });
+    int[][] ordered = { { Integer.MIN_VALUE, 5 }, { -1, 7 }, { -1, -7 }, { 0, 0 },
+        { 1, Integer.MAX_VALUE }, { 1, Integer.MIN_VALUE }, { Integer.MAX_VALUE, 0 } };
+    for (int i = 1; i < ordered.length; i++) {
+      long prev = key.prefix(Utility.getHeapTuple(ordered[i - 1]));
+      long cur = key.prefix(Utility.getHeapTuple(ordered[i]));
+      assertTrue(Long.compareUnsigned(prev, cur) < 0);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
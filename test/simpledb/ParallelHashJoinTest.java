@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+    private JoinPredicate pred;
+
+    @Before public void setUp() throws Exception {
+        // several morsels on both sides, with repeated join keys
+        left = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, null);
+        right = SystemTestUtil.createRandomHeapFile(3, 8000, 5000, null, null);
+        tid = new TransactionId();
+        pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    }
+
+    private SeqScan scanLeft() {
+        return new SeqScan(tid, left.getId(), "l");
+    }
+
+    private SeqScan scanRight() {
+        return new SeqScan(tid, right.getId(), "r");
+    }
+
+    /**
+     * Unit test for ParallelHashJoin over serial inputs, building on either
+     * of them
+     */
+    @Test public void serialInputs() throws Exception {
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new HashEquiJoin(pred, scanLeft(), scanRight()));
+        assertFalse(expected.isEmpty());
+        for (boolean buildOnChild1 : new boolean[] { true, false }) {
+            ParallelHashJoin join = new ParallelHashJoin(pred, scanLeft(), scanRight());
+            join.setParallelism(4);
+            join.setBuildOnChild1(buildOnChild1);
+            assertEquals(expected, SystemTestUtil.sortedTuples(join));
+        }
+    }
+
+    /**
+     * Unit test for ParallelHashJoin building with the workers of a
+     * ParallelSeqScan
+     */
+    @Test public void parallelInputs() throws Exception {
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sortedTuples(new HashEquiJoin(pred, scanLeft(), scanRight()));
+        ParallelHashJoin join = new ParallelHashJoin(pred,
+                new ParallelSeqScan(tid, left.getId(), "l"), new ParallelSeqScan(tid, right.getId(), "r"));
+        join.setParallelism(4);
+        assertEquals(expected, SystemTestUtil.sortedTuples(join));
+    }
+
+    /**
+     * Unit test for ParallelHashJoin.rewind(), which probes again with the
+     * same table
+     */
+    @Test public void rewind() throws Exception {
+        ParallelHashJoin join = new ParallelHashJoin(pred, scanLeft(), scanRight());
+        join.setParallelism(4);
+        join.open();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.rewind();
+        int rewound = 0;
+        while (join.hasNext()) {
+            join.next();
+            rewound++;
+        }
+        join.close();
+        assertEquals(count, rewound);
+    }
+
+    /**
+     * Unit test for Parallelizer replacing equality joins whose build input
+     * fits in memory
+     */
+    @Test public void parallelize() throws Exception {
+        DbIterator plan = Parallelizer.parallelize(new HashEquiJoin(pred, scanLeft(), scanRight()));
+        assertTrue(plan instanceof ParallelHashJoin);
+        // right has fewer pages
+        assertFalse(((ParallelHashJoin) plan).buildsOnChild1());
+        assertEquals(SystemTestUtil.sortedTuples(new HashEquiJoin(pred, scanLeft(), scanRight())),
+                SystemTestUtil.sortedTuples(plan));
+
+        HashEquiJoin budgeted = new HashEquiJoin(pred, scanLeft(), scanRight());
+        budgeted.setMemoryBudget(BufferPool.getPageSize());
+        assertTrue(Parallelizer.parallelize(budgeted) instanceof HashEquiJoin);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHashJoinTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // enough pages for several morsels, with repeated group values
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(3, 40000, 100, null, tuples);
+        tid = new TransactionId();
+        assertTrue(table.numPages() > 4 * ParallelSeqScan.MORSEL_PAGES);
+    }
+
+    private SeqScan scan() {
+        return new SeqScan(tid, table.getId(), "t");
+    }
+
+    /**
+     * Unit test for ParallelSeqScan returning every tuple of the table once,
+     * also after a rewind
+     */
+    @Test public void scanAll() throws Exception {
+        ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "t");
+        scan.setParallelism(4);
+        assertEquals(scan().getTupleDesc(), scan.getTupleDesc());
+        SystemTestUtil.sortTuples(tuples);
+        assertEquals(tuples, SystemTestUtil.sortedTuples(scan));
+
+        scan.open();
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(scan.next());
+        }
+        scan.rewind();
+        ArrayList<ArrayList<Integer>> rewound = new ArrayList<ArrayList<Integer>>();
+        while (scan.hasNext()) {
+            rewound.add(SystemTestUtil.tupleToList(scan.next()));
+        }
+        scan.close();
+        SystemTestUtil.sortTuples(rewound);
+        assertEquals(tuples, rewound);
+    }
+
+    /**
+     * Unit test for closing a ParallelSeqScan before it is exhausted: the
+     * workers stop and release their pins
+     */
+    @Test public void closeEarly() throws Exception {
+        ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "t");
+        scan.setParallelism(4);
+        scan.open();
+        assertTrue(scan.hasNext());
+        scan.close();
+        for (int i = 0; i < table.numPages(); i++) {
+            assertFalse(Database.getBufferPool().isPinned(new HeapPageId(table.getId(), i)));
+        }
+    }
+
+    /**
+     * Unit test for Filters pushed into a ParallelSeqScan by Parallelizer
+     */
+    @Test public void pushedFilters() throws Exception {
+        DbIterator serial = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(50)),
+                new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20)), scan()));
+        DbIterator same = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(50)),
+                new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20)), scan()));
+        DbIterator parallel = Parallelizer.parallelize(same);
+        assertTrue(parallel instanceof ParallelSeqScan);
+        assertEquals(2, ((ParallelSeqScan) parallel).getPredicates().size());
+        assertEquals(SystemTestUtil.sortedTuples(serial), SystemTestUtil.sortedTuples(parallel));
+    }
+
+    /**
+     * Unit test for ParallelAggregate combining the partial aggregates of
+     * the workers, with and without grouping
+     */
+    @Test public void partialAggregates() throws Exception {
+        for (Aggregator.Op aop : new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX }) {
+            for (int gfield : new int[] { Aggregator.NO_GROUPING, 1 }) {
+                Aggregate serial = new Aggregate(scan(), 2, gfield, aop);
+                DbIterator parallel = Parallelizer.parallelize(new Aggregate(scan(), 2, gfield, aop));
+                assertTrue(parallel instanceof ParallelAggregate);
+                assertEquals(serial.getTupleDesc(), parallel.getTupleDesc());
+                assertEquals(aop + " grouped on " + gfield, SystemTestUtil.sortedTuples(serial),
+                        SystemTestUtil.sortedTuples(parallel));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private int scan(HeapFile hf, TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * A sequential scan with read-ahead enabled prefetches pages and still
+     * returns every tuple exactly once.
+     */
+    @Test public void sequentialScanPrefetches() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setReadAheadPages(8);
+        TransactionId tid = new TransactionId();
+
+        assertEquals(504 * 40, scan(hf, tid));
+        assertTrue(bp.getPrefetchIssuedCount() > 0);
+        assertTrue(bp.getPrefetchHitCount() + bp.getPrefetchMissCount() <= bp.getPrefetchIssuedCount());
+        // every page is either read on demand or served by read-ahead
+        assertTrue(bp.getMissCount() + bp.getPrefetchHitCount() >= 40);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Without read-ahead, nothing is prefetched.
+     */
+    @Test public void disabledByDefault() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+
+        assertEquals(504 * 10, scan(hf, tid));
+        assertEquals(0, bp.getPrefetchIssuedCount());
+        assertEquals(10, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The read-ahead window halves when prefetched pages are evicted before
+     * the scan reaches them.
+     */
+    @Test public void windowShrinksWhenPrefetchesAreUnused() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.setReadAheadPages(8);
+        SequentialReadAhead readAhead = new SequentialReadAhead(hf.getId(), hf.numPages() - 1);
+
+        readAhead.beforeRead(0);
+        readAhead.beforeRead(1);
+        assertEquals(SequentialReadAhead.INITIAL_WINDOW, readAhead.getWindow());
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+        HeapPageId p3 = new HeapPageId(hf.getId(), 3);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(bp.isCached(p2) && bp.isCached(p3)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(bp.isCached(p2) && bp.isCached(p3));
+
+        // the scan falls behind and its prefetched pages are evicted unused
+        bp.discardPage(p2);
+        bp.discardPage(p3);
+        readAhead.beforeRead(2);
+        assertEquals(SequentialReadAhead.INITIAL_WINDOW / 2, readAhead.getWindow());
+        readAhead.beforeRead(3);
+        assertEquals(1, readAhead.getWindow());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        this.p0 = new HeapPageId(empty.getId(), 0);
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    // Helper method that counts the tuples of p0 a transaction reads
+    private int countTuples(TransactionId tid) throws Exception {
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    // Helper method that counts the tuples of the table a transaction reads
+    private int countTable(TransactionId tid) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * Unit test for a reader neither waiting for nor blocking a writer that
+     * holds a lock on the page it reads.
+     */
+    @Test public void readerTakesNoLocks() throws Exception {
+        TransactionId writer = new TransactionId();
+        Tuple t = ((HeapPage) bp.getPage(writer, p0, Permissions.READ_WRITE)).iterator().next();
+        bp.deleteTuple(writer, t);
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(10, countTuples(reader));
+        assertFalse(bp.holdsLock(reader, p0));
+        assertTrue(bp.getLockManager().canAcquire(writer, p0, Permissions.READ_WRITE));
+
+        bp.transactionComplete(writer, true);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Unit test for a snapshot not seeing commits that happen after it
+     * started, and for versions being dropped once no snapshot needs them.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(10, countTuples(reader));
+
+        TransactionId writer = new TransactionId();
+        Tuple t = ((HeapPage) bp.getPage(writer, p0, Permissions.READ_WRITE)).iterator().next();
+        bp.deleteTuple(writer, t);
+        bp.transactionComplete(writer, true);
+        assertEquals(1, bp.getVersionStore().getVersionCount());
+
+        assertEquals(10, countTuples(reader));
+        TransactionId laterReader = new TransactionId();
+        bp.beginSnapshot(laterReader);
+        assertEquals(9, countTuples(laterReader));
+
+        bp.transactionComplete(reader);
+        bp.transactionComplete(laterReader);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+        assertEquals(0, bp.getVersionStore().getSnapshotCount());
+    }
+
+    /**
+     * Unit test for no versions being kept while there is no snapshot.
+     */
+    @Test public void noVersionsWithoutSnapshots() throws Exception {
+        TransactionId writer = new TransactionId();
+        Tuple t = ((HeapPage) bp.getPage(writer, p0, Permissions.READ_WRITE)).iterator().next();
+        bp.deleteTuple(writer, t);
+        bp.transactionComplete(writer, true);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    /**
+     * Unit test for a snapshot not seeing pages bulk loaded after it
+     * started, neither before nor after the loader commits.
+     */
+    @Test public void snapshotIgnoresBulkLoad() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(10, countTable(reader));
+
+        TransactionId loader = new TransactionId();
+        BulkLoader bulkLoader = new BulkLoader(empty, loader);
+        for (int i = 0; i < 2000; i++) {
+            bulkLoader.add(Utility.getHeapTuple(i, 2));
+        }
+        bulkLoader.finish();
+        assertEquals(10, countTable(reader));
+
+        TransactionId duringLoad = new TransactionId();
+        bp.beginSnapshot(duringLoad);
+        assertEquals(10, countTable(duringLoad));
+
+        bp.transactionComplete(loader, true);
+        assertEquals(10, countTable(reader));
+        assertEquals(10, countTable(duringLoad));
+
+        TransactionId afterLoad = new TransactionId();
+        bp.beginSnapshot(afterLoad);
+        assertEquals(2010, countTable(afterLoad));
+
+        bp.transactionComplete(reader);
+        bp.transactionComplete(duringLoad);
+        bp.transactionComplete(afterLoad);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    /**
+     * Unit test for read-only transactions being refused write access.
+     */
+    @Test(expected = DbException.class) public void readerCannotWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        bp.getPage(reader, p0, Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
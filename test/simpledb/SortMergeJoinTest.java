@@ -0,0 +1,101 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+
+  /**
+   * Initialize each unit test. Neither input is sorted, and both have
+   * duplicate join keys.
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 1,
+                    3, 2,
+                    7, 3,
+                    3, 4,
+                    1, 5 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 3, 1, 1,
+                    1, 2, 2,
+                    4, 3, 3,
+                    3, 4, 4,
+                    5, 5, 5,
+                    3, 6, 6 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 5, 1, 2, 2,
+                    3, 2, 3, 1, 1,
+                    3, 2, 3, 4, 4,
+                    3, 2, 3, 6, 6,
+                    3, 4, 3, 1, 1,
+                    3, 4, 3, 4, 4,
+                    3, 4, 3, 6, 6,
+                    5, 1, 5, 5, 5 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() over unsorted inputs
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+
+    // the output is sorted on the join field
+    op.rewind();
+    int count = 0;
+    int last = Integer.MIN_VALUE;
+    while (op.hasNext()) {
+      int key = ((IntField) op.next().getField(0)).getValue();
+      assertTrue(key >= last);
+      last = key;
+      count++;
+    }
+    assertEquals(8, count);
+    op.close();
+  }
+
+  /**
+   * Unit test for SortMergeJoin over inputs that are already sorted
+   */
+  @Test public void sortedInputs() throws Exception {
+    OrderBy sorted1 = new OrderBy(0, true, scan1);
+    OrderBy sorted2 = new OrderBy(0, true, scan2);
+    assertTrue(SortMergeJoin.isSortedOn(sorted1, 0));
+    assertFalse(SortMergeJoin.isSortedOn(sorted1, 1));
+    assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, scan1), 0));
+    assertFalse(SortMergeJoin.isSortedOn(scan1, 0));
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, sorted1, sorted2);
+    assertTrue(SortMergeJoin.isSortedOn(op, 0));
+    assertTrue(SortMergeJoin.isSortedOn(op, width1));
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -0,0 +1,59 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SpillFileTest extends SimpleDbTestBase {
+
+    /**
+     * Tuples are read back in the order they were added, including tuples
+     * added after the iterator was created.
+     */
+    @Test public void readBack() throws Exception {
+        SpillFile spill = new SpillFile(Utility.getTupleDesc(2));
+        DbIterator it = spill.iterator();
+        for (int i = 0; i < 100; i++) {
+            spill.add(Utility.getHeapTuple(new int[] { i, -i }));
+        }
+
+        it.open();
+        for (int i = 0; i < 100; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new IntField(-i), t.getField(1));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+        spill.delete();
+    }
+
+    /**
+     * Opening an iterator over a deleted spill file throws a DbException.
+     */
+    @Test public void openAfterDelete() throws Exception {
+        SpillFile spill = new SpillFile(Utility.getTupleDesc(2));
+        spill.add(Utility.getHeapTuple(new int[] { 1, 2 }));
+        spill.delete();
+
+        DbIterator it = spill.iterator();
+        try {
+            it.open();
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SpillFileTest.class);
+    }
+}
@@ -3,6 +3,8 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -94,6 +96,41 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * Returns the tuples of an iterator as int lists, sorted with
+     * {@link #sortTuples}, so that results produced in different orders
+     * compare equal.
+     */
+    public static ArrayList<ArrayList<Integer>> sortedTuples(DbIterator iterator)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        iterator.open();
+        while (iterator.hasNext()) {
+            tuples.add(tupleToList(iterator.next()));
+        }
+        iterator.close();
+        sortTuples(tuples);
+        return tuples;
+    }
+
+    /**
+     * Sorts int lists of the same length by their first value, then their
+     * second, and so on.
+     */
+    public static void sortTuples(List<ArrayList<Integer>> tuples) {
+        Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                for (int i = 0; i < a.size(); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            }
+        });
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();